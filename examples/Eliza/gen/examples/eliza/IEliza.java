@@ -17,6 +17,7 @@
 package examples.eliza;
 
 import mindroid.os.Binder;
+import mindroid.os.Bundle;
 import mindroid.os.IBinder;
 import mindroid.os.IInterface;
 import mindroid.os.Parcel;
@@ -85,6 +86,36 @@ public interface IEliza extends IInterface {
             }
         }
 
+        @Override
+        protected void onTransact(int what, int num, Object obj, Bundle data, Promise<?> result) throws RemoteException {
+            switch (what) {
+            case MSG_ASK1: {
+                String _reply = ask1((String) obj);
+                ((Promise<String>) result).complete(_reply);
+                break;
+            }
+            case MSG_ASK2: {
+                Future<String> _reply = ask2((String) obj);
+                _reply.then((value, exception) -> {
+                    if (exception == null) {
+                        ((Promise<String>) result).complete(value);
+                    } else {
+                        result.completeWith(exception);
+                    }
+                });
+                break;
+            }
+            case MSG_ASK3: {
+                Object[] _args = (Object[]) obj;
+                ask3((String) _args[0], IElizaListener.Stub.asInterface((IBinder) _args[1]));
+                break;
+            }
+            default:
+                super.onTransact(what, num, obj, data, result);
+                break;
+            }
+        }
+
         private static class Proxy implements IEliza {
             private final IBinder mRemote;
 
@@ -126,6 +157,8 @@ public interface IEliza extends IInterface {
                                     _promise.complete(_reply);
                                 } catch (RemoteException e) {
                                     _promise.completeWith(e);
+                                } finally {
+                                    parcel.recycle();
                                 }
                             } else {
                                 _promise.completeWith(exception);
@@ -147,6 +180,8 @@ public interface IEliza extends IInterface {
                                     _promise.complete(_reply);
                                 } catch (RemoteException e) {
                                     _promise.completeWith(e);
+                                } finally {
+                                    parcel.recycle();
                                 }
                             } else {
                                 _promise.completeWith(exception);
@@ -164,6 +199,38 @@ public interface IEliza extends IInterface {
             }
         }
 
+        private static class LocalProxy implements IEliza {
+            private final Stub mStub;
+
+            LocalProxy(Stub stub) {
+                mStub = stub;
+            }
+
+            @Override
+            public IBinder asBinder() {
+                return mStub;
+            }
+
+            @Override
+            public String ask1(String question) throws RemoteException {
+                Promise<String> _promise = new Promise<>();
+                mStub.transact(MSG_ASK1, 0, question, null, _promise, 0);
+                return Binder.get(_promise);
+            }
+
+            @Override
+            public Future<String> ask2(String question) throws RemoteException {
+                Promise<String> _promise = new Promise<>();
+                mStub.transact(MSG_ASK2, 0, question, null, _promise, 0);
+                return _promise;
+            }
+
+            @Override
+            public void ask3(String question, IElizaListener listener) throws RemoteException {
+                mStub.transact(MSG_ASK3, 0, new Object[] { question, listener.asBinder() }, null, null, FLAG_ONEWAY);
+            }
+        }
+
         static final int MSG_ASK1 = 1;
         static final int MSG_ASK2 = 2;
         static final int MSG_ASK3 = 3;
@@ -178,11 +245,11 @@ public interface IEliza extends IInterface {
             mBinder = binder;
             if (binder.getUri().getScheme().equals("mindroid")) {
                 mStub = (Stub) binder.queryLocalInterface(Stub.DESCRIPTOR);
-                mProxy = new Stub.Proxy(binder);
+                mProxy = (mStub != null) ? new Stub.LocalProxy(mStub) : new Stub.Proxy(binder);
             } else {
                 mindroid.runtime.system.Runtime runtime = mindroid.runtime.system.Runtime.getRuntime();
                 mStub = (Stub) runtime.getBinder(binder.getId());
-                mProxy = (IEliza) runtime.getProxy(binder);
+                mProxy = (mStub != null) ? new Stub.LocalProxy(mStub) : (IEliza) runtime.getProxy(binder);
             }
         }
 
@@ -17,6 +17,7 @@
 package examples.eliza;
 
 import mindroid.os.Binder;
+import mindroid.os.Bundle;
 import mindroid.os.IBinder;
 import mindroid.os.IInterface;
 import mindroid.os.Parcel;
@@ -58,6 +59,19 @@ public interface IElizaListener extends IInterface {
             }
         }
 
+        @Override
+        protected void onTransact(int what, int num, Object obj, Bundle data, Promise<?> result) throws RemoteException {
+            switch (what) {
+            case MSG_ON_REPLY: {
+                onReply((String) obj);
+                break;
+            }
+            default:
+                super.onTransact(what, num, obj, data, result);
+                break;
+            }
+        }
+
         private static class Proxy implements IElizaListener {
             private final IBinder mRemote;
 
@@ -94,6 +108,24 @@ public interface IElizaListener extends IInterface {
             }
         }
 
+        private static class LocalProxy implements IElizaListener {
+            private final Stub mStub;
+
+            LocalProxy(Stub stub) {
+                mStub = stub;
+            }
+
+            @Override
+            public IBinder asBinder() {
+                return mStub;
+            }
+
+            @Override
+            public void onReply(String reply) throws RemoteException {
+                mStub.transact(MSG_ON_REPLY, 0, reply, null, null, FLAG_ONEWAY);
+            }
+        }
+
         static final int MSG_ON_REPLY = 1;
     }
 
@@ -106,11 +138,11 @@ public interface IElizaListener extends IInterface {
             mBinder = binder;
             if (binder.getUri().getScheme().equals("mindroid")) {
                 mStub = (Stub) binder.queryLocalInterface(Stub.DESCRIPTOR);
-                mProxy = new Stub.Proxy(binder);
+                mProxy = (mStub != null) ? new Stub.LocalProxy(mStub) : new Stub.Proxy(binder);
             } else {
                 mindroid.runtime.system.Runtime runtime = mindroid.runtime.system.Runtime.getRuntime();
                 mStub = (Stub) runtime.getBinder(binder.getId());
-                mProxy = (IElizaListener) runtime.getProxy(binder);
+                mProxy = (mStub != null) ? new Stub.LocalProxy(mStub) : (IElizaListener) runtime.getProxy(binder);
             }
         }
 
@@ -270,6 +270,8 @@ public interface IEliza extends examples.eliza.IEliza {
                                 promise.complete(reply);
                             } catch (Exception e) {
                                 promise.completeWith(e);
+                            } finally {
+                                parcel.recycle();
                             }
                         } else {
                             promise.completeWith(exception);
@@ -331,6 +333,8 @@ public interface IEliza extends examples.eliza.IEliza {
                                 promise.complete(reply);
                             } catch (Exception e) {
                                 promise.completeWith(e);
+                            } finally {
+                                parcel.recycle();
                             }
                         } else {
                             promise.completeWith(exception);
@@ -170,6 +170,31 @@ public class ByteArrayInputStream extends InputStream {
         return count;
     }
 
+    /**
+     * Returns the current position within the underlying byte array.
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Points this stream to another byte array, so that the stream object can be reused. Reading
+     * starts at {@code offset} and ends after {@code count} bytes or at the end of the array.
+     *
+     * @param buffer
+     *            the byte array to stream over.
+     * @param offset
+     *            the initial position in {@code buffer} to start streaming from.
+     * @param count
+     *            the number of bytes available for streaming.
+     */
+    public void setByteArray(byte[] buffer, int offset, int count) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mMark = offset;
+        mCount = offset + count > buffer.length ? buffer.length : offset + count;
+    }
+
     /**
      * Resets this stream to the last marked location. This implementation
      * resets the position to either the marked position, the start position
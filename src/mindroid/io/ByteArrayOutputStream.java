@@ -196,6 +196,25 @@ public class ByteArrayOutputStream extends OutputStream {
         mBuffer[mCount++] = (byte) b;
     }
 
+    /**
+     * Appends {@code count} bytes to this stream without writing them. The caller fills them in
+     * directly in the array returned by {@link #getByteArray()}, which allows bulk encoders to
+     * write into the stream without an intermediate buffer.
+     *
+     * @param count
+     *            the number of bytes to append.
+     * @return the offset of the appended bytes within the underlying byte array.
+     */
+    public int reserve(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0");
+        }
+        expand(count);
+        final int offset = mCount;
+        mCount += count;
+        return offset;
+    }
+
     /**
      * Takes the contents of this stream and writes it to the output stream
      * {@code out}.
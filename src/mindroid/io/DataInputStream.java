@@ -41,6 +41,9 @@ public class DataInputStream extends InputStream implements DataInput {
     protected InputStream mInputStream;
 
     private final byte[] mScratchpad = new byte[8];
+    // Reused for decoding strings, grow up to the 64 KB limit of readUTF.
+    private byte[] mUtfBuffer;
+    private char[] mUtfChars;
 
     /**
      * Constructs a new DataInputStream on the InputStream {@code in}. All
@@ -260,39 +263,13 @@ public class DataInputStream extends InputStream implements DataInput {
 
     public final String readUTF() throws IOException {
         int size = readUnsignedShort();
-        byte[] data = new byte[size];
-        readFully(data, 0, size);
-
-        char[] string = new char[size];
-        int offset = 0;
-        int count = 0, s = 0, a;
-        while (count < size) {
-            if ((string[s] = (char) data[offset + count++]) < '\u0080') {
-                s++;
-            } else if (((a = string[s]) & 0xe0) == 0xc0) {
-                if (count >= size) {
-                    throw new UTFDataFormatException("Bad second byte at position " + count);
-                }
-                int b = data[offset + count++];
-                if ((b & 0xC0) != 0x80) {
-                    throw new UTFDataFormatException("Bad second byte at position " + (count - 1));
-                }
-                string[s++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
-            } else if ((a & 0xf0) == 0xe0) {
-                if (count + 1 >= size) {
-                    throw new UTFDataFormatException("Bad third byte at position " + (count + 1));
-                }
-                int b = data[offset + count++];
-                int c = data[offset + count++];
-                if (((b & 0xC0) != 0x80) || ((c & 0xC0) != 0x80)) {
-                    throw new UTFDataFormatException("Bad second or third byte at position " + (count - 2));
-                }
-                string[s++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
-            } else {
-                throw new UTFDataFormatException("Bad byte at position " + (count - 1));
-            }
+        if (mUtfBuffer == null || mUtfBuffer.length < size) {
+            int capacity = Math.max(size, 256);
+            mUtfBuffer = new byte[capacity];
+            mUtfChars = new char[capacity];
         }
-        return new String(string, 0, s);
+        readFully(mUtfBuffer, 0, size);
+        return ModifiedUtf8.decode(mUtfBuffer, 0, size, mUtfChars);
     }
 
     /**
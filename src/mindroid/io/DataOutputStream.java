@@ -40,6 +40,8 @@ public class DataOutputStream extends OutputStream implements DataOutput {
     protected OutputStream mOutputStream;
 
     private final byte[] mScratchpad = new byte[8];
+    // Reused for encoding strings, grows up to the 64 KB limit of writeUTF.
+    private byte[] mUtfBuffer;
 
     /**
      * Constructs a new {@code DataOutputStream} on the {@code OutputStream}
@@ -223,41 +225,27 @@ public class DataOutputStream extends OutputStream implements DataOutput {
     }
 
     public final void writeUTF(String string) throws IOException {
-        int count = 0;
-        final int size = string.length();
-        for (int i = 0; i < size; ++i) {
-            char c = string.charAt(i);
-            if (c != 0 && c <= 127) { // 2 byte U+0000.
-                ++count;
-            } else if (c <= 2047) {
-                count += 2;
-            } else {
-                count += 3;
-            }
-            if (count > 65535) {
-                throw new UTFDataFormatException("String too long (> 65535 B)");
-            }
+        final long count = ModifiedUtf8.countBytes(string);
+        if (count > 65535) {
+            throw new UTFDataFormatException("String too long (> 65535 B)");
         }
 
-        byte[] data = new byte[2 + count];
-        data[0] = (byte) ((count >> 8) & 0xff);
-        data[1] = (byte) ((count >> 0) & 0xff);
-
-        int offset = 2;
-        for (int i = 0; i < size; ++i) {
-            char c = string.charAt(i);
-            if (c != 0 && c <= 127) { // 2 byte U+0000.
-                data[offset++] = (byte) c;
-            } else if (c <= 2047) {
-                data[offset++] = (byte) (0xc0 | (0x1f & (c >> 6)));
-                data[offset++] = (byte) (0x80 | (0x3f & c));
-            } else {
-                data[offset++] = (byte) (0xe0 | (0x0f & (c >> 12)));
-                data[offset++] = (byte) (0x80 | (0x3f & (c >> 6)));
-                data[offset++] = (byte) (0x80 | (0x3f & c));
+        if (mOutputStream instanceof ByteArrayOutputStream) {
+            // Encode in place.
+            ByteArrayOutputStream outputStream = (ByteArrayOutputStream) mOutputStream;
+            int offset = outputStream.reserve(2 + (int) count);
+            byte[] data = outputStream.getByteArray();
+            data[offset] = (byte) ((count >> 8) & 0xff);
+            data[offset + 1] = (byte) ((count >> 0) & 0xff);
+            ModifiedUtf8.encode(string, data, offset + 2);
+        } else {
+            if (mUtfBuffer == null || mUtfBuffer.length < 2 + count) {
+                mUtfBuffer = new byte[Math.max(2 + (int) count, 256)];
             }
+            mUtfBuffer[0] = (byte) ((count >> 8) & 0xff);
+            mUtfBuffer[1] = (byte) ((count >> 0) & 0xff);
+            ModifiedUtf8.encode(string, mUtfBuffer, 2);
+            mOutputStream.write(mUtfBuffer, 0, 2 + (int) count);
         }
-
-        write(data);
     }
 }
@@ -0,0 +1,191 @@
+/*
+ *  Copyright (C) 2018 Daniel Himmelein
+ * 
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package mindroid.io;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoder and decoder for the {@link java.io.DataInput modified UTF-8} format that work directly
+ * on the target or source buffer. Strings consisting of ASCII characters only, which is the common
+ * case for descriptors, URIs and keys, take a fast path.
+ *
+ * @hide
+ */
+public final class ModifiedUtf8 {
+    private ModifiedUtf8() {
+    }
+
+    /**
+     * Returns the number of bytes the modified UTF-8 representation of {@code string} would take.
+     */
+    public static long countBytes(String string) {
+        final int length = string.length();
+        long count = length;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c == 0 || c > 127) { // 2 byte U+0000.
+                count += (c <= 2047) ? 1 : 2;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Encodes {@code string} into {@code buffer} at {@code offset}. The buffer must have room for
+     * {@link #countBytes(String)} bytes.
+     *
+     * @return the offset after the encoded string.
+     */
+    public static int encode(String string, byte[] buffer, int offset) {
+        final int length = string.length();
+        int i = 0;
+        char c;
+        // ASCII fast path.
+        while (i < length && (c = string.charAt(i)) != 0 && c <= 127) {
+            buffer[offset++] = (byte) c;
+            i++;
+        }
+        for (; i < length; i++) {
+            c = string.charAt(i);
+            if (c != 0 && c <= 127) {
+                buffer[offset++] = (byte) c;
+            } else if (c <= 2047) {
+                buffer[offset++] = (byte) (0xc0 | (0x1f & (c >> 6)));
+                buffer[offset++] = (byte) (0x80 | (0x3f & c));
+            } else {
+                buffer[offset++] = (byte) (0xe0 | (0x0f & (c >> 12)));
+                buffer[offset++] = (byte) (0x80 | (0x3f & (c >> 6)));
+                buffer[offset++] = (byte) (0x80 | (0x3f & c));
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Encodes {@code string} into {@code buffer} at its current position. The buffer must have
+     * room for {@link #countBytes(String)} bytes.
+     */
+    public static void encode(String string, ByteBuffer buffer) {
+        final int length = string.length();
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c != 0 && c <= 127) {
+                buffer.put((byte) c);
+            } else if (c <= 2047) {
+                buffer.put((byte) (0xc0 | (0x1f & (c >> 6))));
+                buffer.put((byte) (0x80 | (0x3f & c)));
+            } else {
+                buffer.put((byte) (0xe0 | (0x0f & (c >> 12))));
+                buffer.put((byte) (0x80 | (0x3f & (c >> 6))));
+                buffer.put((byte) (0x80 | (0x3f & c)));
+            }
+        }
+    }
+
+    /**
+     * Decodes {@code size} bytes from {@code buffer} at {@code offset}. Non-ASCII strings are
+     * decoded into {@code chars}, which must hold at least {@code size} characters.
+     */
+    public static String decode(byte[] buffer, int offset, int size, char[] chars) throws UTFDataFormatException {
+        final int end = offset + size;
+        int i = offset;
+        while (i < end && buffer[i] >= 0) {
+            i++;
+        }
+        if (i == end) {
+            return new String(buffer, offset, size, StandardCharsets.ISO_8859_1);
+        }
+
+        int s = 0;
+        for (int j = offset; j < i; j++) {
+            chars[s++] = (char) buffer[j];
+        }
+        while (i < end) {
+            int a = buffer[i++];
+            if (a >= 0) {
+                chars[s++] = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                if (i >= end) {
+                    throw new UTFDataFormatException("Bad second byte at position " + (i - offset));
+                }
+                int b = buffer[i++];
+                if ((b & 0xC0) != 0x80) {
+                    throw new UTFDataFormatException("Bad second byte at position " + (i - offset - 1));
+                }
+                chars[s++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+            } else if ((a & 0xf0) == 0xe0) {
+                if (i + 1 >= end) {
+                    throw new UTFDataFormatException("Bad third byte at position " + (i - offset + 1));
+                }
+                int b = buffer[i++];
+                int c = buffer[i++];
+                if (((b & 0xC0) != 0x80) || ((c & 0xC0) != 0x80)) {
+                    throw new UTFDataFormatException("Bad second or third byte at position " + (i - offset - 2));
+                }
+                chars[s++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+            } else {
+                throw new UTFDataFormatException("Bad byte at position " + (i - offset - 1));
+            }
+        }
+        return new String(chars, 0, s);
+    }
+
+    /**
+     * Decodes {@code size} bytes from {@code buffer} at its current position into {@code chars},
+     * which must hold at least {@code size} characters.
+     */
+    public static String decode(ByteBuffer buffer, int size, char[] chars) throws UTFDataFormatException {
+        int s = 0;
+        int count = 0;
+        while (count < size) {
+            int a = buffer.get();
+            count++;
+            if (a >= 0) {
+                chars[s++] = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                if (count >= size) {
+                    throw new UTFDataFormatException("Bad second byte at position " + count);
+                }
+                int b = buffer.get();
+                count++;
+                if ((b & 0xC0) != 0x80) {
+                    throw new UTFDataFormatException("Bad second byte at position " + (count - 1));
+                }
+                chars[s++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+            } else if ((a & 0xf0) == 0xe0) {
+                if (count + 1 >= size) {
+                    throw new UTFDataFormatException("Bad third byte at position " + (count + 1));
+                }
+                int b = buffer.get();
+                int c = buffer.get();
+                count += 2;
+                if (((b & 0xC0) != 0x80) || ((c & 0xC0) != 0x80)) {
+                    throw new UTFDataFormatException("Bad second or third byte at position " + (count - 2));
+                }
+                chars[s++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+            } else {
+                throw new UTFDataFormatException("Bad byte at position " + (count - 1));
+            }
+        }
+        return new String(chars, 0, s);
+    }
+}
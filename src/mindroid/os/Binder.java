@@ -43,19 +43,28 @@ public class Binder implements IBinder {
     private static final String LOG_TAG = "Binder";
     private static final int TRANSACTION = 1;
     private static final int LIGHTWEIGHT_TRANSACTION = 2;
+    private static final int BATCH_TRANSACTION = 3;
     private static final String EXCEPTION_MESSAGE = "Binder transaction failure";
-    private static final ThreadLocal<Integer> sCallingPid = new ThreadLocal<>();
+    private static final ThreadLocal<CallingContext> sCallingContext = new ThreadLocal<CallingContext>() {
+        @Override
+        protected CallingContext initialValue() {
+            return new CallingContext();
+        }
+    };
     private final Runtime mRuntime;
     private long mId;
     private final IMessenger mTarget;
     private IInterface mOwner;
     private String mDescriptor;
     private URI mUri;
+    private final Detacher mDetacher;
+    private BinderStats.Interface mStats;
 
     public Binder() {
         mRuntime = Runtime.getRuntime();
         mId = mRuntime.attachBinder(this);
         mTarget = new Messenger();
+        mDetacher = new Detacher(this, mRuntime, mId);
         setCallingPid(Process.myPid());
     }
 
@@ -63,6 +72,7 @@ public class Binder implements IBinder {
         mRuntime = Runtime.getRuntime();
         mId = mRuntime.attachBinder(this);
         mTarget = new Messenger(looper);
+        mDetacher = new Detacher(this, mRuntime, mId);
         setCallingPid(Process.myPid());
     }
 
@@ -70,6 +80,32 @@ public class Binder implements IBinder {
         mRuntime = Runtime.getRuntime();
         mId = mRuntime.attachBinder(this);
         mTarget = new ExecutorMessenger(executor);
+        mDetacher = new Detacher(this, mRuntime, mId);
+        setCallingPid(Process.myPid());
+    }
+
+    /**
+     * Creates a Binder that dispatches up to {@code concurrency} transactions at the same time on
+     * the given executor. Transactions of the same caller are dispatched one after another in the
+     * order they were sent. A caller is a remote connection or, for local transactions, the
+     * calling process. At most {@code maxQueueLength} transactions may be pending, further
+     * transactions fail with a {@link RemoteException}.
+     *
+     * <p>
+     * This lies between {@link #Binder(Looper)}, which serializes all transactions, and
+     * {@link #Binder(Executor)}, which neither limits nor orders them.
+     */
+    public Binder(final Executor executor, int concurrency, int maxQueueLength) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency <= 0");
+        }
+        if (maxQueueLength <= 0) {
+            throw new IllegalArgumentException("maxQueueLength <= 0");
+        }
+        mRuntime = Runtime.getRuntime();
+        mId = mRuntime.attachBinder(this);
+        mTarget = new OrderedExecutorMessenger(executor, concurrency, maxQueueLength);
+        mDetacher = new Detacher(this, mRuntime, mId);
         setCallingPid(Process.myPid());
     }
 
@@ -82,18 +118,10 @@ public class Binder implements IBinder {
         } else {
             mTarget = binder.mTarget;
         }
+        mDetacher = new Detacher(this, mRuntime, mId);
         setCallingPid(Process.myPid());
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            mRuntime.detachBinder(mId, mUri);
-        } finally {
-            super.finalize();
-        }
-    }
-
     @Override
     public final long getId() {
         return mId & 0xFFFFFFFFL;
@@ -112,6 +140,7 @@ public class Binder implements IBinder {
     public void attachInterface(IInterface owner, String descriptor) {
         mOwner = owner;
         mDescriptor = descriptor;
+        mStats = null;
 
         try {
             URI uri = new URI(mDescriptor);
@@ -121,6 +150,7 @@ public class Binder implements IBinder {
             int nodeId = (int) ((mId >> 32) & 0xFFFFFFFFL);
             int id = (int) (mId & 0xFFFFFFFFL);
             mUri = new URI(uri.getScheme(), nodeId + "." + id, null, null, null);
+            mDetacher.mUri = mUri;
             mRuntime.attachBinder(mUri, this);
         } catch (URISyntaxException e) {
             Log.e(LOG_TAG, "Failed to attach interface to runtime system", e);
@@ -162,30 +192,50 @@ public class Binder implements IBinder {
      * then its own pid is returned.
      */
     public static final int getCallingPid() {
-        Integer callingPid = sCallingPid.get();
-        if (callingPid != null) {
-            return callingPid.intValue();
-        } else {
-            return 0;
-        }
+        return sCallingContext.get().mCallingPid;
     }
 
     private static final int setCallingPid(int pid) {
-        int origPid = 0;
-        Integer callingPid = sCallingPid.get();
-        if (callingPid != null) {
-            origPid = callingPid.intValue();
-        }
-        sCallingPid.set(pid);
+        final CallingContext context = sCallingContext.get();
+        final int origPid = context.mCallingPid;
+        context.mCallingPid = pid;
         return origPid;
     }
 
+    /**
+     * Per-thread transaction state. Keeps the calling pid unboxed and caches the pid of the thread,
+     * which never changes since a thread cannot leave its thread group.
+     */
+    private static final class CallingContext {
+        final int mPid = Process.myPid();
+        int mCallingPid;
+        Object mCallingConnection;
+    }
+
+    /**
+     * Sets the connection on whose behalf the current thread issues transactions. Runtime plugins
+     * set it while they dispatch incoming transactions, so that Binders created with
+     * {@link #Binder(Executor, int, int)} keep the order of each connection.
+     *
+     * @return the previous connection, to be restored afterwards.
+     * @hide
+     */
+    public static final Object setCallingConnection(Object connection) {
+        final CallingContext context = sCallingContext.get();
+        final Object origConnection = context.mCallingConnection;
+        context.mCallingConnection = connection;
+        return origConnection;
+    }
+
     /**
      * Default implementation is a stub that returns null. You will want to override this to do the
      * appropriate unmarshalling of transactions.
      *
      * <p>
      * If you want to call this, call transact().
+     *
+     * <p>
+     * The data Parcel is recycled after this method returns, so it must not be used afterwards.
      */
     protected void onTransact(int what, Parcel data, Promise<Parcel> result) throws RemoteException {
         throw new RemoteException(new NoSuchMethodException());
@@ -198,32 +248,61 @@ public class Binder implements IBinder {
     /**
      * Default implementations rewinds the parcels and calls onTransact. On the remote side,
      * transact calls into the binder to do the IPC.
+     *
+     * <p>
+     * Two-way transactions allocate a new {@link Reply} per call, since the returned Promise is owned
+     * by the caller and may still be pending when the next transaction starts. This is the path
+     * used by the generated proxies.
      */
     @Override
     public Promise<Parcel> transact(int what, Parcel data, int flags) throws RemoteException {
+        if (flags == FLAG_ONEWAY) {
+            transact(what, data, null, flags);
+            return null;
+        } else {
+            Reply reply = new Reply();
+            transact(what, data, reply, flags);
+            return reply;
+        }
+    }
+
+    /**
+     * Like {@link #transact(int, Parcel, int)}, but completes the given {@link Reply} instead of
+     * allocating a new one. Callers that issue one two-way transaction at a time on a local Binder
+     * can reuse a Reply via {@link Reply#reset()} to avoid that allocation. For one-way transactions
+     * {@code reply} must be null.
+     */
+    public final void transact(int what, Parcel data, Reply reply, int flags) throws RemoteException {
         if (data != null) {
             data.asInput();
         }
+        final BinderStats.Entry stats = getStats(what);
+        final long start = (stats != null) ? stats.onTransactionStarted(null) : 0;
         Message message = Message.obtain();
         message.what = TRANSACTION;
         message.arg1 = what;
         message.obj = data;
-        message.sendingPid = Process.myPid();
-        Promise<Parcel> promise;
+        message.sendingPid = sCallingContext.get().mPid;
         if (flags == FLAG_ONEWAY) {
             message.result = null;
-            promise = null;
         } else {
-            Promise<Parcel> p = new Promise<Parcel>(Executors.SYNCHRONOUS_EXECUTOR);
-            message.result = p;
-            promise = p.then(parcel -> {
-                parcel.asInput();
-            });
+            reply.mStats = stats;
+            reply.mStart = start;
+            message.result = reply;
         }
         if (!mTarget.send(message)) {
-            throw new RemoteException(EXCEPTION_MESSAGE);
+            if (data != null) {
+                data.recycle();
+            }
+            RemoteException exception = new RemoteException(EXCEPTION_MESSAGE);
+            if (stats != null) {
+                if (reply != null) {
+                    reply.mStats = null;
+                }
+                stats.onTransactionFinished(0, exception);
+            }
+            throw exception;
         }
-        return promise;
     }
 
     @Override
@@ -235,14 +314,77 @@ public class Binder implements IBinder {
         message.obj = obj;
         message.setData(data);
         message.result = promise;
-        message.sendingPid = Process.myPid();
+        message.sendingPid = sCallingContext.get().mPid;
+        final BinderStats.Entry stats = getStats(what);
+        if (stats != null) {
+            stats.onTransactionStarted(null);
+        }
         if (!mTarget.send(message)) {
-            throw new RemoteException(EXCEPTION_MESSAGE);
+            RemoteException exception = new RemoteException(EXCEPTION_MESSAGE);
+            if (stats != null) {
+                stats.onTransactionFinished(0, exception);
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Posts all transactions of the batch with a single message.
+     */
+    @Override
+    public final void transact(TransactionBatch batch) throws RemoteException {
+        if (batch.isEmpty()) {
+            batch.recycle();
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            final Parcel data = batch.getData(i);
+            if (data != null) {
+                data.asInput();
+            }
+            final BinderStats.Entry stats = getStats(batch.getWhat(i));
+            if (stats != null) {
+                stats.onTransactionStarted(null);
+            }
+        }
+        Message message = Message.obtain();
+        message.what = BATCH_TRANSACTION;
+        message.obj = batch;
+        message.sendingPid = sCallingContext.get().mPid;
+        if (!mTarget.send(message)) {
+            RemoteException exception = new RemoteException(EXCEPTION_MESSAGE);
+            for (int i = 0; i < batch.size(); i++) {
+                final BinderStats.Entry stats = getStats(batch.getWhat(i));
+                if (stats != null) {
+                    stats.onTransactionFinished(0, exception);
+                }
+            }
+            batch.recycle();
+            throw exception;
         }
     }
 
     private final void onTransact(final Message message) {
-        final int origPid = setCallingPid(message.sendingPid);
+        final CallingContext context = sCallingContext.get();
+        final int origPid = context.mCallingPid;
+        context.mCallingPid = message.sendingPid;
+        if (message.what == BATCH_TRANSACTION) {
+            final TransactionBatch batch = (TransactionBatch) message.obj;
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    onTransact(batch.getWhat(i), batch.takeData(i));
+                }
+            } finally {
+                batch.recycle();
+                message.obj = null;
+                context.mCallingPid = origPid;
+            }
+            return;
+        }
+        final BinderStats.Entry stats = getStats(message.arg1);
+        final long start = (stats != null)
+                ? stats.onIncomingTransactionStarted((message.what == TRANSACTION) ? (Parcel) message.obj : null) : 0;
+        boolean failed = true;
         try {
             switch (message.what) {
             case TRANSACTION:
@@ -254,6 +396,7 @@ public class Binder implements IBinder {
             default:
                 break;
             }
+            failed = false;
         } catch (RemoteException e) {
             Throwable caughtException = checkException(e);
             if (message.result != null) {
@@ -269,11 +412,55 @@ public class Binder implements IBinder {
                 Log.w(LOG_TAG, EXCEPTION_MESSAGE, e);
             }
         } finally {
+            if (message.what == TRANSACTION && message.obj != null) {
+                ((Parcel) message.obj).recycle();
+            }
             message.result = null;
-            setCallingPid(origPid);
+            context.mCallingPid = origPid;
+            if (stats != null) {
+                stats.onIncomingTransactionFinished(start, failed);
+            }
+        }
+    }
+
+    /**
+     * Dispatches one transaction of a batch.
+     */
+    private final void onTransact(int what, Parcel data) {
+        final BinderStats.Entry stats = getStats(what);
+        final long start = (stats != null) ? stats.onIncomingTransactionStarted(data) : 0;
+        boolean failed = true;
+        try {
+            onTransact(what, data, null);
+            failed = false;
+        } catch (RemoteException e) {
+            checkException(e);
+            Log.w(LOG_TAG, EXCEPTION_MESSAGE, e);
+        } catch (RuntimeException e) {
+            checkException(e);
+            Log.w(LOG_TAG, EXCEPTION_MESSAGE, e);
+        } finally {
+            if (data != null) {
+                data.recycle();
+            }
+            if (stats != null) {
+                stats.onIncomingTransactionFinished(start, failed);
+            }
         }
     }
 
+    private BinderStats.Entry getStats(int what) {
+        if (!BinderStats.isEnabled()) {
+            return null;
+        }
+        BinderStats.Interface stats = mStats;
+        if (stats == null) {
+            stats = BinderStats.getInterface(mDescriptor);
+            mStats = stats;
+        }
+        return stats.getEntry(what);
+    }
+
     private final Throwable checkException(Exception e) throws RuntimeException {
         Throwable caughtException = null;
         if (e instanceof SecurityException) {
@@ -305,8 +492,108 @@ public class Binder implements IBinder {
         return true;
     }
 
+    /**
+     * Detaches the Binder from the runtime system right away instead of waiting for the garbage
+     * collector. Afterwards the Binder can no longer be looked up or called remotely.
+     */
     @Override
     public void dispose() {
+        mDetacher.mCleanable.clean();
+    }
+
+    /**
+     * Reply of a two-way transaction on a local Binder. The reply Parcel is switched to input mode
+     * when the Binder completes the Reply. A Reply can be reused for further transactions, see
+     * {@link #reset()}.
+     */
+    public static final class Reply extends Promise<Parcel> {
+        private BinderStats.Entry mStats;
+        private long mStart;
+
+        public Reply() {
+            super(Executors.SYNCHRONOUS_EXECUTOR);
+        }
+
+        /**
+         * Creates a Reply that records the completion of an outgoing transaction in
+         * {@code stats}, see {@link BinderStats.Entry#onTransactionFinished}.
+         *
+         * @hide
+         */
+        public Reply(BinderStats.Entry stats, long start) {
+            super(Executors.SYNCHRONOUS_EXECUTOR);
+            mStats = stats;
+            mStart = start;
+        }
+
+        @Override
+        public boolean complete(Parcel parcel) {
+            if (parcel != null) {
+                parcel.asInput();
+            }
+            onFinished(null);
+            return super.complete(parcel);
+        }
+
+        @Override
+        public boolean completeWith(Throwable exception) {
+            onFinished(exception);
+            return super.completeWith(exception);
+        }
+
+        @Override
+        public boolean completeWith(Promise<Parcel> supplier) {
+            if (supplier == null) {
+                throw new NullPointerException();
+            }
+            supplier.then((parcel, exception) -> {
+                if (exception == null) {
+                    complete(parcel);
+                } else {
+                    completeWith(exception);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Makes a completed Reply usable for the next transaction. The caller must have consumed
+         * the previous result and must not have chained continuations to the Reply.
+         */
+        @Override
+        public void reset() {
+            super.reset();
+        }
+
+        private void onFinished(Throwable exception) {
+            final BinderStats.Entry stats = mStats;
+            if (stats != null) {
+                mStats = null;
+                stats.onTransactionFinished(mStart, exception);
+            }
+        }
+    }
+
+    /**
+     * Detaches a Binder from the runtime system once it has been disposed or garbage collected.
+     * It must not reference the Binder itself.
+     */
+    private static final class Detacher implements Runnable {
+        private final Runtime mRuntime;
+        private final Runtime.Cleanable mCleanable;
+        volatile long mId;
+        volatile URI mUri;
+
+        Detacher(Binder binder, Runtime runtime, long id) {
+            mRuntime = runtime;
+            mId = id;
+            mCleanable = runtime.register(binder, this);
+        }
+
+        @Override
+        public void run() {
+            mRuntime.detachBinder(mId, mUri);
+        }
     }
 
     private interface IMessenger {
@@ -369,6 +656,196 @@ public class Binder implements IBinder {
         }
     }
 
+    /**
+     * Dispatches transactions on an executor with limited concurrency while keeping the order per
+     * caller. Callers are hashed onto lanes. A lane holds its pending messages, linked through
+     * {@link Message#nextMessage}, and runs at most one of them at a time. Lanes with pending
+     * messages wait in a ready list that up to {@code concurrency} workers take turns on, one
+     * message per turn, so that a busy caller cannot starve the others.
+     */
+    private class OrderedExecutorMessenger implements IMessenger, Runnable {
+        private final Executor mExecutor;
+        private final int mConcurrency;
+        private final int mMaxQueueLength;
+        private final Lane[] mLanes;
+        private final int mLaneShift;
+        private Lane mReadyHead;
+        private Lane mReadyTail;
+        private int mWorkers;
+        private int mQueueLength;
+
+        public OrderedExecutorMessenger(final Executor executor, int concurrency, int maxQueueLength) {
+            mExecutor = executor;
+            mConcurrency = concurrency;
+            mMaxQueueLength = maxQueueLength;
+            int bits = 4;
+            while ((1 << bits) < 4 * concurrency && bits < 16) {
+                bits++;
+            }
+            mLanes = new Lane[1 << bits];
+            for (int i = 0; i < mLanes.length; i++) {
+                mLanes[i] = new Lane();
+            }
+            mLaneShift = 32 - bits;
+        }
+
+        @Override
+        public boolean isCurrentThread() {
+            return false;
+        }
+
+        @Override
+        public boolean send(final Message message) {
+            final Object connection = sCallingContext.get().mCallingConnection;
+            final int key = (connection != null) ? System.identityHashCode(connection) : message.sendingPid;
+            final Lane lane = mLanes[(key * 0x9E3779B9) >>> mLaneShift];
+            synchronized (this) {
+                if (mQueueLength >= mMaxQueueLength) {
+                    return false;
+                }
+                message.nextMessage = null;
+                if (lane.mTail == null) {
+                    lane.mHead = message;
+                } else {
+                    lane.mTail.nextMessage = message;
+                }
+                lane.mTail = message;
+                mQueueLength++;
+                if (!lane.mActive && lane.mHead == message) {
+                    makeReady(lane);
+                }
+                if (mWorkers >= mConcurrency || mReadyHead == null) {
+                    return true;
+                }
+                mWorkers++;
+            }
+            try {
+                mExecutor.execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                Message messages;
+                synchronized (this) {
+                    mWorkers--;
+                    if (mWorkers > 0) {
+                        // A running worker dispatches the message.
+                        return true;
+                    }
+                    // Without workers, all pending messages are stranded in the ready lanes. The
+                    // sender fails its own message, the others are failed here.
+                    messages = removeAll();
+                }
+                while (messages != null) {
+                    Message next = messages.nextMessage;
+                    messages.nextMessage = null;
+                    if (messages != message) {
+                        fail(messages);
+                    }
+                    messages = next;
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Lane lane;
+                final Message message;
+                synchronized (this) {
+                    lane = mReadyHead;
+                    if (lane == null) {
+                        mWorkers--;
+                        return;
+                    }
+                    mReadyHead = lane.mNext;
+                    if (mReadyHead == null) {
+                        mReadyTail = null;
+                    }
+                    lane.mNext = null;
+                    lane.mActive = true;
+                    message = lane.mHead;
+                    lane.mHead = message.nextMessage;
+                    if (lane.mHead == null) {
+                        lane.mTail = null;
+                    }
+                    message.nextMessage = null;
+                    mQueueLength--;
+                }
+                try {
+                    onTransact(message);
+                } finally {
+                    message.recycle();
+                    synchronized (this) {
+                        lane.mActive = false;
+                        if (lane.mHead != null) {
+                            makeReady(lane);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void makeReady(Lane lane) {
+            if (mReadyTail == null) {
+                mReadyHead = lane;
+            } else {
+                mReadyTail.mNext = lane;
+            }
+            mReadyTail = lane;
+        }
+
+        /**
+         * Takes all pending messages out of the ready lanes and returns them linked through
+         * {@link Message#nextMessage}. Must only be called without workers.
+         */
+        private Message removeAll() {
+            Message head = null;
+            Message tail = null;
+            for (Lane lane = mReadyHead; lane != null; ) {
+                if (lane.mHead != null) {
+                    if (tail == null) {
+                        head = lane.mHead;
+                    } else {
+                        tail.nextMessage = lane.mHead;
+                    }
+                    tail = lane.mTail;
+                }
+                lane.mHead = null;
+                lane.mTail = null;
+                Lane next = lane.mNext;
+                lane.mNext = null;
+                lane = next;
+            }
+            mReadyHead = null;
+            mReadyTail = null;
+            mQueueLength = 0;
+            return head;
+        }
+
+        /**
+         * Fails a message that will never be dispatched and releases its data.
+         */
+        private void fail(Message message) {
+            if (message.result != null) {
+                message.result.completeWith(new RemoteException(EXCEPTION_MESSAGE));
+            }
+            if (message.what == TRANSACTION && message.obj != null) {
+                ((Parcel) message.obj).recycle();
+            } else if (message.what == BATCH_TRANSACTION) {
+                ((TransactionBatch) message.obj).recycle();
+            }
+            message.obj = null;
+            message.recycle();
+        }
+    }
+
+    private static final class Lane {
+        Message mHead;
+        Message mTail;
+        Lane mNext;
+        boolean mActive;
+    }
+
     public static final <T> T get(Promise<T> result) throws RemoteException {
         try {
             return result.get();
@@ -422,6 +899,7 @@ public class Binder implements IBinder {
         private final long mId;
         private String mDescriptor;
         private URI mUri;
+        private final Runtime.Cleanable mCleanable;
 
         public Proxy(URI uri) throws IllegalArgumentException {
             if (uri == null) {
@@ -462,15 +940,11 @@ public class Binder implements IBinder {
             }
             mUri = URI.create(uri.getScheme() + "://" + uri.getAuthority());
             mProxyId = mRuntime.attachProxy(this);
-        }
-
-        @Override
-        protected void finalize() throws Throwable {
-            try {
-                dispose();
-            } finally {
-                super.finalize();
-            }
+            final Runtime runtime = mRuntime;
+            final long id = mId;
+            final URI proxyUri = mUri;
+            final long proxyId = mProxyId;
+            mCleanable = runtime.register(this, () -> runtime.detachProxy(id, proxyUri, proxyId));
         }
 
         @Override
@@ -507,6 +981,17 @@ public class Binder implements IBinder {
             throw new RemoteException(EXCEPTION_MESSAGE);
         }
 
+        @Override
+        public void transact(TransactionBatch batch) throws RemoteException {
+            final Runtime runtime = mRuntime;
+            if (runtime != null) {
+                runtime.transact(this, batch);
+            } else {
+                batch.recycle();
+                throw new RemoteException(EXCEPTION_MESSAGE + ": Invalid proxy");
+            }
+        }
+
         @Override
         public void link(Supervisor supervisor, Bundle extras) throws RemoteException {
             if (supervisor == null) {
@@ -530,12 +1015,15 @@ public class Binder implements IBinder {
             }
         }
 
+        /**
+         * Detaches the proxy from the runtime system right away instead of waiting for the
+         * garbage collector. Afterwards all transactions fail.
+         */
         @Override
         public synchronized void dispose() {
-            final Runtime runtime = mRuntime;
-            if (runtime != null) {
-                runtime.detachProxy(mId, mUri, mProxyId);
+            if (mRuntime != null) {
                 mRuntime = null;
+                mCleanable.clean();
             }
         }
     }
@@ -544,5 +1032,7 @@ public class Binder implements IBinder {
     public void setId(long id) {
         mId = id;
         mUri = URI.create(mUri.getScheme() + "://" + (int) ((mId >> 32) & 0xFFFFFFFFL) + "." + (int) (mId & 0xFFFFFFFFL));
+        mDetacher.mId = mId;
+        mDetacher.mUri = mUri;
     }
 }
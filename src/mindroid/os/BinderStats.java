@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.os;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import mindroid.util.Histogram;
+import mindroid.util.Properties;
+
+/**
+ * Transaction statistics of all Binder interfaces of the process, broken down by interface
+ * descriptor and transaction code ('what'). Outgoing transactions are recorded by
+ * {@link Binder#transact} and by the runtime system for proxies, incoming transactions by the
+ * dispatching of {@link Binder#onTransact}. All durations are in microseconds, payload sizes in
+ * bytes.
+ *
+ * <p>
+ * Transaction and error counts are exact. Latencies, execution times and payload sizes are only
+ * recorded for every n-th transaction of a kind, where n is the sampling interval. It defaults to
+ * 1 and can be configured by the system property {@link Properties#BINDER_STATS_SAMPLING_INTERVAL}
+ * or {@link #setSamplingInterval(int)}. A sampling interval of 0 disables the statistics.
+ * Recording does not allocate memory once a transaction code has been seen.
+ */
+public final class BinderStats {
+    private static final String UNKNOWN_DESCRIPTOR = "";
+    private static final int MAX_INDEXED_WHAT = 256;
+    private static volatile int sSamplingInterval = Math.max(Integer.getInteger(Properties.BINDER_STATS_SAMPLING_INTERVAL, 1), 0);
+    private static final ConcurrentHashMap<String, Interface> sInterfaces = new ConcurrentHashMap<>();
+    // Guarded by BinderStats.class.
+    private static final List<Entry> sEntries = new ArrayList<>();
+
+    private BinderStats() {
+    }
+
+    /**
+     * Statistics of one transaction code of an interface.
+     */
+    public static final class Entry {
+        private final String mDescriptor;
+        private final int mWhat;
+        private final AtomicLong mOutgoingCount = new AtomicLong();
+        private final AtomicLong mOutgoingErrorCount = new AtomicLong();
+        private final AtomicLong mIncomingCount = new AtomicLong();
+        private final AtomicLong mIncomingErrorCount = new AtomicLong();
+        private final Histogram mLatency = new Histogram();
+        private final Histogram mExecutionTime = new Histogram();
+        private final Histogram mOutgoingPayloadSize = new Histogram();
+        private final Histogram mIncomingPayloadSize = new Histogram();
+
+        Entry(String descriptor, int what) {
+            mDescriptor = descriptor;
+            mWhat = what;
+        }
+
+        /**
+         * Returns the interface descriptor, or an empty string for Binders without interface.
+         */
+        public String getDescriptor() {
+            return mDescriptor;
+        }
+
+        /**
+         * Returns the transaction code.
+         */
+        public int getWhat() {
+            return mWhat;
+        }
+
+        /**
+         * Returns the number of outgoing transactions.
+         */
+        public long getOutgoingCount() {
+            return mOutgoingCount.get();
+        }
+
+        /**
+         * Returns the number of outgoing transactions that failed, either because they could not
+         * be sent or because they completed exceptionally.
+         */
+        public long getOutgoingErrorCount() {
+            return mOutgoingErrorCount.get();
+        }
+
+        /**
+         * Returns the number of incoming transactions that have been dispatched.
+         */
+        public long getIncomingCount() {
+            return mIncomingCount.get();
+        }
+
+        /**
+         * Returns the number of incoming transactions that threw an exception.
+         */
+        public long getIncomingErrorCount() {
+            return mIncomingErrorCount.get();
+        }
+
+        /**
+         * Returns the histogram of the round-trip times of outgoing two-way transactions in
+         * microseconds.
+         */
+        public Histogram getLatency() {
+            return mLatency;
+        }
+
+        /**
+         * Returns the histogram of the synchronous execution times of
+         * {@link Binder#onTransact} in microseconds.
+         */
+        public Histogram getExecutionTime() {
+            return mExecutionTime;
+        }
+
+        /**
+         * Returns the histogram of the request Parcel sizes of outgoing transactions in bytes.
+         */
+        public Histogram getOutgoingPayloadSize() {
+            return mOutgoingPayloadSize;
+        }
+
+        /**
+         * Returns the histogram of the request Parcel sizes of incoming transactions in bytes.
+         */
+        public Histogram getIncomingPayloadSize() {
+            return mIncomingPayloadSize;
+        }
+
+        /**
+         * Records the start of an outgoing transaction.
+         *
+         * @return the start time to pass to {@link #onTransactionFinished}, or 0 if the
+         * transaction is not sampled.
+         * @hide
+         */
+        public long onTransactionStarted(Parcel data) {
+            final int samplingInterval = sSamplingInterval;
+            if (samplingInterval > 0 && mOutgoingCount.incrementAndGet() % samplingInterval == 0) {
+                if (data != null) {
+                    mOutgoingPayloadSize.record(data.size());
+                }
+                return System.nanoTime();
+            }
+            return 0;
+        }
+
+        /**
+         * Records the completion of an outgoing transaction.
+         *
+         * @hide
+         */
+        public void onTransactionFinished(long start, Throwable exception) {
+            if (exception != null) {
+                mOutgoingErrorCount.incrementAndGet();
+            }
+            if (start != 0) {
+                mLatency.record((System.nanoTime() - start) / 1000);
+            }
+        }
+
+        long onIncomingTransactionStarted(Parcel data) {
+            final int samplingInterval = sSamplingInterval;
+            if (samplingInterval > 0 && mIncomingCount.incrementAndGet() % samplingInterval == 0) {
+                if (data != null) {
+                    mIncomingPayloadSize.record(data.size());
+                }
+                return System.nanoTime();
+            }
+            return 0;
+        }
+
+        void onIncomingTransactionFinished(long start, boolean failed) {
+            if (failed) {
+                mIncomingErrorCount.incrementAndGet();
+            }
+            if (start != 0) {
+                mExecutionTime.record((System.nanoTime() - start) / 1000);
+            }
+        }
+
+        void reset() {
+            mOutgoingCount.set(0);
+            mOutgoingErrorCount.set(0);
+            mIncomingCount.set(0);
+            mIncomingErrorCount.set(0);
+            mLatency.reset();
+            mExecutionTime.reset();
+            mOutgoingPayloadSize.reset();
+            mIncomingPayloadSize.reset();
+        }
+    }
+
+    /**
+     * The entries of one interface descriptor. Small transaction codes are looked up in an array,
+     * so that Binders can cache their Interface and find entries without hashing or boxing.
+     */
+    static final class Interface {
+        private final String mDescriptor;
+        private volatile Entry[] mEntries = new Entry[0];
+        private final ConcurrentHashMap<Integer, Entry> mOtherEntries = new ConcurrentHashMap<>();
+
+        Interface(String descriptor) {
+            mDescriptor = descriptor;
+        }
+
+        Entry getEntry(int what) {
+            if (what >= 0 && what < MAX_INDEXED_WHAT) {
+                final Entry[] entries = mEntries;
+                Entry entry;
+                if (what < entries.length && (entry = entries[what]) != null) {
+                    return entry;
+                }
+                synchronized (this) {
+                    Entry[] e = mEntries;
+                    if (what >= e.length) {
+                        Entry[] newEntries = new Entry[Math.min(Math.max(what + 1, e.length * 2), MAX_INDEXED_WHAT)];
+                        System.arraycopy(e, 0, newEntries, 0, e.length);
+                        e = newEntries;
+                    } else if (e[what] != null) {
+                        return e[what];
+                    } else {
+                        e = e.clone();
+                    }
+                    entry = newEntry(mDescriptor, what);
+                    e[what] = entry;
+                    mEntries = e;
+                    return entry;
+                }
+            } else {
+                return mOtherEntries.computeIfAbsent(what, (w) -> newEntry(mDescriptor, w));
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics entry of the given interface and transaction code, or null if the
+     * statistics are disabled.
+     *
+     * @hide
+     */
+    public static Entry getEntry(String descriptor, int what) {
+        if (sSamplingInterval == 0) {
+            return null;
+        }
+        return getInterface(descriptor).getEntry(what);
+    }
+
+    static Interface getInterface(String descriptor) {
+        if (descriptor == null) {
+            descriptor = UNKNOWN_DESCRIPTOR;
+        }
+        Interface i = sInterfaces.get(descriptor);
+        if (i == null) {
+            i = sInterfaces.computeIfAbsent(descriptor, (d) -> new Interface(d));
+        }
+        return i;
+    }
+
+    static boolean isEnabled() {
+        return sSamplingInterval > 0;
+    }
+
+    private static Entry newEntry(String descriptor, int what) {
+        Entry entry = new Entry(descriptor, what);
+        synchronized (BinderStats.class) {
+            sEntries.add(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Sets the sampling interval. Latencies, execution times and payload sizes are recorded for
+     * every {@code interval}-th transaction. 0 disables the statistics.
+     */
+    public static void setSamplingInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval < 0");
+        }
+        sSamplingInterval = interval;
+    }
+
+    public static int getSamplingInterval() {
+        return sSamplingInterval;
+    }
+
+    /**
+     * Returns a snapshot of the list of all entries. The entries themselves keep being updated.
+     */
+    public static List<Entry> getEntries() {
+        synchronized (BinderStats.class) {
+            return new ArrayList<>(sEntries);
+        }
+    }
+
+    /**
+     * Resets all statistics.
+     */
+    public static void reset() {
+        for (Entry entry : getEntries()) {
+            entry.reset();
+        }
+    }
+
+    /**
+     * Prints the statistics of all transaction codes whose interface descriptor contains
+     * {@code filter} (all if null), ordered by their total execution time and latency.
+     */
+    public static void dump(PrintWriter pw, String prefix, String filter) {
+        pw.println(prefix + "Sampling interval: " + sSamplingInterval);
+        List<Entry> entries = getEntries();
+        entries.sort((e1, e2) -> Long.compare(e2.mExecutionTime.getSum() + e2.mLatency.getSum(),
+                e1.mExecutionTime.getSum() + e1.mLatency.getSum()));
+        for (Entry entry : entries) {
+            if (filter != null && !entry.mDescriptor.contains(filter)) {
+                continue;
+            }
+            if (entry.getOutgoingCount() == 0 && entry.getIncomingCount() == 0) {
+                continue;
+            }
+            pw.println(prefix + (entry.mDescriptor.isEmpty() ? "<no interface>" : entry.mDescriptor) + " what=" + entry.mWhat);
+            if (entry.getOutgoingCount() > 0) {
+                pw.println(prefix + "  Outgoing: count=" + entry.getOutgoingCount() + ", errors=" + entry.getOutgoingErrorCount());
+                pw.println(prefix + "    Latency [us]: " + entry.mLatency);
+                pw.println(prefix + "    Payload size [B]: " + entry.mOutgoingPayloadSize);
+            }
+            if (entry.getIncomingCount() > 0) {
+                pw.println(prefix + "  Incoming: count=" + entry.getIncomingCount() + ", errors=" + entry.getIncomingErrorCount());
+                pw.println(prefix + "    Execution time [us]: " + entry.mExecutionTime);
+                pw.println(prefix + "    Payload size [B]: " + entry.mIncomingPayloadSize);
+            }
+        }
+    }
+}
@@ -69,7 +69,10 @@ public class Handler {
     final MessageQueue mMessageQueue;
     final Looper mLooper;
     final Callback mCallback;
+    final boolean mAsynchronous;
     Executor mExecutor;
+    // Guarded by the lock of mMessageQueue.
+    MessageQueue.MessageIndex mMessageIndex;
 
     /**
      * Callback interface you can use when instantiating a Handler to avoid having to implement your
@@ -128,6 +131,7 @@ public class Handler {
         }
         mMessageQueue = looper.mMessageQueue;
         mCallback = null;
+        mAsynchronous = false;
     }
 
     /**
@@ -141,6 +145,78 @@ public class Handler {
         }
         mMessageQueue = looper.mMessageQueue;
         mCallback = callback;
+        mAsynchronous = false;
+    }
+
+    /**
+     * Use the provided {@link Looper} instead of the default one and take a callback interface in
+     * which to handle messages. Also set whether the handler should be asynchronous.
+     *
+     * Handlers are synchronous by default unless this constructor is used to make one that is
+     * strictly asynchronous.
+     *
+     * Asynchronous messages represent interrupts or events that do not require global ordering with
+     * respect to synchronous messages. Due asynchronous messages are dispatched ahead of due
+     * synchronous messages and they are not subject to the synchronization barriers introduced by
+     * {@link MessageQueue#postSyncBarrier()}.
+     *
+     * @param looper The looper, must not be null.
+     * @param callback The callback interface in which to handle messages, or null.
+     * @param async If true, the handler calls {@link Message#setAsynchronous(boolean)} for each
+     * {@link Message} that is sent to it or {@link Runnable} that is posted to it.
+     *
+     * @hide
+     */
+    public Handler(Looper looper, Callback callback, boolean async) {
+        mLooper = looper;
+        if (mLooper == null) {
+            throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+        }
+        mMessageQueue = looper.mMessageQueue;
+        mCallback = callback;
+        mAsynchronous = async;
+    }
+
+    /**
+     * Create a new Handler whose posted messages and runnables are not subject to synchronization
+     * barriers (see {@link MessageQueue#postSyncBarrier()}).
+     *
+     * <p>
+     * Messages sent to an async handler are guaranteed to be ordered with respect to one another,
+     * but not necessarily with respect to messages from other Handlers.
+     * </p>
+     *
+     * @param looper the Looper that the new Handler should be bound to
+     * @return a new async Handler instance
+     */
+    public static Handler createAsync(Looper looper) {
+        if (looper == null) {
+            throw new NullPointerException("looper must not be null");
+        }
+        return new Handler(looper, null, true);
+    }
+
+    /**
+     * Create a new Handler whose posted messages and runnables are not subject to synchronization
+     * barriers (see {@link MessageQueue#postSyncBarrier()}).
+     *
+     * <p>
+     * Messages sent to an async handler are guaranteed to be ordered with respect to one another,
+     * but not necessarily with respect to messages from other Handlers.
+     * </p>
+     *
+     * @param looper the Looper that the new Handler should be bound to
+     * @param callback the callback interface in which to handle messages
+     * @return a new async Handler instance
+     */
+    public static Handler createAsync(Looper looper, Callback callback) {
+        if (looper == null) {
+            throw new NullPointerException("looper must not be null");
+        }
+        if (callback == null) {
+            throw new NullPointerException("callback must not be null");
+        }
+        return new Handler(looper, callback, true);
     }
 
     /**
@@ -306,6 +382,51 @@ public class Handler {
         return sendMessageDelayed(message, 0);
     }
 
+    /**
+     * Sends a message unless a message of this handler with the same <em>what</em> code (or, for
+     * messages with a callback, the same callback) is still pending and already due. In that case
+     * the arg1, arg2, obj and data of the pending message are replaced by those of the given
+     * message, which is recycled, and the pending message keeps its position in the message queue.
+     * Delayed messages are not merged into since that would postpone the message. This way a burst of
+     * messages is handled once per distinct key instead of once per message. Finding the pending
+     * message takes constant time as long as all messages with this <em>what</em> code are sent
+     * coalesced.
+     *
+     * <p>
+     * Messages that carry a result promise are never coalesced.
+     *
+     * @return Returns true if the message was successfully placed in to the message queue or merged
+     * into a pending message. Returns false on failure, usually because the looper processing the
+     * message queue is exiting.
+     */
+    public final boolean sendMessageCoalesced(Message message) {
+        boolean sent = false;
+        MessageQueue queue = mMessageQueue;
+        if (queue != null) {
+            message.target = this;
+            if (mAsynchronous) {
+                message.setAsynchronous(true);
+            }
+            sent = queue.enqueueCoalescedMessage(message, SystemClock.uptimeMillis());
+        } else {
+            RuntimeException e = new RuntimeException(this + " sendMessageCoalesced() called with no mQueue");
+            Log.w(LOG_TAG, e.getMessage(), e);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends a Message containing the what and obj values, or replaces the obj value of a pending
+     * message with the same what value. See {@link #sendMessageCoalesced(Message)}.
+     *
+     * @return Returns true if the message was successfully placed in to the message queue or merged
+     * into a pending message. Returns false on failure, usually because the looper processing the
+     * message queue is exiting.
+     */
+    public final boolean sendMessageCoalesced(int what, Object obj) {
+        return sendMessageCoalesced(obtainMessage(what, obj));
+    }
+
     /**
      * Sends a Message containing only the what value.
      *
@@ -382,6 +503,9 @@ public class Handler {
         MessageQueue queue = mMessageQueue;
         if (queue != null) {
             message.target = this;
+            if (mAsynchronous) {
+                message.setAsynchronous(true);
+            }
             sent = queue.enqueueMessage(message, uptimeMillis);
         } else {
             RuntimeException e = new RuntimeException(this + " sendMessageAtTime() called with no mQueue");
@@ -20,9 +20,16 @@ package mindroid.os;
 /**
  * Handy class for starting a new thread that has a looper. The looper can then be used to create
  * handler classes. Note that start() must still be called.
+ *
+ * <p>
+ * A HandlerThread that is created with a {@link LooperGroup} does not start a thread of its own.
+ * Its Looper is run by the carrier threads of the group instead.
  */
 public class HandlerThread extends Thread {
     private Looper mLooper;
+    private int mCapacity = 0;
+    private int mOverflowPolicy = MessageQueue.POLICY_REJECT;
+    private LooperGroup mLooperGroup;
 
     public HandlerThread() {
         super();
@@ -36,6 +43,48 @@ public class HandlerThread extends Thread {
         super(threadGroup, name);
     }
 
+    /**
+     * Creates a HandlerThread whose message queue is bounded.
+     *
+     * @param name The name of the thread.
+     * @param capacity The maximum number of pending messages, or 0 for an unbounded queue.
+     * @param overflowPolicy What to do with messages that are sent to a full queue, see
+     * {@link MessageQueue#setCapacity(int, int)}.
+     */
+    public HandlerThread(String name, int capacity, int overflowPolicy) {
+        this(null, name, capacity, overflowPolicy);
+    }
+
+    /**
+     * Creates a HandlerThread whose message queue is bounded.
+     *
+     * @param threadGroup The thread group.
+     * @param name The name of the thread.
+     * @param capacity The maximum number of pending messages, or 0 for an unbounded queue.
+     * @param overflowPolicy What to do with messages that are sent to a full queue, see
+     * {@link MessageQueue#setCapacity(int, int)}.
+     */
+    public HandlerThread(ThreadGroup threadGroup, String name, int capacity, int overflowPolicy) {
+        super(threadGroup, name);
+        if (capacity < 0 || overflowPolicy < MessageQueue.POLICY_BLOCK || overflowPolicy > MessageQueue.POLICY_COALESCE) {
+            throw new IllegalArgumentException("Invalid capacity or overflow policy");
+        }
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Creates a HandlerThread whose Looper is run by a {@link LooperGroup}.
+     *
+     * @param threadGroup The thread group.
+     * @param name The name of the thread and its Looper.
+     * @param looperGroup The group that runs the Looper, or null to run it on a thread of its own.
+     */
+    public HandlerThread(ThreadGroup threadGroup, String name, LooperGroup looperGroup) {
+        super(threadGroup, name);
+        mLooperGroup = looperGroup;
+    }
+
     /**
      * Call back method that can be explicitly overridden if needed to execute some setup before
      * Looper loops.
@@ -43,9 +92,28 @@ public class HandlerThread extends Thread {
     protected void onLooperPrepared() {
     }
 
+    @Override
+    public synchronized void start() {
+        if (mLooperGroup == null) {
+            super.start();
+            return;
+        }
+        if (mLooper != null) {
+            throw new IllegalThreadStateException();
+        }
+        mLooper = mLooperGroup.newLooper(getName(), getThreadGroup());
+        if (mCapacity > 0) {
+            mLooper.mMessageQueue.setCapacity(mCapacity, mOverflowPolicy);
+        }
+        new Handler(mLooper).post(this::onLooperPrepared);
+    }
+
     @Override
     public void run() {
         Looper.prepare();
+        if (mCapacity > 0) {
+            Looper.myQueue().setCapacity(mCapacity, mOverflowPolicy);
+        }
         synchronized (this) {
             mLooper = Looper.myLooper();
             notifyAll();
@@ -62,6 +130,11 @@ public class HandlerThread extends Thread {
      * @return The looper.
      */
     public Looper getLooper() {
+        if (mLooperGroup != null) {
+            synchronized (this) {
+                return (mLooper != null && !mLooper.isTerminated()) ? mLooper : null;
+            }
+        }
         if (!isAlive()) {
             return null;
         }
@@ -92,4 +165,34 @@ public class HandlerThread extends Thread {
         }
         return false;
     }
+
+    /**
+     * Returns true if the HandlerThread has been started and its Looper has not terminated yet.
+     * Unlike {@link #isAlive()}, this also works for HandlerThreads whose Looper is run by a
+     * {@link LooperGroup}.
+     */
+    public boolean isRunning() {
+        if (mLooperGroup != null) {
+            return getLooper() != null;
+        }
+        return isAlive();
+    }
+
+    /**
+     * Waits for the Looper to terminate after {@link #quit()}. Unlike {@link #join()}, this also
+     * works for HandlerThreads whose Looper is run by a {@link LooperGroup}.
+     */
+    public void awaitTermination() throws InterruptedException {
+        if (mLooperGroup != null) {
+            Looper looper;
+            synchronized (this) {
+                looper = mLooper;
+            }
+            if (looper != null) {
+                looper.awaitTermination();
+            }
+        } else {
+            join();
+        }
+    }
 }
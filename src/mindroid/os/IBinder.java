@@ -80,6 +80,14 @@ public interface IBinder {
      */
     void transact(int what, int num, Object obj, Bundle data, Promise<?> promise, int flags) throws RemoteException;
 
+    /**
+     * Perform a batch of one-way operations with the object. The operations are delivered together
+     * and dispatched in order. The batch is recycled by the Binder.
+     *
+     * @param batch the one-way transactions to send. Must not be null.
+     */
+    void transact(TransactionBatch batch) throws RemoteException;
+
     /**
      * Interface for receiving a callback when the process hosting an IBinder
      * has gone away.
@@ -18,6 +18,12 @@
 package mindroid.os;
 
 import java.lang.ThreadLocal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import mindroid.util.Log;
 
 /**
  * Class used to run a message loop for a thread. Threads by default do not have a message loop
@@ -48,14 +54,45 @@ import java.lang.ThreadLocal;
  *      }
  *  }
  * </pre>
+ *
+ * <p>
+ * Loopers may also be created by a {@link LooperGroup}. Such Loopers do not own a thread but are run
+ * by one of the group's carrier threads whenever they have messages to dispatch.
  */
 public class Looper {
     private static final String LOG_TAG = "Looper";
 
     // sThreadLocal.get() will return null unless you've called prepare().
     static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<>();
+    // All Loopers for inspection purposes, guarded by itself.
+    private static final Map<Looper, Boolean> sLoopers = new WeakHashMap<>();
     final MessageQueue mMessageQueue;
     final Thread mThread;
+    final LooperStats mStats;
+    // Only set for Loopers of a LooperGroup.
+    private final String mName;
+    volatile Thread mCarrierThread;
+    // The thread group whose process the Looper of a LooperGroup belongs to, see Process.myPid().
+    final ThreadGroup mThreadGroup;
+    private final CountDownLatch mTermination = new CountDownLatch(1);
+    private volatile long mSlowDispatchThresholdMs;
+    private volatile SlowDispatchListener mSlowDispatchListener;
+
+    /**
+     * Callback interface for getting notified about messages whose dispatching took longer than the
+     * threshold set by {@link Looper#setSlowDispatchThresholdMs(long)}.
+     */
+    public interface SlowDispatchListener {
+        /**
+         * Called on the Looper thread after a slow message has been dispatched.
+         *
+         * @param looper The Looper that dispatched the message.
+         * @param message The message. It must not be used after this method returns.
+         * @param messageName The name of the message as provided by {@link Handler#getMessageName(Message)}.
+         * @param dispatchTimeMs The dispatch time in milliseconds.
+         */
+        void onSlowDispatch(Looper looper, Message message, String messageName, long dispatchTimeMs);
+    }
 
     /**
      * Initialize the current thread as a looper. This gives you a chance to create handlers that
@@ -81,18 +118,57 @@ public class Looper {
         if (me == null) {
             throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread");
         }
+        if (me.mThread == null) {
+            throw new RuntimeException("Looper " + me.mName + " is run by its LooperGroup");
+        }
         final MessageQueue mq = me.mMessageQueue;
 
         for (;;) {
             Message msg = mq.dequeueMessage();
             if (msg == null) {
                 // No message indicates that the message queue is quitting.
+                me.onQuit();
                 return;
             }
+            me.dispatchMessage(msg);
+        }
+    }
+
+    final void dispatchMessage(Message msg) {
+        final long dispatchStart = System.nanoTime();
+        msg.target.dispatchMessage(msg);
+        final long dispatchEnd = System.nanoTime();
+        mStats.onDispatched(msg, dispatchStart, dispatchEnd);
+
+        final long slowDispatchThresholdMs = mSlowDispatchThresholdMs;
+        if (slowDispatchThresholdMs > 0) {
+            final long dispatchTimeMs = (dispatchEnd - dispatchStart) / 1000000;
+            if (dispatchTimeMs > slowDispatchThresholdMs) {
+                onSlowDispatch(msg, dispatchTimeMs);
+            }
+        }
+        msg.recycle();
+    }
 
-            msg.target.dispatchMessage(msg);
-            msg.recycle();
+    final void onQuit() {
+        synchronized (sLoopers) {
+            sLoopers.remove(this);
         }
+        mTermination.countDown();
+    }
+
+    /**
+     * Returns true once the Looper has quit and dispatches no more messages.
+     */
+    final boolean isTerminated() {
+        return mTermination.getCount() == 0;
+    }
+
+    /**
+     * Waits until the Looper has quit and dispatches no more messages.
+     */
+    final void awaitTermination() throws InterruptedException {
+        mTermination.await();
     }
 
     /**
@@ -114,13 +190,46 @@ public class Looper {
     private Looper(boolean quitAllowed) {
         mMessageQueue = new MessageQueue(quitAllowed);
         mThread = Thread.currentThread();
+        mName = null;
+        mThreadGroup = null;
+        mStats = new LooperStats(mMessageQueue);
+        synchronized (sLoopers) {
+            sLoopers.put(this, Boolean.TRUE);
+        }
+    }
+
+    Looper(String name, ThreadGroup threadGroup, Runnable scheduler) {
+        mMessageQueue = new MessageQueue(true, scheduler);
+        mThread = null;
+        mName = name;
+        mThreadGroup = threadGroup;
+        mStats = new LooperStats(mMessageQueue);
+        synchronized (sLoopers) {
+            sLoopers.put(this, Boolean.TRUE);
+        }
     }
 
     /**
-     * Returns true if the current thread is this looper's thread.
+     * Returns all Loopers that have been prepared and are not yet quit.
+     *
+     * @hide
+     */
+    public static List<Looper> getLoopers() {
+        synchronized (sLoopers) {
+            return new ArrayList<>(sLoopers.keySet());
+        }
+    }
+
+    /**
+     * Returns true if the current thread is this looper's thread. For Loopers of a
+     * {@link LooperGroup}, this is the carrier thread that currently runs the Looper.
      */
     public boolean isCurrentThread() {
-        return Thread.currentThread() == mThread;
+        if (mThread != null) {
+            return Thread.currentThread() == mThread;
+        } else {
+            return sThreadLocal.get() == this;
+        }
     }
 
     /**
@@ -133,10 +242,18 @@ public class Looper {
     }
 
     /**
-     * Return the Thread associated with this Looper.
+     * Return the Thread associated with this Looper. For Loopers of a {@link LooperGroup}, this is
+     * the carrier thread that currently runs the Looper or null if the Looper is not running.
      */
     public Thread getThread() {
-        return mThread;
+        return (mThread != null) ? mThread : mCarrierThread;
+    }
+
+    /**
+     * Returns the name of this Looper, which is the name of its thread for Loopers that own a thread.
+     */
+    public String getName() {
+        return (mThread != null) ? mThread.getName() : mName;
     }
 
     /** @hide */
@@ -144,7 +261,47 @@ public class Looper {
         return mMessageQueue;
     }
 
+    /**
+     * Returns the dispatch statistics of this Looper.
+     */
+    public LooperStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Set a threshold for slow dispatch warnings. If dispatching a message takes longer than the
+     * threshold, the {@link SlowDispatchListener} is notified or, if there is none, a warning is
+     * logged.
+     *
+     * @param slowDispatchThresholdMs The threshold in milliseconds, 0 to disable the warnings.
+     */
+    public void setSlowDispatchThresholdMs(long slowDispatchThresholdMs) {
+        mSlowDispatchThresholdMs = slowDispatchThresholdMs;
+    }
+
+    /**
+     * Set a listener for slow dispatch events, see {@link #setSlowDispatchThresholdMs(long)}.
+     */
+    public void setSlowDispatchListener(SlowDispatchListener listener) {
+        mSlowDispatchListener = listener;
+    }
+
+    private void onSlowDispatch(Message message, long dispatchTimeMs) {
+        final String messageName = message.target.getMessageName(message);
+        final SlowDispatchListener listener = mSlowDispatchListener;
+        if (listener != null) {
+            try {
+                listener.onSlowDispatch(this, message, messageName, dispatchTimeMs);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "SlowDispatchListener threw exception", e);
+            }
+        } else {
+            Log.w(LOG_TAG, "Slow dispatch on looper '" + getName() + "': " + message.target.getClass().getName() + " "
+                    + messageName + " took " + dispatchTimeMs + "ms");
+        }
+    }
+
     public String toString() {
-        return "Looper (" + mThread.getName() + ") {" + Integer.toHexString(System.identityHashCode(this)) + "}";
+        return "Looper (" + getName() + ") {" + Integer.toHexString(System.identityHashCode(this)) + "}";
     }
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2013 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.os;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import mindroid.util.Properties;
+
+/**
+ * A LooperGroup runs many {@link Looper}s on a small, fixed set of carrier threads instead of
+ * pinning one thread per Looper. A Looper of a group is only scheduled onto a carrier thread when it
+ * has due messages to dispatch, and it is never run by more than one carrier thread at a time. So
+ * Handlers of a group Looper keep the same single-threaded semantics as Handlers of a
+ * {@link HandlerThread}, including {@link Looper#myLooper()} and {@link Looper#isCurrentThread()}.
+ *
+ * <p>
+ * Message handlers must not block a carrier thread for long since this delays all other Loopers of
+ * the group that are waiting to be run.
+ *
+ * <pre>
+ * LooperGroup group = new LooperGroup("Services", 4);
+ * Handler handler = new Handler(group.newLooper("Service #1"));
+ * ...
+ * group.quit();
+ * </pre>
+ */
+public class LooperGroup {
+    // Maximum number of messages a Looper dispatches before yielding its carrier thread to other Loopers.
+    private static final int QUANTUM = 64;
+    private final String mName;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final ArrayList<Looper> mLoopers = new ArrayList<>();
+    private boolean mQuitting = false;
+
+    /**
+     * Creates a new LooperGroup.
+     *
+     * @param name The name of the group, used as the name prefix of the carrier threads.
+     * @param threadCount The number of carrier threads.
+     */
+    public LooperGroup(String name, int threadCount) {
+        this(null, name, threadCount);
+    }
+
+    /**
+     * Creates a new LooperGroup.
+     *
+     * @param threadGroup The thread group of the carrier threads.
+     * @param name The name of the group, used as the name prefix of the carrier threads.
+     * @param threadCount The number of carrier threads.
+     */
+    public LooperGroup(ThreadGroup threadGroup, String name, int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Invalid thread count: " + threadCount);
+        }
+        mName = name;
+        mExecutor = new ScheduledThreadPoolExecutor(threadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                return new CarrierThread(threadGroup, r, mName + " #" + mCount.getAndIncrement());
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+        mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Creates the LooperGroup for the Loopers of system services if the system property
+     * {@link Properties#LOOPER_GROUP_SIZE} sets a positive number of carrier threads.
+     *
+     * @param name The name of the group.
+     * @return The LooperGroup, or null if system services run their Loopers on threads of their own.
+     * @hide
+     */
+    public static LooperGroup create(String name) {
+        final int threadCount = Integer.getInteger(Properties.LOOPER_GROUP_SIZE, 0);
+        return (threadCount > 0) ? new LooperGroup(name, threadCount) : null;
+    }
+
+    /**
+     * Creates a new Looper that is run by this group.
+     *
+     * @param name The name of the Looper.
+     * @return The Looper.
+     */
+    public Looper newLooper(String name) {
+        return newLooper(name, null);
+    }
+
+    /**
+     * Creates a new Looper that is run by this group on behalf of a thread group. While the carrier
+     * threads run the Looper, {@link Process#myPid()} returns the process of that thread group and
+     * uncaught exceptions are passed to it.
+     *
+     * @param name The name of the Looper.
+     * @param threadGroup The thread group, or null for the thread group of the carrier threads.
+     * @return The Looper.
+     */
+    Looper newLooper(String name, ThreadGroup threadGroup) {
+        Task task = new Task();
+        Looper looper = new Looper(name, threadGroup, task);
+        task.mLooper = looper;
+        task.mMessageQueue = looper.mMessageQueue;
+        synchronized (this) {
+            if (mQuitting) {
+                throw new IllegalStateException("LooperGroup " + mName + " is quitting");
+            }
+            mLoopers.add(looper);
+        }
+        return looper;
+    }
+
+    /**
+     * Quits all Loopers of this group and terminates the carrier threads once the Loopers are done.
+     */
+    public void quit() {
+        ArrayList<Looper> loopers;
+        synchronized (this) {
+            if (mQuitting) {
+                return;
+            }
+            mQuitting = true;
+            loopers = new ArrayList<>(mLoopers);
+        }
+        for (Looper looper : loopers) {
+            looper.quit();
+        }
+        synchronized (this) {
+            if (mLoopers.isEmpty()) {
+                mExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Waits for the carrier threads to terminate after {@link #quit()}.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return True if the carrier threads terminated.
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the name of this group.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    private void onQuit(Looper looper) {
+        looper.onQuit();
+        synchronized (this) {
+            mLoopers.remove(looper);
+            if (mQuitting && mLoopers.isEmpty()) {
+                mExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * A carrier thread of a LooperGroup.
+     */
+    static final class CarrierThread extends Thread {
+        // The thread group of the Looper that is currently run, see Process.myPid().
+        ThreadGroup mThreadGroup;
+
+        CarrierThread(ThreadGroup threadGroup, Runnable runnable, String name) {
+            super(threadGroup, runnable, name);
+        }
+    }
+
+    /**
+     * Runs a Looper on a carrier thread. The task is submitted to the executor whenever the
+     * Looper's message queue is woken up. mScheduled ensures that at most one instance of the task
+     * is submitted at any time, mWakeupPending catches wakeups that happen while the task runs.
+     */
+    private final class Task implements Runnable {
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+        private volatile boolean mWakeupPending = false;
+        private Looper mLooper;
+        private MessageQueue mMessageQueue;
+        // Timer for the next delayed message, guarded by this.
+        private ScheduledFuture<?> mTimer;
+        private long mTimerTime;
+
+        private final Runnable mTimeout = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Task.this) {
+                    mTimer = null;
+                }
+                Task.this.run();
+            }
+        };
+
+        /**
+         * Called by the message queue on new messages and on quit.
+         */
+        @Override
+        public void run() {
+            mWakeupPending = true;
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(mCarrier);
+            }
+        }
+
+        private final Runnable mCarrier = new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+
+        private void loop() {
+            final Looper looper = mLooper;
+            final MessageQueue mq = mMessageQueue;
+            final CarrierThread carrier = (CarrierThread) Thread.currentThread();
+            boolean idle = false;
+            for (;;) {
+                mWakeupPending = false;
+                int count = 0;
+                looper.mCarrierThread = carrier;
+                carrier.mThreadGroup = looper.mThreadGroup;
+                Looper.sThreadLocal.set(looper);
+                try {
+                    Message msg;
+                    while (count < QUANTUM && (msg = mq.pollMessage()) != null) {
+                        looper.dispatchMessage(msg);
+                        count++;
+                    }
+                    if (count == 0 && !idle && !mq.isQuitting()) {
+                        idle = true;
+                        if (mq.runIdleHandlers()) {
+                            continue;
+                        }
+                    }
+                } catch (Throwable t) {
+                    // Like a Looper thread, a group Looper dies with an uncaught exception.
+                    mq.quit();
+                    cancelTimer();
+                    onQuit(looper);
+                    final Thread.UncaughtExceptionHandler handler = (looper.mThreadGroup != null) ? looper.mThreadGroup : carrier.getUncaughtExceptionHandler();
+                    handler.uncaughtException(carrier, t);
+                    return;
+                } finally {
+                    Looper.sThreadLocal.remove();
+                    carrier.mThreadGroup = null;
+                    looper.mCarrierThread = null;
+                }
+
+                if (mq.isQuitting()) {
+                    cancelTimer();
+                    onQuit(looper);
+                    return;
+                }
+                if (count == QUANTUM) {
+                    // Yield the carrier thread to other Loopers but keep this Looper scheduled.
+                    mExecutor.execute(mCarrier);
+                    return;
+                }
+                if (count > 0) {
+                    idle = false;
+                    continue;
+                }
+
+                mScheduled.set(false);
+                if (mWakeupPending && mScheduled.compareAndSet(false, true)) {
+                    idle = false;
+                    continue;
+                }
+                setTimer(mq.getNextWakeupTime());
+                return;
+            }
+        }
+
+        private synchronized void setTimer(long when) {
+            if (when == Long.MAX_VALUE || (mTimer != null && mTimerTime <= when)) {
+                return;
+            }
+            if (mTimer != null) {
+                mTimer.cancel(false);
+            }
+            mTimerTime = when;
+            mTimer = mExecutor.schedule(mTimeout, when - SystemClock.uptimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void cancelTimer() {
+            if (mTimer != null) {
+                mTimer.cancel(false);
+                mTimer = null;
+            }
+        }
+    }
+}
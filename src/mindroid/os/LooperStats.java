@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.os;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import mindroid.util.Histogram;
+
+/**
+ * Dispatch statistics of a {@link Looper}: the depth of its message queue, the delay between the
+ * delivery time of a message and its dispatching, and the execution time of the handlers broken
+ * down by {@link Handler#getMessageName(Message)}. All durations are in microseconds.
+ *
+ * <p>
+ * The statistics are always enabled. They are only updated by the Looper thread and recording a
+ * dispatch does not allocate memory once a message type has been seen.
+ */
+public final class LooperStats {
+    private static final int MAX_INDEXED_WHAT = 256;
+    private final MessageQueue mMessageQueue;
+    private final Histogram mDispatchDelay = new Histogram();
+    // Entries of callback messages by callback class and of other messages by handler class and 'what'.
+    // Both maps are only accessed by the Looper thread, mEntries is guarded by this.
+    private final IdentityHashMap<Class<?>, Entry> mCallbackEntries = new IdentityHashMap<>();
+    private final IdentityHashMap<Class<?>, MessageEntries> mMessageEntries = new IdentityHashMap<>();
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    /**
+     * Execution time statistics of one message type.
+     */
+    public static final class Entry {
+        private final String mHandlerName;
+        private final String mMessageName;
+        private final Histogram mExecutionTime = new Histogram();
+
+        Entry(String handlerName, String messageName) {
+            mHandlerName = handlerName;
+            mMessageName = messageName;
+        }
+
+        /**
+         * Returns the class name of the handler that dispatched the messages.
+         */
+        public String getHandlerName() {
+            return mHandlerName;
+        }
+
+        /**
+         * Returns the message name as provided by {@link Handler#getMessageName(Message)}.
+         */
+        public String getMessageName() {
+            return mMessageName;
+        }
+
+        /**
+         * Returns the histogram of the handler execution times in microseconds.
+         */
+        public Histogram getExecutionTime() {
+            return mExecutionTime;
+        }
+    }
+
+    /**
+     * The entries of one handler class. Small 'what' values are looked up in an array, so that
+     * recording a dispatch neither hashes nor boxes the 'what' value.
+     */
+    private static final class MessageEntries {
+        private Entry[] mEntries = new Entry[0];
+        private HashMap<Integer, Entry> mOtherEntries;
+
+        Entry get(int what) {
+            if (what >= 0 && what < MAX_INDEXED_WHAT) {
+                return (what < mEntries.length) ? mEntries[what] : null;
+            } else {
+                return (mOtherEntries != null) ? mOtherEntries.get(what) : null;
+            }
+        }
+
+        void put(int what, Entry entry) {
+            if (what >= 0 && what < MAX_INDEXED_WHAT) {
+                if (what >= mEntries.length) {
+                    Entry[] entries = new Entry[Math.min(Math.max(what + 1, mEntries.length * 2), MAX_INDEXED_WHAT)];
+                    System.arraycopy(mEntries, 0, entries, 0, mEntries.length);
+                    mEntries = entries;
+                }
+                mEntries[what] = entry;
+            } else {
+                if (mOtherEntries == null) {
+                    mOtherEntries = new HashMap<>();
+                }
+                mOtherEntries.put(what, entry);
+            }
+        }
+    }
+
+    LooperStats(MessageQueue messageQueue) {
+        mMessageQueue = messageQueue;
+    }
+
+    /**
+     * Returns the number of messages that are currently pending in the message queue.
+     */
+    public int getQueueDepth() {
+        return mMessageQueue.getMessageCount();
+    }
+
+    /**
+     * Returns the maximum number of pending messages since the Looper was created or since the
+     * last call of {@link #reset()}.
+     */
+    public int getMaxQueueDepth() {
+        return mMessageQueue.getMaxMessageCount();
+    }
+
+    /**
+     * Returns the histogram of the delays between the delivery time of a message and the point in
+     * time when it got dispatched, in microseconds.
+     */
+    public Histogram getDispatchDelay() {
+        return mDispatchDelay;
+    }
+
+    /**
+     * Returns the execution time statistics of all message types that have been dispatched so far.
+     */
+    public List<Entry> getEntries() {
+        synchronized (this) {
+            return new ArrayList<>(mEntries);
+        }
+    }
+
+    /**
+     * Resets all statistics.
+     */
+    public void reset() {
+        mMessageQueue.resetMaxMessageCount();
+        mDispatchDelay.reset();
+        synchronized (this) {
+            for (Entry entry : mEntries) {
+                entry.mExecutionTime.reset();
+            }
+        }
+    }
+
+    /**
+     * Prints the statistics, with the message types ordered by their total execution time.
+     */
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "Queue depth: " + getQueueDepth() + " (max " + getMaxQueueDepth() + ")");
+        pw.println(prefix + "Dispatch delay [us]: " + mDispatchDelay);
+        List<Entry> entries = getEntries();
+        entries.sort((e1, e2) -> Long.compare(e2.mExecutionTime.getSum(), e1.mExecutionTime.getSum()));
+        pw.println(prefix + "Execution time [us]:");
+        for (Entry entry : entries) {
+            if (entry.mExecutionTime.getCount() > 0) {
+                pw.println(prefix + "  " + entry.mHandlerName + " " + entry.mMessageName + ": " + entry.mExecutionTime);
+            }
+        }
+    }
+
+    /**
+     * Records the dispatching of a message. Must only be called by the Looper thread.
+     *
+     * @param message The dispatched message.
+     * @param dispatchStart The value of {@link System#nanoTime()} when dispatching started.
+     * @param dispatchEnd The value of {@link System#nanoTime()} when dispatching ended.
+     */
+    void onDispatched(Message message, long dispatchStart, long dispatchEnd) {
+        if (message.when != 0) {
+            // SystemClock.uptimeMillis() is based on System.nanoTime().
+            mDispatchDelay.record(dispatchStart / 1000 - message.when * 1000);
+        }
+        getEntry(message).mExecutionTime.record((dispatchEnd - dispatchStart) / 1000);
+    }
+
+    private Entry getEntry(Message message) {
+        final Handler handler = message.target;
+        if (message.callback != null) {
+            Entry entry = mCallbackEntries.get(message.callback.getClass());
+            if (entry == null) {
+                entry = new Entry(handler.getClass().getName(), handler.getMessageName(message));
+                mCallbackEntries.put(message.callback.getClass(), entry);
+                synchronized (this) {
+                    mEntries.add(entry);
+                }
+            }
+            return entry;
+        } else {
+            MessageEntries entries = mMessageEntries.get(handler.getClass());
+            if (entries == null) {
+                entries = new MessageEntries();
+                mMessageEntries.put(handler.getClass(), entries);
+            }
+            Entry entry = entries.get(message.what);
+            if (entry == null) {
+                entry = new Entry(handler.getClass().getName(), handler.getMessageName(message));
+                entries.put(message.what, entry);
+                synchronized (this) {
+                    mEntries.add(entry);
+                }
+            }
+            return entry;
+        }
+    }
+}
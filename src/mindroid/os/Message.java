@@ -17,6 +17,8 @@
 
 package mindroid.os;
 
+import java.util.concurrent.atomic.LongAdder;
+import mindroid.util.Properties;
 import mindroid.util.concurrent.Promise;
 
 /**
@@ -29,6 +31,13 @@ import mindroid.util.concurrent.Promise;
  * {@link #obtain Message.obtain()} or one of the {@link Handler#obtainMessage
  * Handler.obtainMessage()} methods, which will pull them from a pool of recycled objects.
  * </p>
+ *
+ * <p>
+ * Each thread caches a few recycled messages in a thread-local pool, so that obtaining and recycling
+ * messages usually does not need any synchronization. Thread-local pools exchange messages in batches
+ * with a shared pool whose maximum size can be configured with the system property
+ * {@link Properties#MESSAGE_POOL_SIZE}.
+ * </p>
  */
 public final class Message {
     /**
@@ -57,10 +66,17 @@ public final class Message {
 
     /*package*/ static final int FLAG_IN_USE = 1 << 0;
 
+    /** If set message is asynchronous */
+    /*package*/ static final int FLAG_ASYNCHRONOUS = 1 << 1;
+
     /*package*/ int flags;
 
     /*package*/ long when;
 
+    /*package*/ long sequence;
+
+    /*package*/ int heapIndex = -1;
+
     /*package*/ Bundle data;
 
     /*package*/ Handler target;
@@ -70,27 +86,64 @@ public final class Message {
     Message prevMessage;
     Message nextMessage;
 
+    // Links of the MessageQueue.MessageIndex of the target Handler.
+    Message prevWhatMessage;
+    Message nextWhatMessage;
+    Message prevCallbackMessage;
+    Message nextCallbackMessage;
+
     private static final Object sMessagePoolLock = new Object();
     private static Message sMessagePool;
     private static int sMessagePoolSize = 0;
 
-    private static final int MAX_MESSAGE_POOL_SIZE = 42;
+    private static final int MAX_MESSAGE_POOL_SIZE = Math.max(Integer.getInteger(Properties.MESSAGE_POOL_SIZE, 42), 0);
+    private static final int MAX_LOCAL_MESSAGE_POOL_SIZE = Math.min(16, MAX_MESSAGE_POOL_SIZE);
+
+    private static final ThreadLocal<LocalMessagePool> sLocalMessagePool = new ThreadLocal<LocalMessagePool>() {
+        @Override
+        protected LocalMessagePool initialValue() {
+            return new LocalMessagePool();
+        }
+    };
+    private static final LongAdder sMessagePoolHits = new LongAdder();
+    private static final LongAdder sMessagePoolMisses = new LongAdder();
+
+    private static final class LocalMessagePool {
+        Message mMessages;
+        int mSize;
+    }
 
     /**
      * Return a new Message instance from the global pool. Allows us to avoid allocating new objects
      * in many cases.
      */
     public static Message obtain() {
-        synchronized (sMessagePoolLock) {
-            if (sMessagePool != null) {
-                Message message = sMessagePool;
-                sMessagePool = message.nextMessage;
-                message.nextMessage = null;
-                message.flags = 0;
-                sMessagePoolSize--;
-                return message;
+        final LocalMessagePool localMessagePool = sLocalMessagePool.get();
+        // Racy read of sMessagePool, a stale value only causes an allocation.
+        if (localMessagePool.mMessages == null && sMessagePool != null) {
+            // Take a batch of messages from the shared pool.
+            synchronized (sMessagePoolLock) {
+                while (sMessagePool != null && localMessagePool.mSize < MAX_LOCAL_MESSAGE_POOL_SIZE / 2 + 1) {
+                    Message message = sMessagePool;
+                    sMessagePool = message.nextMessage;
+                    sMessagePoolSize--;
+                    message.nextMessage = localMessagePool.mMessages;
+                    localMessagePool.mMessages = message;
+                    localMessagePool.mSize++;
+                }
             }
         }
+
+        Message message = localMessagePool.mMessages;
+        if (message != null) {
+            localMessagePool.mMessages = message.nextMessage;
+            localMessagePool.mSize--;
+            message.nextMessage = null;
+            message.flags = 0;
+            sMessagePoolHits.increment();
+            return message;
+        }
+        sMessagePoolMisses.increment();
         return new Message();
     }
 
@@ -237,6 +290,8 @@ public final class Message {
         arg2 = 0;
         obj = null;
         when = 0;
+        sequence = 0;
+        heapIndex = -1;
         target = null;
         callback = null;
         data = null;
@@ -244,14 +299,64 @@ public final class Message {
         sendingPid = -1;
         prevMessage = null;
         nextMessage = null;
+        prevWhatMessage = null;
+        nextWhatMessage = null;
+        prevCallbackMessage = null;
+        nextCallbackMessage = null;
 
-        synchronized (sMessagePoolLock) {
-            if (sMessagePoolSize < MAX_MESSAGE_POOL_SIZE) {
-                nextMessage = sMessagePool;
-                sMessagePool = this;
-                sMessagePoolSize++;
+        if (MAX_LOCAL_MESSAGE_POOL_SIZE == 0) {
+            return;
+        }
+        final LocalMessagePool localMessagePool = sLocalMessagePool.get();
+        if (localMessagePool.mSize >= MAX_LOCAL_MESSAGE_POOL_SIZE) {
+            // Hand over half of the thread-local messages to the shared pool, drop them if it is full.
+            synchronized (sMessagePoolLock) {
+                while (localMessagePool.mSize > MAX_LOCAL_MESSAGE_POOL_SIZE / 2) {
+                    Message message = localMessagePool.mMessages;
+                    localMessagePool.mMessages = message.nextMessage;
+                    localMessagePool.mSize--;
+                    if (sMessagePoolSize < MAX_MESSAGE_POOL_SIZE) {
+                        message.nextMessage = sMessagePool;
+                        sMessagePool = message;
+                        sMessagePoolSize++;
+                    } else {
+                        message.nextMessage = null;
+                    }
+                }
             }
         }
+        nextMessage = localMessagePool.mMessages;
+        localMessagePool.mMessages = this;
+        localMessagePool.mSize++;
+    }
+
+    /**
+     * Returns the number of {@link #obtain()} calls that were served from the message pool.
+     *
+     * @hide
+     */
+    public static long getPoolHitCount() {
+        return sMessagePoolHits.sum();
+    }
+
+    /**
+     * Returns the number of {@link #obtain()} calls that had to allocate a new message.
+     *
+     * @hide
+     */
+    public static long getPoolMissCount() {
+        return sMessagePoolMisses.sum();
+    }
+
+    /**
+     * Returns the number of messages in the shared message pool.
+     *
+     * @hide
+     */
+    public static int getPoolSize() {
+        synchronized (sMessagePoolLock) {
+            return sMessagePoolSize;
+        }
     }
 
     /**
@@ -348,6 +453,40 @@ public final class Message {
         target.sendMessage(this);
     }
 
+    /**
+     * Returns true if the message is asynchronous, meaning that it is not subject to
+     * {@link Looper} synchronization barriers.
+     *
+     * @return True if the message is asynchronous.
+     *
+     * @see #setAsynchronous(boolean)
+     */
+    public boolean isAsynchronous() {
+        return (flags & FLAG_ASYNCHRONOUS) != 0;
+    }
+
+    /**
+     * Sets whether the message is asynchronous, meaning that it is not subject to {@link Looper}
+     * synchronization barriers.
+     * <p>
+     * Asynchronous messages are dispatched through a separate lane of the {@link MessageQueue}.
+     * Once they are due, they are dispatched ahead of all due synchronous messages and they are
+     * exempt from synchronization barriers. Use them for latency-critical control messages that
+     * must not wait behind a backlog of ordinary messages.
+     * </p>
+     *
+     * @param async True if the message is asynchronous.
+     *
+     * @see #isAsynchronous()
+     */
+    public void setAsynchronous(boolean async) {
+        if (async) {
+            flags |= FLAG_ASYNCHRONOUS;
+        } else {
+            flags &= ~FLAG_ASYNCHRONOUS;
+        }
+    }
+
     /*package*/ boolean isInUse() {
         return ((flags & FLAG_IN_USE) == FLAG_IN_USE);
     }
@@ -17,7 +17,14 @@
 
 package mindroid.os;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import mindroid.util.Log;
+import mindroid.util.concurrent.Promise;
 
 /**
  * Low-level class holding the list of messages to be dispatched by a {@link Looper}. Messages are
@@ -27,19 +34,221 @@ import mindroid.util.Log;
  * <p>
  * You can retrieve the MessageQueue for the current thread with {@link Looper#myQueue()
  * Looper.myQueue()}.
+ *
+ * <p>
+ * Senders never take the queue's lock. New messages are pushed onto a lock-free inbox (a
+ * multi-producer single-consumer stack) and the Looper thread is woken up using
+ * {@link LockSupport#unpark(Thread)} if it is blocked. The inbox is drained by the holder of the
+ * queue's lock, which sorts the messages into FIFO lists for messages that are already due and a
+ * binary min-heap for delayed messages. Messages with the same delivery time are always dispatched in
+ * the order in which they were enqueued.
+ *
+ * <p>
+ * Asynchronous messages (see {@link Message#setAsynchronous(boolean)}) are kept in a separate lane.
+ * When they are due, they are dispatched ahead of all due synchronous messages, which lets
+ * latency-critical messages bypass a backlog without reordering the ordinary message stream.
+ * Synchronization barriers (see {@link #postSyncBarrier()}) stall the synchronous messages that
+ * are due after the barrier until it is removed, while asynchronous messages keep flowing.
+ *
+ * <p>
+ * All pending messages of a Handler are additionally indexed by their <em>what</em> code and by
+ * their callback, so that {@link Handler#hasMessages(int)}, {@link Handler#removeMessages(int)},
+ * {@link Handler#removeCallbacks(Runnable)} and {@link Handler#removeCallbacksAndMessages(Object)}
+ * only visit the matching messages instead of scanning the whole queue.
+ *
+ * <p>
+ * The Looper thread takes all due messages (up to a batch size limit) out of the queue with a
+ * single lock acquisition and then dispatches this batch without taking the lock again. Messages of
+ * the current batch can still be removed until they are dispatched.
+ *
+ * <p>
+ * A MessageQueue is unbounded by default. {@link #setCapacity(int, int)} limits the number of
+ * pending messages and selects what happens to a message that is sent to a full queue: the sender
+ * blocks until there is space ({@link #POLICY_BLOCK}), the message is rejected
+ * ({@link #POLICY_REJECT}), the oldest pending message is dropped ({@link #POLICY_DROP_OLDEST}) or
+ * the message is merged into a pending message with the same key ({@link #POLICY_COALESCE}).
  */
 public class MessageQueue {
     private static final String LOG_TAG = "MessageQueue";
     private static final boolean DEBUG = false;
     private static final int STARVATION_DELAY = 1000; // ms
+    private static final int INITIAL_HEAP_CAPACITY = 16;
+    private static final int MAX_BATCH_SIZE = 32;
+    private static final int MATCH_ANY = 0;
+    private static final int MATCH_WHAT = 1;
+    private static final int MATCH_CALLBACK = 2;
+
+    /**
+     * Overflow policy: the sender blocks until there is space in the message queue. Senders on the
+     * Looper's own thread are rejected instead since they would wait forever. So are senders on the
+     * carrier threads of a {@link LooperGroup}, since a parked carrier might be the one that is
+     * needed to drain the queue.
+     */
+    public static final int POLICY_BLOCK = 0;
+    /**
+     * Overflow policy: the message is rejected and {@link Handler#sendMessage(Message)} returns
+     * false.
+     */
+    public static final int POLICY_REJECT = 1;
+    /**
+     * Overflow policy: the oldest pending message is dropped to make room for the new message. If
+     * the dropped message carries a result promise, the promise is completed with a
+     * {@link RemoteException}.
+     */
+    public static final int POLICY_DROP_OLDEST = 2;
+    /**
+     * Overflow policy: the contents of the message (arg1, arg2, obj and data) replace the contents
+     * of a pending message of the same Handler with the same <em>what</em> code or callback that is
+     * due no later than the message. The pending message keeps its position in the queue. If there
+     * is no such message, the message is rejected.
+     */
+    public static final int POLICY_COALESCE = 3;
+
+    private static final AtomicReferenceFieldUpdater<MessageQueue, Message> sInboxUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(MessageQueue.class, Message.class, "mInbox");
     private final boolean mQuitAllowed;
+    // Number of pending messages that have not been taken out of the queue for dispatching yet.
+    private final AtomicInteger mSize = new AtomicInteger(0);
+    private volatile int mCapacity = Integer.MAX_VALUE;
+    private volatile int mOverflowPolicy = POLICY_REJECT;
+    // Senders waiting for space in the queue.
+    private final Object mCapacityLock = new Object();
+    private volatile int mBlockedSenders = 0;
 
-    Message mHeadMessage;
-    Message mTailMessage;
-    private boolean mQuitting;
+    // Lock-free stack of newly enqueued messages (in reverse order), linked via Message.nextMessage.
+    private volatile Message mInbox;
+    // Due messages of the synchronous and the asynchronous lane.
+    private final MessageList mMessages = new MessageList();
+    private final MessageList mAsyncMessages = new MessageList();
+    // Messages that were not yet due when they got drained from the inbox, ordered by (when, sequence).
+    private Message[] mDelayedMessages = new Message[INITIAL_HEAP_CAPACITY];
+    private int mDelayedMessageCount;
+    private long mSequence;
+    private int mNextBarrierToken;
+    // Number of drained messages that have not been taken out of the queue yet, and its maximum.
+    private int mMessageCount;
+    private int mMaxMessageCount;
+    // Due messages taken out of the queue by the Looper thread, claimed one by one via getAndSet().
+    private final AtomicReferenceArray<Message> mBatch = new AtomicReferenceArray<>(MAX_BATCH_SIZE);
+    private int mBatchSize;
+    private int mBatchPosition;
+    private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<>();
+    private IdleHandler[] mPendingIdleHandlers;
+    private volatile boolean mQuitting;
+    private volatile Thread mBlockedThread;
+    // Written by the Looper thread, read by LooperGroup timers on other threads.
+    private volatile long mNextWakeupTime;
+    // Schedules the Looper on its LooperGroup, null if the Looper has a thread of its own.
+    private final Runnable mScheduler;
+
+    /**
+     * Callback interface for discovering when a thread is going to block waiting for more messages.
+     */
+    public static interface IdleHandler {
+        /**
+         * Called when the message queue has run out of messages and will now wait for more. Return
+         * true to keep your idle handler active, false to have it removed. This may be called if
+         * there are still messages pending in the queue, but they are all scheduled to be
+         * dispatched after the current time.
+         */
+        boolean queueIdle();
+    }
 
     MessageQueue(boolean quitAllowed) {
+        this(quitAllowed, null);
+    }
+
+    MessageQueue(boolean quitAllowed, Runnable scheduler) {
         mQuitAllowed = quitAllowed;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Returns true if the looper has no pending messages which are due to be processed.
+     *
+     * <p>
+     * This method is safe to call from any thread.
+     *
+     * @return True if the looper is idle.
+     */
+    public boolean isIdle() {
+        synchronized (this) {
+            drainInbox();
+            for (int i = mBatchPosition; i < mBatchSize; i++) {
+                if (mBatch.get(i) != null) {
+                    return false;
+                }
+            }
+            promoteDelayedMessages(SystemClock.uptimeMillis());
+            return nextMessage() == null;
+        }
+    }
+
+    /**
+     * Add a new {@link IdleHandler} to this message queue. This may be removed automatically for
+     * you by returning false from {@link IdleHandler#queueIdle IdleHandler.queueIdle()} when it is
+     * invoked, or explicitly removing it with {@link #removeIdleHandler}.
+     *
+     * <p>
+     * This method is safe to call from any thread.
+     *
+     * @param handler The IdleHandler to be added.
+     */
+    public void addIdleHandler(IdleHandler handler) {
+        if (handler == null) {
+            throw new NullPointerException("Can't add a null IdleHandler");
+        }
+        synchronized (this) {
+            mIdleHandlers.add(handler);
+        }
+    }
+
+    /**
+     * Remove an {@link IdleHandler} from the queue that was previously added with
+     * {@link #addIdleHandler}. If the given object is not currently in the idle list, nothing is
+     * done.
+     *
+     * <p>
+     * This method is safe to call from any thread.
+     *
+     * @param handler The IdleHandler to be removed.
+     */
+    public void removeIdleHandler(IdleHandler handler) {
+        synchronized (this) {
+            mIdleHandlers.remove(handler);
+        }
+    }
+
+    /**
+     * Limits the number of pending messages. Messages that are currently being dispatched do not
+     * count against the capacity.
+     *
+     * <p>
+     * This method is safe to call from any thread.
+     *
+     * @param capacity The maximum number of pending messages, or 0 for an unbounded queue.
+     * @param overflowPolicy What to do with messages that are sent to a full queue, one of
+     * {@link #POLICY_BLOCK}, {@link #POLICY_REJECT}, {@link #POLICY_DROP_OLDEST} or
+     * {@link #POLICY_COALESCE}.
+     */
+    public void setCapacity(int capacity, int overflowPolicy) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (overflowPolicy < POLICY_BLOCK || overflowPolicy > POLICY_COALESCE) {
+            throw new IllegalArgumentException("Invalid overflow policy: " + overflowPolicy);
+        }
+        mOverflowPolicy = overflowPolicy;
+        mCapacity = (capacity > 0) ? capacity : Integer.MAX_VALUE;
+        releaseCapacity(0);
+    }
+
+    /**
+     * Returns the capacity of this message queue, or 0 if it is unbounded.
+     */
+    public int getCapacity() {
+        final int capacity = mCapacity;
+        return (capacity != Integer.MAX_VALUE) ? capacity : 0;
     }
 
     final void quit() {
@@ -53,17 +262,26 @@ public class MessageQueue {
             }
             mQuitting = true;
 
-            Message curMessage = mHeadMessage;
-            while (curMessage != null) {
-                Message nextMessage = curMessage.nextMessage;
-                curMessage.recycle();
-                curMessage = nextMessage;
+            recycleMessages(sInboxUpdater.getAndSet(this, null));
+            for (int i = mBatchPosition; i < mBatchSize; i++) {
+                Message message = mBatch.getAndSet(i, null);
+                if (message != null) {
+                    message.recycle();
+                }
+            }
+            while (mMessages.mHeadMessage != null) {
+                removeMessage(mMessages.mHeadMessage);
+            }
+            while (mAsyncMessages.mHeadMessage != null) {
+                removeMessage(mAsyncMessages.mHeadMessage);
+            }
+            while (mDelayedMessageCount > 0) {
+                removeMessage(mDelayedMessages[mDelayedMessageCount - 1]);
             }
-            mHeadMessage = null;
-            mTailMessage = null;
-
-            notify();
         }
+
+        releaseCapacity(0);
+        wake();
     }
 
     final boolean enqueueMessage(Message message, long when) {
@@ -71,95 +289,178 @@ public class MessageQueue {
             throw new IllegalArgumentException("Message must have a target");
         }
 
-        synchronized (this) {
-            if (message.isInUse()) {
-                throw new IllegalStateException(message + ": This message is already in use");
+        if (message.isInUse()) {
+            throw new IllegalStateException(message + ": This message is already in use");
+        }
+
+        if (mQuitting) {
+            IllegalStateException e = new IllegalStateException(message.target + " is sending a message to a Handler on a dead thread");
+            Log.w(LOG_TAG, e.getMessage(), e);
+            message.recycle();
+            return false;
+        }
+
+        if (mSize.getAndIncrement() >= mCapacity) {
+            mSize.decrementAndGet();
+            return enqueueMessageOnOverflow(message, when);
+        }
+
+        pushMessage(message, when);
+        return true;
+    }
+
+    /**
+     * Pushes the message onto the lock-free inbox. The caller must have accounted for the message
+     * in mSize.
+     */
+    private void pushMessage(Message message, long when) {
+        message.markInUse();
+        message.when = when;
+
+        Message inbox;
+        do {
+            inbox = mInbox;
+            message.nextMessage = inbox;
+        } while (!sInboxUpdater.compareAndSet(this, inbox, message));
+
+        if (mQuitting) {
+            // The queue started quitting while the message was pushed onto the inbox.
+            synchronized (this) {
+                recycleMessages(sInboxUpdater.getAndSet(this, null));
             }
+        } else {
+            wake();
+        }
+    }
 
-            if (mQuitting) {
-                IllegalStateException e = new IllegalStateException(message.target + " is sending a message to a Handler on a dead thread");
-                Log.w(LOG_TAG, e.getMessage(), e);
-                message.recycle();
-                return false;
+    final Message dequeueMessage() {
+        boolean idle = false;
+        for (;;) {
+            Message message = pollMessage();
+            if (message != null || mQuitting) {
+                return message;
             }
 
-            message.markInUse();
-            message.when = when;
+            // If first time idle, then run the idle handlers. While calling an idle handler, a new
+            // message could have been delivered so go back and look again for a pending message
+            // without waiting.
+            if (!idle) {
+                idle = true;
+                if (runIdleHandlers()) {
+                    continue;
+                }
+            }
 
-            if (mHeadMessage == null || when == 0 || when < mHeadMessage.when) {
-                Message oldHeadMessage = mHeadMessage;
-                mHeadMessage = message;
-                if (oldHeadMessage != null) {
-                    oldHeadMessage.prevMessage = mHeadMessage;
+            mBlockedThread = Thread.currentThread();
+            // Re-check the inbox after publishing the blocked thread to not miss any wakeups.
+            if (mInbox == null && !mQuitting) {
+                if (mNextWakeupTime == Long.MAX_VALUE) {
+                    LockSupport.park(this);
                 } else {
-                    mTailMessage = mHeadMessage;
-                }
-                mHeadMessage.nextMessage = oldHeadMessage;
-            } else if (when >= mTailMessage.when) {
-                message.prevMessage = mTailMessage;
-                mTailMessage.nextMessage = message;
-                mTailMessage = message;
-            } else {
-                Message curMessage = mTailMessage;
-                Message nextMessage;
-                for (;;) {
-                    nextMessage = curMessage;
-                    curMessage = curMessage.prevMessage;
-                    if (when >= curMessage.when) {
-                        break;
+                    final long timeout = mNextWakeupTime - SystemClock.uptimeMillis();
+                    if (timeout > 0) {
+                        LockSupport.parkNanos(this, timeout * 1000000L);
                     }
                 }
-                message.nextMessage = nextMessage;
-                message.prevMessage = curMessage;
-                nextMessage.prevMessage = message;
-                curMessage.nextMessage = message;
+                // Ignore wakeups.
+                Thread.interrupted();
             }
-            notify();
+            mBlockedThread = null;
         }
-        return true;
     }
 
-    final Message dequeueMessage() {
-        for (;;) {
-            synchronized (this) {
-                if (mQuitting) {
-                    return null;
+    /**
+     * Returns the next due message without blocking, or null if there is none or the queue is
+     * quitting. In the latter case, {@link #getNextWakeupTime()} tells when the next delayed message
+     * will become due. Must only be called by the thread that currently runs the Looper.
+     */
+    final Message pollMessage() {
+        if (mQuitting) {
+            return null;
+        }
+
+        // Dispatch the rest of the current batch without taking the lock.
+        while (mBatchPosition < mBatchSize) {
+            Message message = mBatch.getAndSet(mBatchPosition++, null);
+            if (message != null) {
+                return message;
+            }
+        }
+
+        synchronized (this) {
+            if (mQuitting) {
+                return null;
+            }
+
+            drainInbox();
+
+            final long now = SystemClock.uptimeMillis();
+            promoteDelayedMessages(now);
+            Message message = nextMessage();
+            if (message != null) {
+                // Take all due messages out of the queue.
+                Message nextMessage = takeMessage(message, now);
+                mBatchPosition = 0;
+                mBatchSize = 0;
+                while (mBatchSize < MAX_BATCH_SIZE && (message = nextMessage()) != null) {
+                    mBatch.set(mBatchSize++, takeMessage(message, now));
                 }
+                releaseCapacity(mBatchSize + 1);
+                return nextMessage;
+            }
+            mNextWakeupTime = (mDelayedMessageCount > 0) ? mDelayedMessages[0].when : Long.MAX_VALUE;
+            return null;
+        }
+    }
 
-                final long now = SystemClock.uptimeMillis();
-                Message message = mHeadMessage;
+    /**
+     * Returns the uptime at which the next delayed message becomes due as computed by the last
+     * {@link #pollMessage()} that returned null, or Long.MAX_VALUE if there is none.
+     */
+    final long getNextWakeupTime() {
+        return mNextWakeupTime;
+    }
 
-                if (message != null) {
-                    if (now < message.when) {
-                        try {
-                            wait(Math.min(message.when - now, Integer.MAX_VALUE));
-                        } catch (InterruptedException e) {
-                            // Ignore wakeups.
-                        }
-                    } else {
-                        if (DEBUG) {
-                            if ((now - message.when) > STARVATION_DELAY) {
-                                Log.w(LOG_TAG, "Thread '" + Thread.currentThread().getName() + "' starvation delay: " + (now - message.when) + "ms");
-                            }
-                        }
-
-                        mHeadMessage = message.nextMessage;
-                        if (mHeadMessage != null) {
-                            mHeadMessage.prevMessage = null;
-                        }
-                        message.prevMessage = null;
-                        message.nextMessage = null;
-                        return message;
-                    }
-                } else {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        // Ignore wakeups.
-                    }
+    /**
+     * Runs the idle handlers once. Must only be called by the thread that currently runs the Looper.
+     *
+     * @return True if at least one idle handler was run.
+     */
+    final boolean runIdleHandlers() {
+        final int pendingIdleHandlerCount;
+        synchronized (this) {
+            pendingIdleHandlerCount = mIdleHandlers.size();
+            if (pendingIdleHandlerCount == 0) {
+                return false;
+            }
+            if (mPendingIdleHandlers == null || mPendingIdleHandlers.length < pendingIdleHandlerCount) {
+                mPendingIdleHandlers = new IdleHandler[Math.max(pendingIdleHandlerCount, 4)];
+            }
+            mPendingIdleHandlers = mIdleHandlers.toArray(mPendingIdleHandlers);
+        }
+
+        for (int i = 0; i < pendingIdleHandlerCount; i++) {
+            final IdleHandler idler = mPendingIdleHandlers[i];
+            mPendingIdleHandlers[i] = null; // Release the reference to the handler.
+
+            boolean keep = false;
+            try {
+                keep = idler.queueIdle();
+            } catch (Throwable t) {
+                Log.e(LOG_TAG, "IdleHandler threw exception", t);
+            }
+
+            if (!keep) {
+                synchronized (this) {
+                    mIdleHandlers.remove(idler);
                 }
             }
         }
+        return true;
+    }
+
+    final boolean isQuitting() {
+        return mQuitting;
     }
 
     final boolean hasMessages(Handler handler, int what, Object object) {
@@ -168,12 +469,21 @@ public class MessageQueue {
         }
 
         synchronized (this) {
-            Message curMessage = mHeadMessage;
+            drainInbox();
+            if (findBatchedMessages(handler, MATCH_WHAT, what, null, object, false)) {
+                return true;
+            }
+            MessageIndex index = handler.mMessageIndex;
+            if (index == null) {
+                return false;
+            }
+
+            Message curMessage = index.getMessages(what);
             while (curMessage != null) {
-                if (curMessage.target == handler && curMessage.what == what && (object == null || curMessage.obj == object)) {
+                if (object == null || curMessage.obj == object) {
                     return true;
                 }
-                curMessage = curMessage.nextMessage;
+                curMessage = curMessage.nextWhatMessage;
             }
             return false;
         }
@@ -185,12 +495,21 @@ public class MessageQueue {
         }
 
         synchronized (this) {
-            Message curMessage = mHeadMessage;
+            drainInbox();
+            if (findBatchedMessages(handler, MATCH_CALLBACK, 0, runnable, object, false)) {
+                return true;
+            }
+            MessageIndex index = handler.mMessageIndex;
+            if (index == null) {
+                return false;
+            }
+
+            Message curMessage = index.getMessages(runnable);
             while (curMessage != null) {
-                if (curMessage.target == handler && curMessage.callback == runnable && (object == null || curMessage.obj == object)) {
+                if (object == null || curMessage.obj == object) {
                     return true;
                 }
-                curMessage = curMessage.nextMessage;
+                curMessage = curMessage.nextCallbackMessage;
             }
             return false;
         }
@@ -204,38 +523,19 @@ public class MessageQueue {
         boolean foundMessage = false;
 
         synchronized (this) {
-            Message curMessage = mHeadMessage;
-
-            // Remove all messages at the front of the message queue.
-            while (curMessage != null && curMessage.target == handler && curMessage.what == what && (object == null || curMessage.obj == object)) {
-                foundMessage = true;
-                Message nextMessage = curMessage.nextMessage;
-                mHeadMessage = nextMessage;
-                if (mHeadMessage != null) {
-                    mHeadMessage.prevMessage = null;
-                } else {
-                    mTailMessage = null;
-                }
-                curMessage.recycle();
-                curMessage = nextMessage;
+            drainInbox();
+            foundMessage = findBatchedMessages(handler, MATCH_WHAT, what, null, object, true);
+            MessageIndex index = handler.mMessageIndex;
+            if (index == null) {
+                return foundMessage;
             }
 
-            // Remove all messages after the front of the message queue.
+            Message curMessage = index.getMessages(what);
             while (curMessage != null) {
-                Message nextMessage = curMessage.nextMessage;
-                if (nextMessage != null) {
-                    if (nextMessage.target == handler && nextMessage.what == what && (object == null || nextMessage.obj == object)) {
-                        foundMessage = true;
-                        Message nextButOneMessage = nextMessage.nextMessage;
-                        if (nextButOneMessage != null) {
-                            nextButOneMessage.prevMessage = curMessage;
-                        } else {
-                            mTailMessage = curMessage;
-                        }
-                        curMessage.nextMessage = nextButOneMessage;
-                        nextMessage.recycle();
-                        continue;
-                    }
+                Message nextMessage = curMessage.nextWhatMessage;
+                if (object == null || curMessage.obj == object) {
+                    foundMessage = true;
+                    removeMessage(curMessage);
                 }
                 curMessage = nextMessage;
             }
@@ -252,38 +552,19 @@ public class MessageQueue {
         boolean foundMessage = false;
 
         synchronized (this) {
-            Message curMessage = mHeadMessage;
-
-            // Remove all messages at the front of the message queue.
-            while (curMessage != null && curMessage.target == handler && curMessage.callback == runnable && (object == null || curMessage.obj == object)) {
-                foundMessage = true;
-                Message nextMessage = curMessage.nextMessage;
-                mHeadMessage = nextMessage;
-                if (mHeadMessage != null) {
-                    mHeadMessage.prevMessage = null;
-                } else {
-                    mTailMessage = null;
-                }
-                curMessage.recycle();
-                curMessage = nextMessage;
+            drainInbox();
+            foundMessage = findBatchedMessages(handler, MATCH_CALLBACK, 0, runnable, object, true);
+            MessageIndex index = handler.mMessageIndex;
+            if (index == null) {
+                return foundMessage;
             }
 
-            // Remove all messages after the front of the message queue.
+            Message curMessage = index.getMessages(runnable);
             while (curMessage != null) {
-                Message nextMessage = curMessage.nextMessage;
-                if (nextMessage != null) {
-                    if (nextMessage.target == handler && nextMessage.callback == runnable && (object == null || nextMessage.obj == object)) {
-                        foundMessage = true;
-                        Message nextButOneMessage = nextMessage.nextMessage;
-                        if (nextButOneMessage != null) {
-                            nextButOneMessage.prevMessage = curMessage;
-                        } else {
-                            mTailMessage = curMessage;
-                        }
-                        curMessage.nextMessage = nextButOneMessage;
-                        nextMessage.recycle();
-                        continue;
-                    }
+                Message nextMessage = curMessage.nextCallbackMessage;
+                if (object == null || curMessage.obj == object) {
+                    foundMessage = true;
+                    removeMessage(curMessage);
                 }
                 curMessage = nextMessage;
             }
@@ -300,43 +581,728 @@ public class MessageQueue {
         boolean foundMessage = false;
 
         synchronized (this) {
-            Message curMessage = mHeadMessage;
+            drainInbox();
+            foundMessage = findBatchedMessages(handler, MATCH_ANY, 0, null, object, true);
+            MessageIndex index = handler.mMessageIndex;
+            if (index == null) {
+                return foundMessage;
+            }
 
-            // Remove all messages at the front of the message queue.
-            while (curMessage != null && curMessage.target == handler && (object == null || curMessage.obj == object)) {
-                foundMessage = true;
-                Message nextMessage = curMessage.nextMessage;
-                mHeadMessage = nextMessage;
-                if (mHeadMessage != null) {
-                    mHeadMessage.prevMessage = null;
+            // Every message is linked into exactly one 'what' chain.
+            int slot = 0;
+            while (slot < index.capacity()) {
+                Message curMessage = index.getMessagesAt(slot);
+                if (curMessage == null) {
+                    slot++;
+                    continue;
+                }
+                final int what = curMessage.what;
+                while (curMessage != null) {
+                    Message nextMessage = curMessage.nextWhatMessage;
+                    if (object == null || curMessage.obj == object) {
+                        foundMessage = true;
+                        removeMessage(curMessage);
+                    }
+                    curMessage = nextMessage;
+                }
+                // If the chain became empty, another chain may have been shifted into this slot.
+                curMessage = index.getMessagesAt(slot);
+                if (curMessage == null || curMessage.what == what) {
+                    slot++;
+                }
+            }
+        }
+
+        return foundMessage;
+    }
+
+    final boolean enqueueCoalescedMessage(Message message, long when) {
+        if (message.target == null) {
+            throw new IllegalArgumentException("Message must have a target");
+        }
+
+        if (message.isInUse()) {
+            throw new IllegalStateException(message + ": This message is already in use");
+        }
+
+        synchronized (this) {
+            drainInbox();
+            if (coalesceMessage(message, when)) {
+                return true;
+            }
+            if (mOverflowPolicy != POLICY_BLOCK) {
+                // Enqueue while holding the lock, so that concurrent coalesced sends find the message.
+                return enqueueMessage(message, when);
+            }
+        }
+        // Blocking senders must not hold the lock.
+        return enqueueMessage(message, when);
+    }
+
+    /**
+     * Posts a synchronization barrier to the Looper's message queue.
+     *
+     * <p>
+     * Message processing occurs as usual until the message queue encounters the synchronization
+     * barrier that has been posted. When the barrier is encountered, later synchronous messages in
+     * the queue are stalled (prevented from being executed) until the barrier is released by calling
+     * {@link #removeSyncBarrier} and specifying the token that identifies the synchronization
+     * barrier.
+     *
+     * <p>
+     * This method is used to immediately postpone execution of all subsequently posted synchronous
+     * messages until a condition is met that releases the barrier. Asynchronous messages (see
+     * {@link Message#isAsynchronous}) are exempt from the barrier and continue to be processed as
+     * usual.
+     *
+     * <p>
+     * This call must be always matched by a call to {@link #removeSyncBarrier} with the same token
+     * to ensure that the message queue resumes normal operation. Otherwise the application will
+     * probably hang!
+     *
+     * @return A token that uniquely identifies the barrier. This token must be passed to
+     * {@link #removeSyncBarrier} to release the barrier.
+     *
+     * @hide
+     */
+    public int postSyncBarrier() {
+        synchronized (this) {
+            drainInbox();
+            final long now = SystemClock.uptimeMillis();
+            promoteDelayedMessages(now);
+
+            // Enqueue a new sync barrier token. We don't need to wake the queue because the purpose
+            // of a barrier is to stall it.
+            final int token = mNextBarrierToken++;
+            final Message message = Message.obtain();
+            message.markInUse();
+            message.when = now;
+            message.arg1 = token;
+            message.sequence = mSequence++;
+            mMessages.insert(message);
+            return token;
+        }
+    }
+
+    /**
+     * Removes a synchronization barrier.
+     *
+     * @param token The synchronization barrier token that was returned by {@link #postSyncBarrier}.
+     *
+     * @throws IllegalStateException if the barrier was not found.
+     *
+     * @hide
+     */
+    public void removeSyncBarrier(int token) {
+        synchronized (this) {
+            Message message = mMessages.mHeadMessage;
+            while (message != null && (message.target != null || message.arg1 != token)) {
+                message = message.nextMessage;
+            }
+            if (message == null) {
+                throw new IllegalStateException("The specified message queue synchronization barrier token has not been posted or has already been removed");
+            }
+            removeMessage(message);
+        }
+
+        // The Looper thread may be blocked on the barrier.
+        wake();
+    }
+
+    /**
+     * Returns the number of pending messages, including the messages of the current dispatch batch.
+     */
+    final int getMessageCount() {
+        synchronized (this) {
+            drainInbox();
+            int count = mMessageCount;
+            for (int i = mBatchPosition; i < mBatchSize; i++) {
+                if (mBatch.get(i) != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the maximum number of pending messages since the queue was created or since the last
+     * call of {@link #resetMaxMessageCount()}.
+     */
+    final int getMaxMessageCount() {
+        synchronized (this) {
+            return mMaxMessageCount;
+        }
+    }
+
+    final void resetMaxMessageCount() {
+        synchronized (this) {
+            mMaxMessageCount = mMessageCount;
+        }
+    }
+
+    private void wake() {
+        if (mScheduler != null) {
+            mScheduler.run();
+            return;
+        }
+        Thread thread = mBlockedThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Moves all messages from the lock-free inbox into the message lists. Must be called while
+     * holding the queue's lock.
+     */
+    private void drainInbox() {
+        Message message = mInbox;
+        if (message == null) {
+            return;
+        }
+        message = sInboxUpdater.getAndSet(this, null);
+
+        // Reverse the inbox to restore the enqueue order.
+        Message curMessage = null;
+        while (message != null) {
+            Message nextMessage = message.nextMessage;
+            message.nextMessage = curMessage;
+            curMessage = message;
+            message = nextMessage;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        while (curMessage != null) {
+            Message nextMessage = curMessage.nextMessage;
+            curMessage.nextMessage = null;
+            curMessage.sequence = mSequence++;
+            if (curMessage.when <= now) {
+                (curMessage.isAsynchronous() ? mAsyncMessages : mMessages).insert(curMessage);
+            } else {
+                insertDelayedMessage(curMessage);
+            }
+            MessageIndex index = curMessage.target.mMessageIndex;
+            if (index == null) {
+                index = new MessageIndex();
+                curMessage.target.mMessageIndex = index;
+            }
+            index.add(curMessage);
+            mMessageCount++;
+            curMessage = nextMessage;
+        }
+        if (mMessageCount > mMaxMessageCount) {
+            mMaxMessageCount = mMessageCount;
+        }
+    }
+
+    private void insertDelayedMessage(Message message) {
+        if (mDelayedMessageCount == mDelayedMessages.length) {
+            Message[] delayedMessages = new Message[mDelayedMessages.length * 2];
+            System.arraycopy(mDelayedMessages, 0, delayedMessages, 0, mDelayedMessageCount);
+            mDelayedMessages = delayedMessages;
+        }
+        siftUp(mDelayedMessageCount++, message);
+    }
+
+    private void unlink(Message message) {
+        final int index = message.heapIndex;
+        if (index >= 0) {
+            message.heapIndex = -1;
+            final int lastIndex = --mDelayedMessageCount;
+            Message lastMessage = mDelayedMessages[lastIndex];
+            mDelayedMessages[lastIndex] = null;
+            if (index != lastIndex) {
+                siftDown(index, lastMessage);
+                if (mDelayedMessages[index] == lastMessage) {
+                    siftUp(index, lastMessage);
+                }
+            }
+        } else {
+            (message.isAsynchronous() ? mAsyncMessages : mMessages).remove(message);
+        }
+    }
+
+    private void siftUp(int index, Message message) {
+        while (index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            Message parentMessage = mDelayedMessages[parentIndex];
+            if (!precedes(message, parentMessage)) {
+                break;
+            }
+            mDelayedMessages[index] = parentMessage;
+            parentMessage.heapIndex = index;
+            index = parentIndex;
+        }
+        mDelayedMessages[index] = message;
+        message.heapIndex = index;
+    }
+
+    private void siftDown(int index, Message message) {
+        final int halfSize = mDelayedMessageCount >>> 1;
+        while (index < halfSize) {
+            int childIndex = (index << 1) + 1;
+            Message childMessage = mDelayedMessages[childIndex];
+            int rightIndex = childIndex + 1;
+            if (rightIndex < mDelayedMessageCount && precedes(mDelayedMessages[rightIndex], childMessage)) {
+                childIndex = rightIndex;
+                childMessage = mDelayedMessages[childIndex];
+            }
+            if (!precedes(childMessage, message)) {
+                break;
+            }
+            mDelayedMessages[index] = childMessage;
+            childMessage.heapIndex = index;
+            index = childIndex;
+        }
+        mDelayedMessages[index] = message;
+        message.heapIndex = index;
+    }
+
+    private static boolean precedes(Message message, Message otherMessage) {
+        return message.when < otherMessage.when || (message.when == otherMessage.when && message.sequence < otherMessage.sequence);
+    }
+
+    /**
+     * Moves all delayed messages that are due into the message lists of their lanes.
+     */
+    private void promoteDelayedMessages(long now) {
+        while (mDelayedMessageCount > 0 && mDelayedMessages[0].when <= now) {
+            Message message = mDelayedMessages[0];
+            unlink(message);
+            (message.isAsynchronous() ? mAsyncMessages : mMessages).insert(message);
+        }
+    }
+
+    /**
+     * Returns the next due message to dispatch. Due asynchronous messages come first, synchronous
+     * messages are stalled by a synchronization barrier (a message without target).
+     */
+    private Message nextMessage() {
+        Message message = mAsyncMessages.mHeadMessage;
+        if (message != null) {
+            return message;
+        }
+        message = mMessages.mHeadMessage;
+        return (message != null && message.target != null) ? message : null;
+    }
+
+    private Message takeMessage(Message message, long now) {
+        if (DEBUG) {
+            if ((now - message.when) > STARVATION_DELAY) {
+                Log.w(LOG_TAG, "Thread '" + Thread.currentThread().getName() + "' starvation delay: " + (now - message.when) + "ms");
+            }
+        }
+
+        unlink(message);
+        message.target.mMessageIndex.remove(message);
+        mMessageCount--;
+        return message;
+    }
+
+    /**
+     * Finds (and optionally removes) matching messages of the current batch that have not been
+     * claimed for dispatching yet. Must be called while holding the queue's lock.
+     */
+    private boolean findBatchedMessages(Handler handler, int match, int what, Runnable runnable, Object object, boolean remove) {
+        boolean foundMessage = false;
+        for (int i = 0; i < mBatchSize; i++) {
+            Message message = mBatch.get(i);
+            // Only the Looper thread clears slots concurrently, so a successful compareAndSet proves
+            // that the message has not been dispatched (and recycled) while its fields were read.
+            if (message != null && message.target == handler
+                    && (match != MATCH_WHAT || message.what == what)
+                    && (match != MATCH_CALLBACK || message.callback == runnable)
+                    && (object == null || message.obj == object)) {
+                if (!remove) {
+                    if (mBatch.get(i) == message) {
+                        return true;
+                    }
+                } else if (mBatch.compareAndSet(i, message, null)) {
+                    foundMessage = true;
+                    message.recycle();
+                }
+            }
+        }
+        return foundMessage;
+    }
+
+    private void removeMessage(Message message) {
+        unlink(message);
+        if (message.target != null) {
+            message.target.mMessageIndex.remove(message);
+            mMessageCount--;
+            releaseCapacity(1);
+        }
+        message.recycle();
+    }
+
+    private boolean enqueueMessageOnOverflow(Message message, long when) {
+        switch (mOverflowPolicy) {
+        case POLICY_BLOCK: {
+            final Looper looper = Looper.myLooper();
+            // Loopers of a LooperGroup have no thread of their own, their sender is a carrier thread.
+            if ((looper == null || (looper.mThread != null && looper.mMessageQueue != this)) && awaitCapacity()) {
+                return enqueueMessage(message, when);
+            }
+            break;
+        }
+        case POLICY_DROP_OLDEST: {
+            Promise<?> droppedResult;
+            synchronized (this) {
+                drainInbox();
+                promoteDelayedMessages(SystemClock.uptimeMillis());
+                Message oldestMessage = oldestMessage();
+                if (oldestMessage == null) {
+                    // All pending messages are about to be dispatched.
+                    break;
+                }
+                // Detach the promise, recycle() would cancel it.
+                droppedResult = oldestMessage.result;
+                oldestMessage.result = null;
+                // The new message takes over the slot of the dropped message in mSize.
+                unlink(oldestMessage);
+                oldestMessage.target.mMessageIndex.remove(oldestMessage);
+                mMessageCount--;
+                oldestMessage.recycle();
+                pushMessage(message, when);
+            }
+            if (droppedResult != null) {
+                droppedResult.completeWith(new RemoteException("Message queue overflow"));
+            }
+            return true;
+        }
+        case POLICY_COALESCE: {
+            synchronized (this) {
+                drainInbox();
+                if (coalesceMessage(message, when)) {
+                    return true;
+                }
+            }
+            break;
+        }
+        default:
+            break;
+        }
+        message.recycle();
+        return false;
+    }
+
+    /**
+     * Waits until the queue has space for another message.
+     *
+     * @return True if there is space, false if the queue is quitting or the sender was interrupted.
+     */
+    private boolean awaitCapacity() {
+        synchronized (mCapacityLock) {
+            mBlockedSenders++;
+            try {
+                while (mSize.get() >= mCapacity && !mQuitting) {
+                    mCapacityLock.wait();
+                }
+                return !mQuitting;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                mBlockedSenders--;
+            }
+        }
+    }
+
+    private void releaseCapacity(int count) {
+        if (count > 0) {
+            mSize.addAndGet(-count);
+        }
+        if (mBlockedSenders > 0) {
+            synchronized (mCapacityLock) {
+                mCapacityLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the pending message that has been waiting the longest, preferring due synchronous
+     * messages over due asynchronous messages over delayed messages. Must be called while holding
+     * the queue's lock.
+     */
+    private Message oldestMessage() {
+        Message message = mMessages.mHeadMessage;
+        while (message != null && message.target == null) {
+            message = message.nextMessage;
+        }
+        if (message == null) {
+            message = mAsyncMessages.mHeadMessage;
+        }
+        if (message == null && mDelayedMessageCount > 0 && mDelayedMessages[0].target != null) {
+            message = mDelayedMessages[0];
+        }
+        return message;
+    }
+
+    /**
+     * Merges the contents of the message into a pending message of the same Handler with the same
+     * <em>what</em> code or callback that is due no later than the message. Messages that carry a
+     * result promise are never merged. Must be called while holding the queue's lock.
+     *
+     * @param message The message.
+     * @param when The delivery time of the message.
+     * @return True if the message has been merged and recycled.
+     */
+    private boolean coalesceMessage(Message message, long when) {
+        if (message.result != null) {
+            return false;
+        }
+        MessageIndex index = message.target.mMessageIndex;
+        if (index == null) {
+            return false;
+        }
+        Message curMessage;
+        if (message.callback != null) {
+            curMessage = index.getMessages(message.callback);
+            while (curMessage != null && (curMessage.result != null || curMessage.when > when)) {
+                curMessage = curMessage.nextCallbackMessage;
+            }
+        } else {
+            curMessage = index.getMessages(message.what);
+            while (curMessage != null && (curMessage.callback != null || curMessage.result != null || curMessage.when > when)) {
+                curMessage = curMessage.nextWhatMessage;
+            }
+        }
+        if (curMessage == null) {
+            return false;
+        }
+        curMessage.arg1 = message.arg1;
+        curMessage.arg2 = message.arg2;
+        curMessage.obj = message.obj;
+        curMessage.data = message.data;
+        curMessage.sendingPid = message.sendingPid;
+        message.recycle();
+        return true;
+    }
+
+    private static void recycleMessages(Message message) {
+        while (message != null) {
+            Message nextMessage = message.nextMessage;
+            message.recycle();
+            message = nextMessage;
+        }
+    }
+
+    /**
+     * Index of the pending messages of a single {@link Handler}. Messages are chained by their
+     * <em>what</em> code (via Message.nextWhatMessage) and, if they carry a callback, by their
+     * callback (via Message.nextCallbackMessage). The index is guarded by the lock of the Handler's
+     * MessageQueue.
+     */
+    static final class MessageIndex {
+        private static final int INITIAL_CAPACITY = 8;
+
+        // Open addressing hash table with linear probing. A slot is free if its message chain is null.
+        private int[] mWhats = new int[INITIAL_CAPACITY];
+        private Message[] mWhatMessages = new Message[INITIAL_CAPACITY];
+        private int mWhatCount;
+        private IdentityHashMap<Runnable, Message> mCallbackMessages;
+
+        Message getMessages(int what) {
+            int slot = find(what);
+            return (slot >= 0) ? mWhatMessages[slot] : null;
+        }
+
+        Message getMessages(Runnable runnable) {
+            return (mCallbackMessages != null) ? mCallbackMessages.get(runnable) : null;
+        }
+
+        int capacity() {
+            return mWhats.length;
+        }
+
+        Message getMessagesAt(int slot) {
+            return mWhatMessages[slot];
+        }
+
+        void add(Message message) {
+            int slot = find(message.what);
+            if (slot < 0) {
+                if ((mWhatCount + 1) * 2 > mWhats.length) {
+                    resize(mWhats.length * 2);
+                }
+                slot = hash(message.what, mWhats.length - 1);
+                while (mWhatMessages[slot] != null) {
+                    slot = (slot + 1) & (mWhats.length - 1);
+                }
+                mWhats[slot] = message.what;
+                mWhatCount++;
+            }
+            Message headMessage = mWhatMessages[slot];
+            message.nextWhatMessage = headMessage;
+            if (headMessage != null) {
+                headMessage.prevWhatMessage = message;
+            }
+            mWhatMessages[slot] = message;
+
+            if (message.callback != null) {
+                if (mCallbackMessages == null) {
+                    mCallbackMessages = new IdentityHashMap<>();
+                }
+                headMessage = mCallbackMessages.put(message.callback, message);
+                message.nextCallbackMessage = headMessage;
+                if (headMessage != null) {
+                    headMessage.prevCallbackMessage = message;
+                }
+            }
+        }
+
+        void remove(Message message) {
+            Message prevMessage = message.prevWhatMessage;
+            Message nextMessage = message.nextWhatMessage;
+            if (prevMessage != null) {
+                prevMessage.nextWhatMessage = nextMessage;
+            } else {
+                int slot = find(message.what);
+                if (nextMessage != null) {
+                    mWhatMessages[slot] = nextMessage;
                 } else {
-                    mTailMessage = null;
+                    delete(slot);
                 }
-                curMessage.recycle();
-                curMessage = nextMessage;
             }
+            if (nextMessage != null) {
+                nextMessage.prevWhatMessage = prevMessage;
+            }
+            message.prevWhatMessage = null;
+            message.nextWhatMessage = null;
 
-            // Remove all messages after the front of the message queue.
-            while (curMessage != null) {
-                Message nextMessage = curMessage.nextMessage;
+            if (message.callback != null) {
+                prevMessage = message.prevCallbackMessage;
+                nextMessage = message.nextCallbackMessage;
+                if (prevMessage != null) {
+                    prevMessage.nextCallbackMessage = nextMessage;
+                } else if (nextMessage != null) {
+                    mCallbackMessages.put(message.callback, nextMessage);
+                } else {
+                    mCallbackMessages.remove(message.callback);
+                }
                 if (nextMessage != null) {
-                    if (nextMessage.target == handler && (object == null || nextMessage.obj == object)) {
-                        foundMessage = true;
-                        Message nextButOneMessage = nextMessage.nextMessage;
-                        if (nextButOneMessage != null) {
-                            nextButOneMessage.prevMessage = curMessage;
-                        } else {
-                            mTailMessage = curMessage;
-                        }
-                        curMessage.nextMessage = nextButOneMessage;
-                        nextMessage.recycle();
-                        continue;
+                    nextMessage.prevCallbackMessage = prevMessage;
+                }
+                message.prevCallbackMessage = null;
+                message.nextCallbackMessage = null;
+            }
+        }
+
+        private int find(int what) {
+            final int mask = mWhats.length - 1;
+            int slot = hash(what, mask);
+            while (mWhatMessages[slot] != null) {
+                if (mWhats[slot] == what) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void delete(int slot) {
+            final int mask = mWhats.length - 1;
+            mWhatMessages[slot] = null;
+            mWhatCount--;
+
+            // Shift back the following entries of the probe sequence to close the gap.
+            int curSlot = slot;
+            for (;;) {
+                curSlot = (curSlot + 1) & mask;
+                if (mWhatMessages[curSlot] == null) {
+                    return;
+                }
+                int homeSlot = hash(mWhats[curSlot], mask);
+                if ((slot <= curSlot) ? (slot < homeSlot && homeSlot <= curSlot) : (slot < homeSlot || homeSlot <= curSlot)) {
+                    continue;
+                }
+                mWhats[slot] = mWhats[curSlot];
+                mWhatMessages[slot] = mWhatMessages[curSlot];
+                mWhatMessages[curSlot] = null;
+                slot = curSlot;
+            }
+        }
+
+        private void resize(int capacity) {
+            int[] whats = mWhats;
+            Message[] whatMessages = mWhatMessages;
+            mWhats = new int[capacity];
+            mWhatMessages = new Message[capacity];
+            final int mask = capacity - 1;
+            for (int i = 0; i < whats.length; i++) {
+                if (whatMessages[i] != null) {
+                    int slot = hash(whats[i], mask);
+                    while (mWhatMessages[slot] != null) {
+                        slot = (slot + 1) & mask;
                     }
+                    mWhats[slot] = whats[i];
+                    mWhatMessages[slot] = whatMessages[i];
                 }
-                curMessage = nextMessage;
             }
         }
 
-        return foundMessage;
+        private static int hash(int what, int mask) {
+            int h = what * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+
+    /**
+     * List of due messages ordered by (when, sequence), except for messages that are enqueued with
+     * a delivery time of 0, which go to the front of the list.
+     */
+    private static final class MessageList {
+        Message mHeadMessage;
+        Message mTailMessage;
+
+        void insert(Message message) {
+            if (mHeadMessage == null || message.when == 0 || precedes(message, mHeadMessage)) {
+                Message oldHeadMessage = mHeadMessage;
+                mHeadMessage = message;
+                if (oldHeadMessage != null) {
+                    oldHeadMessage.prevMessage = mHeadMessage;
+                } else {
+                    mTailMessage = mHeadMessage;
+                }
+                mHeadMessage.nextMessage = oldHeadMessage;
+            } else if (precedes(mTailMessage, message)) {
+                message.prevMessage = mTailMessage;
+                mTailMessage.nextMessage = message;
+                mTailMessage = message;
+            } else {
+                Message curMessage = mTailMessage;
+                Message nextMessage;
+                for (;;) {
+                    nextMessage = curMessage;
+                    curMessage = curMessage.prevMessage;
+                    if (precedes(curMessage, message)) {
+                        break;
+                    }
+                }
+                message.nextMessage = nextMessage;
+                message.prevMessage = curMessage;
+                nextMessage.prevMessage = message;
+                curMessage.nextMessage = message;
+            }
+        }
+
+        void remove(Message message) {
+            Message prevMessage = message.prevMessage;
+            Message nextMessage = message.nextMessage;
+            if (prevMessage != null) {
+                prevMessage.nextMessage = nextMessage;
+            } else {
+                mHeadMessage = nextMessage;
+            }
+            if (nextMessage != null) {
+                nextMessage.prevMessage = prevMessage;
+            } else {
+                mTailMessage = prevMessage;
+            }
+            message.prevMessage = null;
+            message.nextMessage = null;
+        }
     }
 }
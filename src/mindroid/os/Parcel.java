@@ -17,89 +17,323 @@
 
 package mindroid.os;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import mindroid.io.ByteArrayInputStream;
 import mindroid.io.ByteArrayOutputStream;
 import mindroid.io.DataInputStream;
 import mindroid.io.DataOutputStream;
+import mindroid.io.ModifiedUtf8;
 import mindroid.runtime.system.Runtime;
+import mindroid.util.Log;
+import mindroid.util.Properties;
 
+/**
+ * Container for data that is sent through an {@link IBinder}.
+ *
+ * <p>
+ * Parcels are pooled. {@link #obtain()} takes a Parcel including its buffer out of a pool and
+ * {@link #recycle()} puts it back. The pools are organized by buffer size classes, so that a
+ * Parcel that has been used for a large payload does not end up holding a large buffer for small
+ * payloads. Parcels whose buffers grew beyond the largest size class are not pooled.
+ *
+ * <p>
+ * {@link #obtainDirect(int)} returns a Parcel that is backed by a direct {@link ByteBuffer} instead
+ * of a byte array. Its data can be handed to NIO channels via {@link #asByteBuffer()} without
+ * copying it into an intermediate heap buffer. Direct Parcels are pooled separately since
+ * allocating direct memory is expensive. Both kinds of Parcels use the same big-endian wire format
+ * and additionally support absolute-position accessors like {@link #putInt(int, int)} and
+ * {@link #getInt(int)} that do not move the current position.
+ *
+ * <p>
+ * {@link #putString(String)} uses the modified UTF-8 format of {@link java.io.DataOutput} with a
+ * 16-bit length prefix, which other Mindroid implementations understand as well.
+ * {@link #putCompactString(String)} uses a varint length prefix without the 64 KB limit and can
+ * replace repeated strings by back-references, see {@link #setStringTableEnabled(boolean)}.
+ *
+ * <p>
+ * Ownership rules: {@link IBinder#transact} takes ownership of the data Parcel and recycles it
+ * after the transaction has been dispatched (locally after {@link Binder#onTransact} returns,
+ * remotely after it has been written to the transport). The receiver of a reply Parcel owns it and
+ * should recycle it after reading it.
+ *
+ * <p>
+ * Setting the system property {@link Properties#PARCEL_LEAK_DETECTION} to true logs a warning
+ * including the allocation site for every Parcel that is garbage collected without having been
+ * recycled.
+ */
 public final class Parcel {
-    private ByteArrayOutputStream mOutputStream;
+    private static final String LOG_TAG = "Parcel";
+    private static final int[] SIZE_CLASSES = { 256, 4 * 1024, 64 * 1024 };
+    private static final int[] MAX_POOL_SIZES = { 32, 8, 2 };
+    private static final int MAX_POOLED_BUFFER_SIZE = 128 * 1024;
+    private static final int MAX_POOLED_STRING_TABLE_SIZE = 256;
+    // The two low bits of the varint header of compact strings.
+    private static final int STRING_NULL = 0;
+    private static final int STRING_REFERENCE = 1;
+    private static final int STRING_LITERAL = 2;
+    private static final int STRING_LITERAL_REGISTERED = 3;
+    private static final ParcelPool[] sPools = new ParcelPool[SIZE_CLASSES.length];
+    private static final ParcelPool[] sDirectPools = new ParcelPool[SIZE_CLASSES.length];
+    private static final boolean LEAK_DETECTION = Boolean.getBoolean(Properties.PARCEL_LEAK_DETECTION);
+    private static final ReferenceQueue<Parcel> sLeakQueue = new ReferenceQueue<>();
+    private static final Set<LeakReference> sLeakReferences = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    static {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            sPools[i] = new ParcelPool(MAX_POOL_SIZES[i]);
+            sDirectPools[i] = new ParcelPool(MAX_POOL_SIZES[i]);
+        }
+    }
+
+    private final ByteArrayOutputStream mOutputStream;
+    private final DataOutputStream mDataOutputStream;
+    // The buffer of direct Parcels. Its position is the current read or write position.
+    private ByteBuffer mByteBuffer;
     private ByteArrayInputStream mInputStream;
-    private DataOutputStream mDataOutputStream;
     private DataInputStream mDataInputStream;
+    private boolean mInput;
     private Bundle mExtras;
-
-    private Parcel() {
-        mOutputStream = new ByteArrayOutputStream();
-        mDataOutputStream = new DataOutputStream(mOutputStream);
-    }
+    private char[] mChars;
+    private boolean mStringTableEnabled;
+    private HashMap<String, Integer> mStringTable;
+    private ArrayList<String> mStrings;
+    // Parcels that wrap a buffer of their caller are never pooled.
+    private final boolean mPoolable;
+    private boolean mRecycled;
+    private LeakReference mLeakReference;
 
     private Parcel(int size) {
         mOutputStream = new ByteArrayOutputStream(size);
         mDataOutputStream = new DataOutputStream(mOutputStream);
+        mPoolable = true;
     }
 
-    private Parcel(byte[] buffer, int offset, int size) {
-        if (offset == 0 && size == buffer.length) {
-            mOutputStream = new ByteArrayOutputStream(buffer);
-        } else {
-            mOutputStream = new ByteArrayOutputStream(size);
-            mOutputStream.write(buffer, offset, size);
-        }
+    private Parcel(byte[] buffer) {
+        mOutputStream = new ByteArrayOutputStream(buffer);
         mDataOutputStream = new DataOutputStream(mOutputStream);
-        asInput();
+        mPoolable = false;
+    }
+
+    private Parcel(ByteBuffer buffer) {
+        mOutputStream = null;
+        mByteBuffer = buffer;
+        mDataOutputStream = null;
+        mPoolable = true;
     }
 
     /**
      * Retrieve a new Parcel object from the pool.
      */
     public static Parcel obtain() {
-        return new Parcel();
+        return obtain(0);
     }
 
+    /**
+     * Retrieve a new Parcel object from the pool whose buffer can hold at least {@code size} bytes
+     * without growing.
+     */
     public static Parcel obtain(int size) {
-        return new Parcel(size);
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0");
+        }
+        int sizeClass = 0;
+        while (sizeClass < SIZE_CLASSES.length && SIZE_CLASSES[sizeClass] < size) {
+            sizeClass++;
+        }
+        Parcel parcel;
+        if (sizeClass < SIZE_CLASSES.length) {
+            parcel = sPools[sizeClass].acquire();
+            if (parcel == null) {
+                parcel = new Parcel(SIZE_CLASSES[sizeClass]);
+            }
+        } else {
+            parcel = new Parcel(size);
+        }
+        parcel.mRecycled = false;
+        if (LEAK_DETECTION) {
+            parcel.trackLeaks();
+        }
+        return parcel;
+    }
+
+    /**
+     * Retrieve a new Parcel object from the pool that is backed by a direct {@link ByteBuffer}
+     * which can hold at least {@code size} bytes without growing.
+     */
+    public static Parcel obtainDirect(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0");
+        }
+        int sizeClass = 0;
+        while (sizeClass < SIZE_CLASSES.length && SIZE_CLASSES[sizeClass] < size) {
+            sizeClass++;
+        }
+        Parcel parcel;
+        if (sizeClass < SIZE_CLASSES.length) {
+            parcel = sDirectPools[sizeClass].acquire();
+            if (parcel == null) {
+                parcel = new Parcel(ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]));
+            }
+        } else {
+            parcel = new Parcel(ByteBuffer.allocateDirect(size));
+        }
+        parcel.mRecycled = false;
+        if (LEAK_DETECTION) {
+            parcel.trackLeaks();
+        }
+        return parcel;
     }
 
+    /**
+     * Retrieve a new Parcel object in input mode that wraps the given buffer. The buffer must not be
+     * modified while the Parcel is in use.
+     */
     public static Parcel obtain(byte[] buffer) {
         if (buffer == null) {
             throw new NullPointerException();
         }
-        return new Parcel(buffer, 0, buffer.length);
+        Parcel parcel = new Parcel(buffer);
+        if (LEAK_DETECTION) {
+            parcel.trackLeaks();
+        }
+        return parcel.asInput();
     }
 
+    /**
+     * Retrieve a new Parcel object from the pool in input mode that contains a copy of the given
+     * data.
+     */
     public static Parcel obtain(byte[] buffer, int offset, int size) {
         if (buffer == null) {
             throw new NullPointerException();
         }
-        return new Parcel(buffer, offset, size);
+        if (offset == 0 && size == buffer.length) {
+            return obtain(buffer);
+        }
+        Parcel parcel = obtain(size);
+        parcel.mOutputStream.write(buffer, offset, size);
+        return parcel.asInput();
     }
 
     /**
      * Put a Parcel object back into the pool.  You must not touch
      * the object after this call.
+     *
+     * @throws IllegalStateException if the Parcel has already been recycled.
      */
     public final void recycle() {
+        if (mRecycled) {
+            throw new IllegalStateException("Parcel has already been recycled");
+        }
+        mRecycled = true;
+        if (mLeakReference != null) {
+            sLeakReferences.remove(mLeakReference);
+            mLeakReference.clear();
+            mLeakReference = null;
+        }
+        mExtras = null;
+        mInput = false;
+        mStringTableEnabled = false;
+        if (mStringTable != null) {
+            if (mStringTable.size() > MAX_POOLED_STRING_TABLE_SIZE) {
+                mStringTable = null;
+            } else {
+                mStringTable.clear();
+            }
+        }
+        if (mStrings != null) {
+            if (mStrings.size() > MAX_POOLED_STRING_TABLE_SIZE) {
+                mStrings = null;
+            } else {
+                mStrings.clear();
+            }
+        }
+        if (mChars != null && mChars.length > SIZE_CLASSES[1]) {
+            mChars = null;
+        }
+        final int capacity;
+        if (mByteBuffer != null) {
+            mByteBuffer.clear();
+            capacity = mByteBuffer.capacity();
+        } else {
+            mOutputStream.reset();
+            capacity = mOutputStream.getByteArray().length;
+        }
+
+        if (mPoolable && capacity <= MAX_POOLED_BUFFER_SIZE) {
+            int sizeClass = SIZE_CLASSES.length - 1;
+            while (sizeClass > 0 && SIZE_CLASSES[sizeClass] > capacity) {
+                sizeClass--;
+            }
+            (mByteBuffer != null ? sDirectPools : sPools)[sizeClass].release(this);
+        }
+    }
+
+    /**
+     * Returns the number of Parcels that are currently pooled.
+     *
+     * @hide
+     */
+    public static int getPoolSize() {
+        int size = 0;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            size += sPools[i].size() + sDirectPools[i].size();
+        }
+        return size;
+    }
+
+    private void trackLeaks() {
+        LeakReference reference;
+        while ((reference = (LeakReference) sLeakQueue.poll()) != null) {
+            if (sLeakReferences.remove(reference)) {
+                Log.w(LOG_TAG, "A Parcel was garbage collected without having been recycled", reference.mAllocationSite);
+            }
+        }
+        mLeakReference = new LeakReference(this, new Throwable("Parcel obtained here"));
+        sLeakReferences.add(mLeakReference);
     }
 
     /**
      * Returns the total amount of data contained in the parcel.
      */
     public final int size() {
+        if (mByteBuffer != null) {
+            return mInput ? mByteBuffer.limit() : mByteBuffer.position();
+        }
         return mOutputStream.size();
     }
 
+    /**
+     * Returns true if the parcel is backed by a direct {@link ByteBuffer}.
+     *
+     * @see #obtainDirect(int)
+     */
+    public final boolean isDirect() {
+        return mByteBuffer != null;
+    }
+
     /**
      * Write a boolean value into the parcel at the current dataPosition(),
      * growing dataCapacity() if needed.
      */
     public final void putBoolean(boolean value) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            ensureCapacity(1).put((byte) (value ? 1 : 0));
+            return;
+        }
         try {
             mDataOutputStream.writeBoolean(value);
         } catch (IOException e) {
@@ -113,6 +347,10 @@ public final class Parcel {
      */
     public final void putByte(byte value) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            ensureCapacity(1).put(value);
+            return;
+        }
         try {
             mDataOutputStream.writeByte(value);
         } catch (IOException e) {
@@ -126,6 +364,10 @@ public final class Parcel {
      */
     public final void putChar(char value) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            ensureCapacity(2).putChar(value);
+            return;
+        }
         try {
             mDataOutputStream.writeChar(value);
         } catch (IOException e) {
@@ -139,6 +381,10 @@ public final class Parcel {
      */
     public final void putShort(short value) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            ensureCapacity(2).putShort(value);
+            return;
+        }
         try {
             mDataOutputStream.writeShort(value);
         } catch (IOException e) {
@@ -152,6 +398,10 @@ public final class Parcel {
      */
     public final void putInt(int value) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            ensureCapacity(4).putInt(value);
+            return;
+        }
         try {
             mDataOutputStream.writeInt(value);
         } catch (IOException e) {
@@ -165,6 +415,10 @@ public final class Parcel {
      */
     public final void putLong(long value) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            ensureCapacity(8).putLong(value);
+            return;
+        }
         try {
             mDataOutputStream.writeLong(value);
         } catch (IOException e) {
@@ -178,6 +432,10 @@ public final class Parcel {
      */
     public final void putFloat(float value) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            ensureCapacity(4).putFloat(value);
+            return;
+        }
         try {
             mDataOutputStream.writeFloat(value);
         } catch (IOException e) {
@@ -191,6 +449,10 @@ public final class Parcel {
      */
     public final void putDouble(double value) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            ensureCapacity(8).putDouble(value);
+            return;
+        }
         try {
             mDataOutputStream.writeDouble(value);
         } catch (IOException e) {
@@ -204,6 +466,15 @@ public final class Parcel {
      */
     public final void putString(String value) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            final long count = ModifiedUtf8.countBytes(value);
+            if (count > 65535) {
+                throw new RemoteException(new UTFDataFormatException("String too long (> 65535 B)"));
+            }
+            ensureCapacity(2 + (int) count).putShort((short) count);
+            ModifiedUtf8.encode(value, mByteBuffer);
+            return;
+        }
         try {
             mDataOutputStream.writeUTF(value);
         } catch (IOException e) {
@@ -212,15 +483,110 @@ public final class Parcel {
     }
 
     public final void putBytes(byte[] buffer) throws RemoteException {
-        checkOutput();
-        mOutputStream.write(buffer);
+        putBytes(buffer, 0, buffer.length);
     }
 
     public final void putBytes(byte[] buffer, int offset, int size) throws RemoteException {
         checkOutput();
+        if (mByteBuffer != null) {
+            ensureCapacity(size).put(buffer, offset, size);
+            return;
+        }
         mOutputStream.write(buffer, offset, size);
     }
 
+    /**
+     * Write the remaining bytes of {@code buffer} into the parcel at the current dataPosition(),
+     * growing dataCapacity() if needed. The position of {@code buffer} is advanced accordingly.
+     */
+    public final void putBytes(ByteBuffer buffer) throws RemoteException {
+        checkOutput();
+        outputRegion(buffer.remaining(), 1).put(buffer);
+    }
+
+    /**
+     * Appends {@code size} bytes to the parcel and returns a buffer that covers exactly these bytes,
+     * so that the caller can fill them in place, e.g. straight from a socket's receive buffers.
+     * The returned buffer must not be used after the parcel has been recycled.
+     *
+     * @hide
+     */
+    public final ByteBuffer reserveBytes(int size) throws RemoteException {
+        checkOutput();
+        return outputRegion(size, 1);
+    }
+
+    /**
+     * Write an int array into the parcel at the current dataPosition(), growing dataCapacity() if
+     * needed. The array is encoded as its length followed by the elements in a single block copy.
+     * A null array is encoded as length -1.
+     */
+    public final void putIntArray(int[] values) throws RemoteException {
+        checkOutput();
+        if (values == null) {
+            putInt(-1);
+            return;
+        }
+        putInt(values.length);
+        outputRegion(values.length, 4).asIntBuffer().put(values);
+    }
+
+    /**
+     * Write a long array into the parcel, see {@link #putIntArray(int[])}.
+     */
+    public final void putLongArray(long[] values) throws RemoteException {
+        checkOutput();
+        if (values == null) {
+            putInt(-1);
+            return;
+        }
+        putInt(values.length);
+        outputRegion(values.length, 8).asLongBuffer().put(values);
+    }
+
+    /**
+     * Write a float array into the parcel, see {@link #putIntArray(int[])}.
+     */
+    public final void putFloatArray(float[] values) throws RemoteException {
+        checkOutput();
+        if (values == null) {
+            putInt(-1);
+            return;
+        }
+        putInt(values.length);
+        outputRegion(values.length, 4).asFloatBuffer().put(values);
+    }
+
+    /**
+     * Write a double array into the parcel, see {@link #putIntArray(int[])}.
+     */
+    public final void putDoubleArray(double[] values) throws RemoteException {
+        checkOutput();
+        if (values == null) {
+            putInt(-1);
+            return;
+        }
+        putInt(values.length);
+        outputRegion(values.length, 8).asDoubleBuffer().put(values);
+    }
+
+    /**
+     * Write a boolean array into the parcel using one byte per element, see
+     * {@link #putIntArray(int[])}.
+     */
+    public final void putBooleanArray(boolean[] values) throws RemoteException {
+        checkOutput();
+        if (values == null) {
+            putInt(-1);
+            return;
+        }
+        putInt(values.length);
+        ByteBuffer region = outputRegion(values.length, 1);
+        for (boolean value : values) {
+            region.put((byte) (value ? 1 : 0));
+        }
+    }
+
     public final void putBinder(IBinder binder) throws RemoteException {
         try {
             URI descriptor = new URI(binder.getInterfaceDescriptor());
@@ -243,6 +609,9 @@ public final class Parcel {
 
     public final boolean getBoolean() throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            return checkRemaining(1).get() != 0;
+        }
         try {
             return mDataInputStream.readBoolean();
         } catch (IOException e) {
@@ -252,6 +621,9 @@ public final class Parcel {
 
     public final byte getByte() throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            return checkRemaining(1).get();
+        }
         try {
             return mDataInputStream.readByte();
         } catch (IOException e) {
@@ -261,6 +633,9 @@ public final class Parcel {
 
     public final char getChar() throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            return checkRemaining(2).getChar();
+        }
         try {
             return mDataInputStream.readChar();
         } catch (IOException e) {
@@ -270,6 +645,9 @@ public final class Parcel {
 
     public final short getShort() throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            return checkRemaining(2).getShort();
+        }
         try {
             return mDataInputStream.readShort();
         } catch (IOException e) {
@@ -282,6 +660,9 @@ public final class Parcel {
      */
     public final int getInt() throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            return checkRemaining(4).getInt();
+        }
         try {
             return mDataInputStream.readInt();
         } catch (IOException e) {
@@ -294,6 +675,9 @@ public final class Parcel {
      */
     public final long getLong() throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            return checkRemaining(8).getLong();
+        }
         try {
             return mDataInputStream.readLong();
         } catch (IOException e) {
@@ -308,6 +692,9 @@ public final class Parcel {
      */
     public final float getFloat() throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            return checkRemaining(4).getFloat();
+        }
         try {
             return mDataInputStream.readFloat();
         } catch (IOException e) {
@@ -322,6 +709,9 @@ public final class Parcel {
      */
     public final double getDouble() throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            return checkRemaining(8).getDouble();
+        }
         try {
             return mDataInputStream.readDouble();
         } catch (IOException e) {
@@ -335,15 +725,145 @@ public final class Parcel {
      */
     public final String getString() throws RemoteException {
         checkInput();
+        final int size = getShort() & 0xffff;
+        return decodeString(size);
+    }
+
+    /**
+     * Write a string value into the parcel at the current dataPosition(), growing dataCapacity()
+     * if needed. Unlike {@link #putString(String)} the string is prefixed by a varint, which
+     * keeps short strings compact and removes the 64 KB limit. A null string is allowed. If the
+     * string table is enabled, a string that has already been written to the parcel is encoded
+     * as a reference to its first occurrence. The value must be read with
+     * {@link #getCompactString()}.
+     */
+    public final void putCompactString(String value) throws RemoteException {
+        checkOutput();
+        if (value == null) {
+            putVarint(STRING_NULL);
+            return;
+        }
+        int tag = STRING_LITERAL;
+        if (mStringTableEnabled) {
+            if (mStringTable == null) {
+                mStringTable = new HashMap<>();
+            }
+            Integer index = mStringTable.get(value);
+            if (index != null) {
+                putVarint(((long) index << 2) | STRING_REFERENCE);
+                return;
+            }
+            mStringTable.put(value, mStringTable.size());
+            tag = STRING_LITERAL_REGISTERED;
+        }
+
+        final long count = ModifiedUtf8.countBytes(value);
+        if (count > Integer.MAX_VALUE - 8) {
+            throw new RemoteException(new UTFDataFormatException("String too long"));
+        }
+        putVarint((count << 2) | tag);
+        if (mByteBuffer != null) {
+            ModifiedUtf8.encode(value, ensureCapacity((int) count));
+        } else {
+            final int offset = mOutputStream.reserve((int) count);
+            ModifiedUtf8.encode(value, mOutputStream.getByteArray(), offset);
+        }
+    }
+
+    /**
+     * Read a string value written by {@link #putCompactString(String)} from the parcel at the
+     * current dataPosition().
+     */
+    public final String getCompactString() throws RemoteException {
+        checkInput();
+        final long header = getVarint();
+        final long value = header >>> 2;
+        switch ((int) (header & 3)) {
+        case STRING_NULL:
+            return null;
+        case STRING_REFERENCE:
+            if (mStrings == null || value >= mStrings.size()) {
+                throw new RemoteException("Invalid string reference: " + value);
+            }
+            return mStrings.get((int) value);
+        default:
+            if (value > Integer.MAX_VALUE) {
+                throw new RemoteException(new UTFDataFormatException("String too long"));
+            }
+            String string = decodeString((int) value);
+            if ((header & 3) == STRING_LITERAL_REGISTERED) {
+                if (mStrings == null) {
+                    mStrings = new ArrayList<>();
+                }
+                mStrings.add(string);
+            }
+            return string;
+        }
+    }
+
+    /**
+     * Enables or disables the string table of the parcel. While it is enabled,
+     * {@link #putCompactString(String)} writes each distinct string only once and encodes repeated
+     * occurrences as small back-references, which pays off for descriptors, URIs and keys. The
+     * reader does not need to enable anything. Recycling the parcel disables the table.
+     */
+    public final void setStringTableEnabled(boolean enabled) {
+        mStringTableEnabled = enabled;
+    }
+
+    private final void putVarint(long value) throws RemoteException {
+        while ((value & ~0x7FL) != 0) {
+            putByte((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        putByte((byte) value);
+    }
+
+    private final long getVarint() throws RemoteException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = getByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new RemoteException("Malformed varint");
+    }
+
+    /**
+     * Decodes a modified UTF-8 string of {@code size} bytes directly from the backing buffer.
+     */
+    private final String decodeString(int size) throws RemoteException {
         try {
-            return mDataInputStream.readUTF();
-        } catch (IOException e) {
+            if (mByteBuffer != null) {
+                return ModifiedUtf8.decode(checkRemaining(size), size, chars(size));
+            }
+            if (mInputStream.available() < size) {
+                throw new RemoteException(new EOFException());
+            }
+            final int offset = mInputStream.getPosition();
+            mInputStream.skip(size);
+            return ModifiedUtf8.decode(mOutputStream.getByteArray(), offset, size, chars(size));
+        } catch (UTFDataFormatException e) {
             throw new RemoteException(e);
         }
     }
 
+    private final char[] chars(int size) {
+        if (mChars == null || mChars.length < size) {
+            mChars = new char[Math.max(size, 256)];
+        }
+        return mChars;
+    }
+
     public final byte[] getBytes() throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            byte[] buffer = new byte[mByteBuffer.remaining()];
+            mByteBuffer.get(buffer);
+            return buffer;
+        }
         if (mInputStream.available() >= 0) {
             byte[] buffer = new byte[mInputStream.available()];
             mInputStream.read(buffer);
@@ -355,6 +875,11 @@ public final class Parcel {
 
     public final byte[] getBytes(int size) throws RemoteException {
         checkInput();
+        if (mByteBuffer != null) {
+            byte[] buffer = new byte[Math.min(mByteBuffer.remaining(), size)];
+            mByteBuffer.get(buffer);
+            return buffer;
+        }
         if (mInputStream.available() >= 0) {
             size = Math.min(mInputStream.available(), size);
             byte[] buffer = new byte[size];
@@ -365,6 +890,64 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Read an int array from the parcel at the current dataPosition().
+     *
+     * @see #putIntArray(int[])
+     */
+    public final int[] getIntArray() throws RemoteException {
+        final int length = getInt();
+        if (length < 0) {
+            return null;
+        }
+        int[] values = new int[checkLength(length, 4)];
+        inputRegion(length, 4).asIntBuffer().get(values);
+        return values;
+    }
+
+    public final long[] getLongArray() throws RemoteException {
+        final int length = getInt();
+        if (length < 0) {
+            return null;
+        }
+        long[] values = new long[checkLength(length, 8)];
+        inputRegion(length, 8).asLongBuffer().get(values);
+        return values;
+    }
+
+    public final float[] getFloatArray() throws RemoteException {
+        final int length = getInt();
+        if (length < 0) {
+            return null;
+        }
+        float[] values = new float[checkLength(length, 4)];
+        inputRegion(length, 4).asFloatBuffer().get(values);
+        return values;
+    }
+
+    public final double[] getDoubleArray() throws RemoteException {
+        final int length = getInt();
+        if (length < 0) {
+            return null;
+        }
+        double[] values = new double[checkLength(length, 8)];
+        inputRegion(length, 8).asDoubleBuffer().get(values);
+        return values;
+    }
+
+    public final boolean[] getBooleanArray() throws RemoteException {
+        final int length = getInt();
+        if (length < 0) {
+            return null;
+        }
+        boolean[] values = new boolean[checkLength(length, 1)];
+        ByteBuffer region = inputRegion(length, 1);
+        for (int i = 0; i < length; i++) {
+            values[i] = region.get() != 0;
+        }
+        return values;
+    }
+
     public final IBinder getBinder() throws RemoteException {
         URI uri;
         try {
@@ -375,46 +958,300 @@ public final class Parcel {
         return Runtime.getRuntime().getBinder(uri);
     }
 
+    /**
+     * Returns the backing array of the parcel. The valid data ends at {@link #size()}. For direct
+     * Parcels this is a copy of the data.
+     */
     public final byte[] getByteArray() {
+        if (mByteBuffer != null) {
+            byte[] data = new byte[size()];
+            ByteBuffer buffer = mByteBuffer.duplicate();
+            buffer.position(0);
+            buffer.get(data, 0, data.length);
+            return data;
+        }
         return mOutputStream.getByteArray();
     }
 
+    /**
+     * Returns a new ByteBuffer that shares the data of the parcel from index 0 to {@link #size()}.
+     * Its position and limit are independent of the parcel. For direct Parcels the returned buffer
+     * can be used for gathering or scattering channel I/O without copying the data.
+     */
+    public final ByteBuffer asByteBuffer() {
+        if (mRecycled) {
+            throw new IllegalStateException("Parcel has been recycled");
+        }
+        if (mByteBuffer != null) {
+            ByteBuffer buffer = mByteBuffer.duplicate();
+            buffer.position(0).limit(size());
+            return buffer;
+        }
+        return ByteBuffer.wrap(mOutputStream.getByteArray(), 0, mOutputStream.size());
+    }
+
     public final ByteArrayInputStream asInputStream() {
-        if (mInputStream == null) {
-            mInputStream = new ByteArrayInputStream(mOutputStream.getByteArray(), 0, mOutputStream.size());
-            mDataInputStream = new DataInputStream(mInputStream);
+        checkHeap();
+        if (!mInput) {
+            if (mInputStream == null) {
+                mInputStream = new ByteArrayInputStream(mOutputStream.getByteArray(), 0, mOutputStream.size());
+                mDataInputStream = new DataInputStream(mInputStream);
+            } else {
+                mInputStream.setByteArray(mOutputStream.getByteArray(), 0, mOutputStream.size());
+            }
+            mInput = true;
         }
         return mInputStream;
     }
 
     public final ByteArrayOutputStream asOutputStream() {
-        if (mInputStream != null) {
-            mInputStream = null;
-            mDataInputStream = null;
-        }
+        checkHeap();
+        mInput = false;
         return mOutputStream;
     }
 
     public final Parcel asInput() {
+        if (mByteBuffer != null) {
+            if (!mInput) {
+                mByteBuffer.flip();
+                mInput = true;
+            }
+            return this;
+        }
         asInputStream();
         return this;
     }
 
     public final Parcel asOutput() {
+        if (mByteBuffer != null) {
+            if (mInput) {
+                mByteBuffer.position(mByteBuffer.limit()).limit(mByteBuffer.capacity());
+                mInput = false;
+            }
+            return this;
+        }
         asOutputStream();
         return this;
     }
 
+    /**
+     * Write a byte value at the given absolute index without changing the current position. The
+     * index must refer to data that has already been written.
+     */
+    public final void putByte(int index, byte value) {
+        checkIndex(index, 1);
+        if (mByteBuffer != null) {
+            mByteBuffer.put(index, value);
+        } else {
+            mOutputStream.getByteArray()[index] = value;
+        }
+    }
+
+    public final void putChar(int index, char value) {
+        putShort(index, (short) value);
+    }
+
+    public final void putShort(int index, short value) {
+        checkIndex(index, 2);
+        if (mByteBuffer != null) {
+            mByteBuffer.putShort(index, value);
+        } else {
+            putBigEndian(mOutputStream.getByteArray(), index, value, 2);
+        }
+    }
+
+    public final void putInt(int index, int value) {
+        checkIndex(index, 4);
+        if (mByteBuffer != null) {
+            mByteBuffer.putInt(index, value);
+        } else {
+            putBigEndian(mOutputStream.getByteArray(), index, value, 4);
+        }
+    }
+
+    public final void putLong(int index, long value) {
+        checkIndex(index, 8);
+        if (mByteBuffer != null) {
+            mByteBuffer.putLong(index, value);
+        } else {
+            putBigEndian(mOutputStream.getByteArray(), index, value, 8);
+        }
+    }
+
+    public final void putFloat(int index, float value) {
+        putInt(index, Float.floatToIntBits(value));
+    }
+
+    public final void putDouble(int index, double value) {
+        putLong(index, Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Read a byte value at the given absolute index without changing the current position.
+     */
+    public final byte getByte(int index) {
+        checkIndex(index, 1);
+        if (mByteBuffer != null) {
+            return mByteBuffer.get(index);
+        }
+        return mOutputStream.getByteArray()[index];
+    }
+
+    public final char getChar(int index) {
+        return (char) getShort(index);
+    }
+
+    public final short getShort(int index) {
+        checkIndex(index, 2);
+        if (mByteBuffer != null) {
+            return mByteBuffer.getShort(index);
+        }
+        return (short) getBigEndian(mOutputStream.getByteArray(), index, 2);
+    }
+
+    public final int getInt(int index) {
+        checkIndex(index, 4);
+        if (mByteBuffer != null) {
+            return mByteBuffer.getInt(index);
+        }
+        return (int) getBigEndian(mOutputStream.getByteArray(), index, 4);
+    }
+
+    public final long getLong(int index) {
+        checkIndex(index, 8);
+        if (mByteBuffer != null) {
+            return mByteBuffer.getLong(index);
+        }
+        return getBigEndian(mOutputStream.getByteArray(), index, 8);
+    }
+
+    public final float getFloat(int index) {
+        return Float.intBitsToFloat(getInt(index));
+    }
+
+    public final double getDouble(int index) {
+        return Double.longBitsToDouble(getLong(index));
+    }
+
+    private static void putBigEndian(byte[] data, int index, long value, int size) {
+        for (int i = index + size - 1; i >= index; i--) {
+            data[i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    private static long getBigEndian(byte[] data, int index, int size) {
+        // Sign-extend from the most significant byte.
+        long value = data[index];
+        for (int i = index + 1; i < index + size; i++) {
+            value = (value << 8) | (data[i] & 0xff);
+        }
+        return value;
+    }
+
+    private final void checkIndex(int index, int size) {
+        if (mRecycled) {
+            throw new IllegalStateException("Parcel has been recycled");
+        }
+        if (index < 0 || index > size() - size) {
+            throw new IndexOutOfBoundsException("index=" + index + ", size=" + size());
+        }
+    }
+
+    private final void checkHeap() {
+        if (mByteBuffer != null) {
+            throw new IllegalStateException("Parcel is backed by a direct ByteBuffer");
+        }
+    }
+
+    /**
+     * Makes room for {@code size} more bytes in the direct buffer. Grown buffers are not returned
+     * to the direct memory allocator explicitly, so a Parcel should be obtained with an adequate
+     * size up front.
+     */
+    private final ByteBuffer ensureCapacity(int size) {
+        if (mByteBuffer.remaining() < size) {
+            int capacity = Math.max(mByteBuffer.capacity() << 1, mByteBuffer.position() + size);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+            mByteBuffer.flip();
+            buffer.put(mByteBuffer);
+            mByteBuffer = buffer;
+        }
+        return mByteBuffer;
+    }
+
+    /**
+     * Appends {@code count * elementSize} bytes to the parcel and returns a big-endian buffer that
+     * covers exactly these bytes for bulk encoding.
+     */
+    private final ByteBuffer outputRegion(int count, int elementSize) throws RemoteException {
+        final long size = (long) count * elementSize;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new RemoteException("Array too large: " + count + " elements");
+        }
+        if (mByteBuffer != null) {
+            ByteBuffer region = ensureCapacity((int) size).slice();
+            region.limit((int) size);
+            mByteBuffer.position(mByteBuffer.position() + (int) size);
+            return region;
+        }
+        final int offset = mOutputStream.reserve((int) size);
+        return ByteBuffer.wrap(mOutputStream.getByteArray(), offset, (int) size).slice();
+    }
+
+    /**
+     * Consumes {@code count * elementSize} bytes from the parcel and returns a big-endian buffer
+     * that covers exactly these bytes for bulk decoding.
+     */
+    private final ByteBuffer inputRegion(int count, int elementSize) throws RemoteException {
+        final int size = count * elementSize;
+        if (mByteBuffer != null) {
+            ByteBuffer region = mByteBuffer.slice();
+            region.limit(size);
+            mByteBuffer.position(mByteBuffer.position() + size);
+            return region;
+        }
+        final int offset = mInputStream.getPosition();
+        mInputStream.skip(size);
+        return ByteBuffer.wrap(mOutputStream.getByteArray(), offset, size).slice();
+    }
+
+    /**
+     * Validates an array length read from the parcel against the remaining data before anything is
+     * allocated for it.
+     */
+    private final int checkLength(int count, int elementSize) throws RemoteException {
+        checkInput();
+        final int available = (mByteBuffer != null) ? mByteBuffer.remaining() : mInputStream.available();
+        if ((long) count * elementSize > available) {
+            throw new RemoteException(new EOFException());
+        }
+        return count;
+    }
+
+    private final ByteBuffer checkRemaining(int size) throws RemoteException {
+        if (mByteBuffer.remaining() < size) {
+            throw new RemoteException(new EOFException());
+        }
+        return mByteBuffer;
+    }
+
     private final void checkOutput() {
-        if (mInputStream != null) {
+        if (mInput) {
             throw new IllegalStateException("Parcel is in input mode");
         }
+        if (mRecycled) {
+            throw new IllegalStateException("Parcel has been recycled");
+        }
     }
 
     private final void checkInput() {
-        if (mInputStream == null) {
+        if (!mInput) {
             throw new IllegalStateException("Parcel is in output mode");
         }
+        if (mRecycled) {
+            throw new IllegalStateException("Parcel has been recycled");
+        }
     }
 
     public static final URI toUri(IBinder base, IBinder binder) throws RemoteException {
@@ -1225,9 +2062,9 @@ public final class Parcel {
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder("Parcel {data=[");
-        byte[] data = mOutputStream.getByteArray();
-        for (int i = 0; i < mOutputStream.size(); ++i) {
-            builder.append(String.format("%02X", Byte.toUnsignedInt(data[i])));
+        final int size = size();
+        for (int i = 0; i < size; ++i) {
+            builder.append(String.format("%02X", Byte.toUnsignedInt(getByte(i))));
         }
         builder.append("]");
 
@@ -1238,4 +2075,41 @@ public final class Parcel {
 
         return builder.append("}").toString();
     }
+
+    private static final class ParcelPool {
+        private final Parcel[] mParcels;
+        private int mSize;
+
+        ParcelPool(int capacity) {
+            mParcels = new Parcel[capacity];
+        }
+
+        synchronized Parcel acquire() {
+            if (mSize == 0) {
+                return null;
+            }
+            Parcel parcel = mParcels[--mSize];
+            mParcels[mSize] = null;
+            return parcel;
+        }
+
+        synchronized void release(Parcel parcel) {
+            if (mSize < mParcels.length) {
+                mParcels[mSize++] = parcel;
+            }
+        }
+
+        synchronized int size() {
+            return mSize;
+        }
+    }
+
+    private static final class LeakReference extends PhantomReference<Parcel> {
+        final Throwable mAllocationSite;
+
+        LeakReference(Parcel parcel, Throwable allocationSite) {
+            super(parcel, sLeakQueue);
+            mAllocationSite = allocationSite;
+        }
+    }
 }
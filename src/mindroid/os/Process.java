@@ -47,7 +47,7 @@ public class Process {
     private final Debug mDebug;
     private boolean mUncaughtException = false;
 
-    Process(String name) {
+    Process(String name, LooperGroup looperGroup) {
         mName = name;
         mThreadGroup = new ThreadGroup("Process {" + name + "}") {
             public void uncaughtException(Thread thread, Throwable e) {
@@ -64,7 +64,7 @@ public class Process {
             }
         };
         mServices = new HashMap<>();
-        mMainThread = new HandlerThread(mThreadGroup, "Process {" + name + "}");
+        mMainThread = new HandlerThread(mThreadGroup, "Process {" + name + "}", looperGroup);
         mDebug = Debug.Creator.createInstance();
     }
 
@@ -121,11 +121,10 @@ public class Process {
         if (mMainThread.quit()) {
             mMainThread.interrupt();
             try {
-                mMainThread.join();
+                mMainThread.awaitTermination();
             } catch (InterruptedException e) {
             }
         }
-
         synchronized (sPids) {
             sPids.remove(getId());
         }
@@ -153,7 +152,7 @@ public class Process {
     }
 
     boolean isAlive() {
-        return mMainThread.isAlive();
+        return mMainThread.isRunning();
     }
 
     private class ProcessImpl extends IProcess.Stub {
@@ -392,7 +391,12 @@ public class Process {
      * Returns the identifier of this process.
      */
     public static final int myPid() {
-        ThreadGroup threadGroup = Thread.currentThread().getThreadGroup();
+        final Thread thread = Thread.currentThread();
+        // The main Looper of a process may be run by the carrier threads of a LooperGroup.
+        ThreadGroup threadGroup = (thread instanceof LooperGroup.CarrierThread) ? ((LooperGroup.CarrierThread) thread).mThreadGroup : null;
+        if (threadGroup == null) {
+            threadGroup = thread.getThreadGroup();
+        }
         if (threadGroup != null) {
             return threadGroup.hashCode();
         }
@@ -44,6 +44,7 @@ public final class ServiceManager {
     private static IServiceManager.Stub sStub;
     private static final HashMap<String, IBinder> sSystemServices = new HashMap<>();
     private static final int SHUTDOWN_TIMEOUT = 10000; //ms
+    private final LooperGroup mLooperGroup;
     private final ProcessManager mProcessManager;
     private final HandlerThread mMainThread;
     private HashMap<String, ProcessRecord> mProcesses = new HashMap<>();
@@ -52,11 +53,18 @@ public final class ServiceManager {
     private IPackageManager mPackageManager;
 
     static class ProcessManager {
+        private final LooperGroup mLooperGroup;
         private final HandlerThread mThread;
         private Handler mHandler;
         private HashMap<String, Pair> mProcesses = new HashMap<>();
 
-        public ProcessManager() {
+        /**
+         * @param looperGroup The group that runs the main Loopers of the processes, or null to run
+         * them on threads of their own. The ProcessManager itself always has a thread of its own
+         * since it waits for processes to stop.
+         */
+        public ProcessManager(LooperGroup looperGroup) {
+            mLooperGroup = looperGroup;
             mThread = new HandlerThread("ProcessManager");
         }
 
@@ -69,7 +77,7 @@ public final class ServiceManager {
             if (mThread.quit()) {
                 try {
                     Log.println('D', LOG_TAG, "Shutting down ProcessManager");
-                    mThread.join();
+                    mThread.awaitTermination();
                     Log.println('D', LOG_TAG, "ProcessManager has been shut down");
                 } catch (InterruptedException e) {
                 }
@@ -78,7 +86,7 @@ public final class ServiceManager {
 
         public synchronized IProcess startProcess(String name) {
             if (!mProcesses.containsKey(name)) {
-                Process process = new Process(name);
+                Process process = new Process(name, mLooperGroup);
                 IProcess p = process.start();
                 mProcesses.put(name, new Pair(process, p));
                 return p;
@@ -187,8 +195,9 @@ public final class ServiceManager {
     }
 
     public ServiceManager() {
-        mProcessManager = new ProcessManager();
-        mMainThread = new HandlerThread(LOG_TAG);
+        mLooperGroup = LooperGroup.create(LOG_TAG);
+        mProcessManager = new ProcessManager(mLooperGroup);
+        mMainThread = new HandlerThread(null, LOG_TAG, mLooperGroup);
     }
 
     public void start() {
@@ -223,13 +232,16 @@ public final class ServiceManager {
         if (mMainThread.quit()) {
             try {
                 Log.println('D', LOG_TAG, "Shutting down ServiceManager");
-                mMainThread.join();
+                mMainThread.awaitTermination();
                 Log.println('D', LOG_TAG, "ServiceManager has been shut down");
             } catch (InterruptedException e) {
             }
         }
 
         mProcessManager.shutdown();
+        if (mLooperGroup != null) {
+            mLooperGroup.quit();
+        }
 
         sStub = null;
         sServiceManager = null;
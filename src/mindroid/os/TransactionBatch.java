@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.os;
+
+/**
+ * A sequence of one-way transactions that is sent to an {@link IBinder} at once with
+ * {@link IBinder#transact(TransactionBatch)}. A local Binder receives the whole batch with a single
+ * message, a remote Binder with a single wire frame. The transactions are dispatched in the order
+ * they were added, each by a call to {@link Binder#onTransact} without a result.
+ *
+ * <p>
+ * Like the data Parcel of a transaction, the batch is owned by the Binder once it has been passed
+ * to transact. It and the Parcels it contains must not be touched afterwards.
+ */
+public final class TransactionBatch {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_POOLED_CAPACITY = 1024;
+    private static final int MAX_POOL_SIZE = 8;
+    private static final Object sPoolLock = new Object();
+    private static TransactionBatch sPool;
+    private static int sPoolSize = 0;
+
+    private int[] mWhats = new int[INITIAL_CAPACITY];
+    private Parcel[] mParcels = new Parcel[INITIAL_CAPACITY];
+    private int mSize;
+    private TransactionBatch mNext;
+
+    private TransactionBatch() {
+    }
+
+    /**
+     * Retrieve an empty batch from the pool.
+     */
+    public static TransactionBatch obtain() {
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                TransactionBatch batch = sPool;
+                sPool = batch.mNext;
+                batch.mNext = null;
+                sPoolSize--;
+                return batch;
+            }
+        }
+        return new TransactionBatch();
+    }
+
+    /**
+     * Appends a one-way transaction. The batch takes ownership of {@code data}, which may be null.
+     */
+    public void add(int what, Parcel data) {
+        if (mSize == mWhats.length) {
+            int[] whats = new int[mSize * 2];
+            System.arraycopy(mWhats, 0, whats, 0, mSize);
+            mWhats = whats;
+            Parcel[] parcels = new Parcel[mSize * 2];
+            System.arraycopy(mParcels, 0, parcels, 0, mSize);
+            mParcels = parcels;
+        }
+        mWhats[mSize] = what;
+        mParcels[mSize] = data;
+        mSize++;
+    }
+
+    /**
+     * Returns the number of transactions in the batch.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Returns the transaction code of the transaction at {@code index}.
+     */
+    public int getWhat(int index) {
+        checkIndex(index);
+        return mWhats[index];
+    }
+
+    /**
+     * Returns the data Parcel of the transaction at {@code index}, which is still owned by the batch.
+     */
+    public Parcel getData(int index) {
+        checkIndex(index);
+        return mParcels[index];
+    }
+
+    /**
+     * Takes the data Parcel of the transaction at {@code index} out of the batch. The caller
+     * becomes responsible for recycling it.
+     *
+     * @hide
+     */
+    public Parcel takeData(int index) {
+        checkIndex(index);
+        Parcel data = mParcels[index];
+        mParcels[index] = null;
+        return data;
+    }
+
+    /**
+     * Recycles all Parcels that are still owned by the batch and puts the batch back into the pool.
+     * You must not touch the batch after this call.
+     */
+    public void recycle() {
+        for (int i = 0; i < mSize; i++) {
+            if (mParcels[i] != null) {
+                mParcels[i].recycle();
+                mParcels[i] = null;
+            }
+        }
+        mSize = 0;
+        if (mWhats.length > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index=" + index + ", size=" + mSize);
+        }
+    }
+}
@@ -20,15 +20,21 @@ import mindroid.app.Service;
 import mindroid.content.Context;
 import mindroid.content.Intent;
 import mindroid.lang.Runtime;
+import mindroid.os.BinderStats;
 import mindroid.os.IBinder;
+import mindroid.os.Looper;
+import mindroid.os.Message;
+import mindroid.os.Parcel;
 import mindroid.os.RemoteException;
 import mindroid.os.ServiceManager;
 import mindroid.util.concurrent.ExecutionException;
 import mindroid.util.concurrent.Promise;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -145,7 +151,54 @@ public class ConsoleService extends Service {
             long maxMemory = java.lang.Runtime.getRuntime().maxMemory();
             return "Free memory:  " + freeMemory + " B" + System.lineSeparator()
                     + "Total memory: " + totalMemory + " B" + System.lineSeparator()
-                    + "Max memory:   " + maxMemory + " B";
+                    + "Max memory:   " + maxMemory + " B" + System.lineSeparator()
+                    + "Message pool: size=" + Message.getPoolSize() + ", hits=" + Message.getPoolHitCount()
+                    + ", misses=" + Message.getPoolMissCount() + System.lineSeparator()
+                    + "Parcel pool:  size=" + Parcel.getPoolSize();
+        });
+
+        addCommand("dump loopers", "Print queue depth, dispatch delay and handler execution time statistics of all Loopers "
+                + "(optionally only of the Loopers whose names are given as arguments)", (args) -> {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            List<Looper> loopers = Looper.getLoopers();
+            loopers.sort(Comparator.comparing((Looper looper) -> looper.getName()));
+            for (Looper looper : loopers) {
+                if (args == null || args.length == 0 || Arrays.asList(args).contains(looper.getName())) {
+                    pw.println(looper);
+                    looper.getStats().dump(pw, "  ");
+                    pw.println();
+                }
+            }
+            return sw.toString();
+        });
+
+        addCommand("reset loopers", "Reset the statistics of all Loopers", (args) -> {
+            for (Looper looper : Looper.getLoopers()) {
+                looper.getStats().reset();
+            }
+            return null;
+        });
+
+        addCommand("binder stats", "Print transaction counts, error counts, latency, execution time and payload size statistics "
+                + "of all Binder interfaces (optionally only of the interfaces whose descriptors contain the argument)", (args) -> {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            BinderStats.dump(pw, "", (args != null && args.length > 0) ? args[0] : null);
+            return sw.toString();
+        });
+
+        addCommand("reset binder stats", "Reset the statistics of all Binder interfaces "
+                + "(optionally set a new sampling interval, 0 disables the statistics)", (args) -> {
+            if (args != null && args.length > 0) {
+                try {
+                    BinderStats.setSamplingInterval(Integer.parseInt(args[0]));
+                } catch (IllegalArgumentException e) {
+                    return "Usage: reset binder stats [<sampling interval>]";
+                }
+            }
+            BinderStats.reset();
+            return null;
         });
 
         addCommand("gc", "Run garbage collection", (args) -> {
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 E.S.R.Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.runtime.system;
+
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import mindroid.os.Binder;
+import mindroid.os.Bundle;
+import mindroid.os.IBinder;
+
+/**
+ * Per-connection table of binder handles for the wire protocols of the runtime system plugins.
+ * The sending side binds a binder URI to a small integer handle with the first transaction to it
+ * and afterwards only sends the handle. The receiving side parses the URI once when the handle
+ * is bound and resolves the binder of later transactions by its binder id.
+ *
+ * <p>
+ * The sending side must bind handles and send their frames under one lock, so that a bound
+ * handle never overtakes its binding on the connection. The receiving side must only be used by
+ * the thread that reads the connection.
+ *
+ * @hide
+ */
+public final class BinderHandleTable {
+    /**
+     * The handle of transactions that carry their binder URI without binding it.
+     */
+    public static final int NO_HANDLE = 0;
+    private static final int MAX_HANDLES = 4096;
+    private static final String MINDROID_SCHEME = "mindroid";
+
+    private final Runtime mRuntime;
+    private final Map<String, Integer> mHandles = new HashMap<>();
+    private Entry[] mEntries = new Entry[16];
+
+    private static final class Entry {
+        final URI mUri;
+        // The binder id, or 0 if the binder is not hosted by this node.
+        final long mId;
+        WeakReference<IBinder> mBinder;
+
+        Entry(URI uri, long id) {
+            mUri = uri;
+            mId = id;
+        }
+    }
+
+    public BinderHandleTable(Runtime runtime) {
+        mRuntime = runtime;
+    }
+
+    /**
+     * Returns the handle table of the receiving side of a connection, creating it on first use.
+     *
+     * @param context the context of the connection.
+     */
+    public static BinderHandleTable get(Runtime runtime, Bundle context) {
+        BinderHandleTable binderHandles = (BinderHandleTable) context.getObject("binderHandles");
+        if (binderHandles == null) {
+            binderHandles = new BinderHandleTable(runtime);
+            context.putObject("binderHandles", binderHandles);
+        }
+        return binderHandles;
+    }
+
+    /**
+     * Returns the handle that is bound to {@code uri}, or {@link #NO_HANDLE} if there is none.
+     */
+    public int getHandle(String uri) {
+        Integer handle = mHandles.get(uri);
+        return (handle != null) ? handle : NO_HANDLE;
+    }
+
+    /**
+     * Binds a new handle to {@code uri}.
+     *
+     * @return the new handle, or {@link #NO_HANDLE} if the table is full.
+     */
+    public int bind(String uri) {
+        final int size = mHandles.size();
+        if (size >= MAX_HANDLES) {
+            return NO_HANDLE;
+        }
+        final int handle = size + 1;
+        mHandles.put(uri, handle);
+        return handle;
+    }
+
+    /**
+     * Binds {@code handle} to the binder {@code uri} on the receiving side.
+     *
+     * @throws IllegalArgumentException if the handle or URI is invalid.
+     */
+    public void bind(int handle, String uri) {
+        if (handle <= NO_HANDLE || handle > MAX_HANDLES) {
+            throw new IllegalArgumentException("Invalid binder handle: " + handle);
+        }
+        URI binderUri = URI.create(uri);
+        String authority = binderUri.getAuthority();
+        if (authority == null) {
+            throw new IllegalArgumentException("Invalid URI: " + uri);
+        }
+        String[] parts = authority.split("\\.");
+        long id;
+        try {
+            if (parts.length != 2) {
+                throw new NumberFormatException();
+            }
+            int nodeId = Integer.parseInt(parts[0]);
+            id = (nodeId == mRuntime.getNodeId()) ? ((long) nodeId << 32) | (Integer.parseInt(parts[1]) & 0xFFFFFFFFL) : 0;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid URI: " + uri);
+        }
+
+        if (handle >= mEntries.length) {
+            Entry[] entries = new Entry[Math.max(handle + 1, mEntries.length * 2)];
+            System.arraycopy(mEntries, 0, entries, 0, mEntries.length);
+            mEntries = entries;
+        }
+        mEntries[handle] = new Entry(binderUri, id);
+    }
+
+    /**
+     * Resolves the binder of an incoming transaction on the receiving side. A transaction that
+     * carries the binder {@code uri} binds it to {@code handle} first. With {@link #NO_HANDLE},
+     * the URI is resolved without binding it.
+     *
+     * @param uri the binder URI, or null if the handle has been bound by an earlier transaction.
+     * @return the binder, or null if it does not exist (anymore).
+     * @throws IllegalArgumentException if the handle or URI is invalid.
+     */
+    public IBinder getBinder(int handle, String uri) {
+        if (uri != null) {
+            if (handle == NO_HANDLE) {
+                return mRuntime.getBinder(URI.create(uri));
+            }
+            bind(handle, uri);
+        }
+        return getBinder(handle);
+    }
+
+    /**
+     * Returns the binder that is bound to {@code handle}, or null if it does not exist (anymore).
+     *
+     * @throws IllegalArgumentException if the handle has not been bound.
+     */
+    public IBinder getBinder(int handle) {
+        final Entry entry = (handle > NO_HANDLE && handle < mEntries.length) ? mEntries[handle] : null;
+        if (entry == null) {
+            throw new IllegalArgumentException("Invalid binder handle: " + handle);
+        }
+        if (entry.mId == 0) {
+            return mRuntime.getBinder(entry.mUri);
+        }
+
+        final Binder binder = mRuntime.getBinder(entry.mId);
+        if (binder == null) {
+            return null;
+        }
+        if (MINDROID_SCHEME.equals(entry.mUri.getScheme())) {
+            return binder;
+        }
+        // Stubs of other schemes share the binder id, but are resolved by URI.
+        IBinder stub = (entry.mBinder != null) ? entry.mBinder.get() : null;
+        if (stub == null) {
+            stub = mRuntime.getBinder(entry.mUri);
+            entry.mBinder = (stub != null) ? new WeakReference<>(stub) : null;
+        }
+        return stub;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 E.S.R.Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.runtime.system;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * The client connections of a plugin to the server of one node, see
+ * {@link ServiceDiscovery.Configuration.ConnectionPool}. Transactions are spread over the
+ * connections either round robin or to the connection with the least load. Transactions with
+ * large payloads use a connection of their own, so that they do not hold up small transactions.
+ * Connections are opened on first use and reopened after they have been removed.
+ *
+ * @hide
+ */
+public final class ClientPool<T> {
+    private final Factory<T> mFactory;
+    private final ToIntFunction<T> mLoad;
+    private final Consumer<T> mClose;
+    private final boolean mRoundRobin;
+    private final int mSize;
+    private final int mLargePayloadSize;
+    // The pooled connections followed by the large payload connection.
+    private final AtomicReferenceArray<T> mClients;
+    private final AtomicInteger mCounter = new AtomicInteger(0);
+
+    public interface Factory<T> {
+        /**
+         * Creates and starts a new client.
+         */
+        T newClient() throws IOException;
+    }
+
+    /**
+     * @param load returns the load of a client, e.g. the number of its pending transactions.
+     * @param close closes a client that has been opened for a slot concurrently with another one.
+     */
+    public ClientPool(ServiceDiscovery.Configuration.ConnectionPool configuration, Factory<T> factory, ToIntFunction<T> load, Consumer<T> close) {
+        mFactory = factory;
+        mLoad = load;
+        mClose = close;
+        mRoundRobin = ServiceDiscovery.Configuration.ConnectionPool.SELECTION_ROUND_ROBIN.equals(configuration.selection);
+        mSize = configuration.size;
+        mLargePayloadSize = configuration.largePayloadSize;
+        mClients = new AtomicReferenceArray<>(mLargePayloadSize > 0 ? mSize + 1 : mSize);
+    }
+
+    /**
+     * Returns a client for a transaction with {@code payloadSize} bytes of data.
+     */
+    public T get(int payloadSize) throws IOException {
+        if (mLargePayloadSize > 0 && payloadSize >= mLargePayloadSize) {
+            return getClient(mSize);
+        }
+        if (mSize == 1) {
+            return getClient(0);
+        }
+
+        final int start = (mCounter.getAndIncrement() & Integer.MAX_VALUE) % mSize;
+        if (mRoundRobin) {
+            return getClient(start);
+        }
+        int index = start;
+        int minLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < mSize; i++) {
+            final int j = (start + i) % mSize;
+            T client = mClients.get(j);
+            if (client == null) {
+                // An unopened connection has no load.
+                index = j;
+                break;
+            }
+            int load = mLoad.applyAsInt(client);
+            if (load < minLoad) {
+                index = j;
+                minLoad = load;
+                if (load == 0) {
+                    break;
+                }
+            }
+        }
+        return getClient(index);
+    }
+
+    /**
+     * Returns the client for transactions that must keep their order, e.g. the one-way
+     * transactions to a binder. Transactions with the same key use the same connection, which
+     * bypasses the large payload connection.
+     */
+    public T getOrdered(long key) throws IOException {
+        return getClient((Long.hashCode(key) & Integer.MAX_VALUE) % mSize);
+    }
+
+    /**
+     * Opens all connections of the pool that are not open yet.
+     *
+     * @return all clients of the pool.
+     */
+    public List<T> open() throws IOException {
+        List<T> clients = new ArrayList<>(mClients.length());
+        for (int i = 0; i < mClients.length(); i++) {
+            clients.add(getClient(i));
+        }
+        return clients;
+    }
+
+    /**
+     * Removes a client, e.g. after its connection has been closed. The next transaction on its
+     * slot opens a new connection.
+     */
+    public boolean remove(T client) {
+        for (int i = 0; i < mClients.length(); i++) {
+            if (mClients.compareAndSet(i, client, null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the open clients.
+     */
+    public List<T> getClients() {
+        List<T> clients = new ArrayList<>(mClients.length());
+        for (int i = 0; i < mClients.length(); i++) {
+            T client = mClients.get(i);
+            if (client != null) {
+                clients.add(client);
+            }
+        }
+        return clients;
+    }
+
+    private T getClient(int index) throws IOException {
+        T client;
+        while ((client = mClients.get(index)) == null) {
+            // Connect without holding up the transactions on the other slots. If another thread
+            // has opened the slot in the meantime, its client wins.
+            T newClient = mFactory.newClient();
+            if (mClients.compareAndSet(index, null, newClient)) {
+                return newClient;
+            }
+            mClose.accept(newClient);
+        }
+        return client;
+    }
+}
@@ -18,28 +18,40 @@ package mindroid.runtime.system;
 
 import java.io.Closeable;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import mindroid.os.Binder;
+import mindroid.os.BinderStats;
 import mindroid.os.Bundle;
 import mindroid.os.IBinder;
 import mindroid.os.IInterface;
 import mindroid.os.Parcel;
 import mindroid.os.RemoteException;
-import mindroid.runtime.system.io.AbstractClient;
-import mindroid.runtime.system.io.AbstractServer;
+import mindroid.os.TransactionBatch;
+import mindroid.io.DataOutputStream;
+import mindroid.io.ModifiedUtf8;
+import mindroid.runtime.system.aio.AbstractClient;
+import mindroid.runtime.system.aio.AbstractServer;
+import mindroid.runtime.system.aio.SocketExecutorGroup;
+import mindroid.runtime.system.aio.SocketInputStream;
+import mindroid.runtime.system.aio.SocketOutputStream;
 import mindroid.util.Log;
 import mindroid.util.concurrent.CompletionException;
 import mindroid.util.concurrent.Executors;
@@ -49,12 +61,18 @@ public class Mindroid extends Plugin {
     private static String LOG_TAG = "Mindroid";
     private static final String TIMEOUT = "timeout";
     private static final long DEFAULT_TRANSACTION_TIMEOUT = 10000;
+    private static final long RECONNECT_DELAY = 1000;
     private static final boolean DEBUG = false;
     private static final ScheduledThreadPoolExecutor sExecutor;
 
     private ServiceDiscovery.Configuration mConfiguration;
     private Server mServer;
-    private Map<Integer, Client> mClients = new ConcurrentHashMap<>();
+    private SocketExecutorGroup mClientExecutorGroup;
+    private Map<Integer, ClientPool<Client>> mClients = new ConcurrentHashMap<>();
+    // The nodes whose connections are kept open, see connect().
+    private final Map<Integer, URI> mConnectedNodes = new ConcurrentHashMap<>();
+    // The connected nodes with a pending reconnect.
+    private final Set<Integer> mReconnectingNodes = ConcurrentHashMap.newKeySet();
     private final Map<Integer, Map<Long, WeakReference<IBinder>>> mProxies = new HashMap<>();
 
     static {
@@ -76,6 +94,7 @@ public class Mindroid extends Plugin {
     public Promise<Void> start(URI uri, Bundle extras) {
         int nodeId = mRuntime.getNodeId();
         LOG_TAG = "Mindroid [" + nodeId + "]";
+        mClientExecutorGroup = new SocketExecutorGroup();
         mConfiguration = mRuntime.getConfiguration();
         if (mConfiguration != null) {
             ServiceDiscovery.Configuration.Node node = mConfiguration.nodes.get(nodeId);
@@ -103,6 +122,15 @@ public class Mindroid extends Plugin {
         if (mServer != null) {
             mServer.shutdown(null);
         }
+        mConnectedNodes.clear();
+        for (ClientPool<Client> clients : mClients.values()) {
+            for (Client client : clients.getClients()) {
+                client.shutdown(null);
+            }
+        }
+        if (mClientExecutorGroup != null) {
+            mClientExecutorGroup.shutdown();
+        }
         return new Promise<>((Void) null);
     }
 
@@ -159,24 +187,57 @@ public class Mindroid extends Plugin {
 
     @Override
     public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags) throws RemoteException {
+        return getClient(binder, flags, data.size()).transact(binder, what, data, flags, null, 0);
+    }
+
+    @Override
+    public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags, BinderStats.Entry stats, long start) throws RemoteException {
+        final Client client;
+        try {
+            client = getClient(binder, flags, data.size());
+        } catch (RemoteException | RuntimeException e) {
+            stats.onTransactionFinished(0, e);
+            throw e;
+        }
+        return client.transact(binder, what, data, flags, stats, start);
+    }
+
+    @Override
+    public void transact(IBinder binder, TransactionBatch batch) throws RemoteException {
+        getClient(binder, Binder.FLAG_ONEWAY, 0).transact(binder, batch);
+    }
+
+    /**
+     * Returns the client for a transaction. One-way transactions to a binder always use the same
+     * connection of the node's pool to keep their order.
+     */
+    private Client getClient(IBinder binder, int flags, int payloadSize) throws RemoteException {
         int nodeId = (int) ((binder.getId() >> 32) & 0xFFFFFFFFL);
-        Client client = mClients.get(nodeId);
-        if (client == null) {
+        ClientPool<Client> clients = getClients(nodeId, binder.getUri().getScheme());
+        try {
+            Client client = (flags == Binder.FLAG_ONEWAY) ? clients.getOrdered(binder.getId()) : clients.get(payloadSize);
+            removeIfShutdown(clients, client);
+            return client;
+        } catch (IOException e) {
+            throw new RemoteException("Binder transaction failure");
+        }
+    }
+
+    private ClientPool<Client> getClients(int nodeId, String scheme) throws RemoteException {
+        ClientPool<Client> clients = mClients.get(nodeId);
+        if (clients == null) {
             if (mConfiguration != null) {
                 ServiceDiscovery.Configuration.Node node = mConfiguration.nodes.get(nodeId);
                 if (node != null) {
-                    ServiceDiscovery.Configuration.Plugin plugin = node.plugins.get(binder.getUri().getScheme());
+                    ServiceDiscovery.Configuration.Plugin plugin = node.plugins.get(scheme);
                     if (plugin != null) {
                         ServiceDiscovery.Configuration.Server server = plugin.server;
                         if (server != null) {
-                            try {
-                                client = new Client(node.id);
-                                mClients.put(nodeId, client);
+                            clients = mClients.computeIfAbsent(nodeId, (id) -> new ClientPool<>(plugin.connectionPool, () -> {
+                                Client client = new Client(node.id, mClientExecutorGroup);
                                 client.start(server.uri);
-                            } catch (IOException e) {
-                                mClients.remove(nodeId);
-                                throw new RemoteException("Binder transaction failure");
-                            }
+                                return client;
+                            }, Client::getLoad, (client) -> client.shutdown(null)));
                         } else {
                             throw new RemoteException("Binder transaction failure");
                         }
@@ -190,7 +251,7 @@ public class Mindroid extends Plugin {
                 throw new RemoteException("Binder transaction failure");
             }
         }
-        return client.transact(binder, what, data, flags);
+        return clients;
     }
 
     @Override
@@ -202,114 +263,304 @@ public class Mindroid extends Plugin {
         return true;
     }
 
+    /**
+     * Opens all connections of the node's connection pool, e.g. {@code mindroid://42}. The
+     * connections of the node are kept open, i.e. they are reestablished after they have been
+     * closed, until the node is disconnected. Without connect, connections are established on
+     * first use.
+     */
     @Override
     public Promise<Void> connect(URI node, Bundle extras) {
-        // Automatic connection establishment when referencing other nodes.
-        return null;
+        final int nodeId;
+        try {
+            nodeId = Integer.parseInt(node.getAuthority());
+        } catch (NumberFormatException e) {
+            return new Promise<>(new IllegalArgumentException("Invalid node: " + node));
+        }
+        try {
+            ClientPool<Client> clients = getClients(nodeId, node.getScheme());
+            mConnectedNodes.put(nodeId, node);
+            List<Client> connections = clients.open();
+            Promise<?>[] promises = new Promise<?>[connections.size()];
+            for (int i = 0; i < promises.length; i++) {
+                Client client = connections.get(i);
+                removeIfShutdown(clients, client);
+                promises[i] = client.connected();
+            }
+            return Promise.allOf(Executors.SYNCHRONOUS_EXECUTOR, promises);
+        } catch (RemoteException | IOException e) {
+            reconnect(nodeId);
+            return new Promise<>(new RemoteException("Node connection failure", e));
+        }
     }
 
     @Override
     public Promise<Void> disconnect(URI node, Bundle extras) {
-        return null;
+        final int nodeId;
+        try {
+            nodeId = Integer.parseInt(node.getAuthority());
+        } catch (NumberFormatException e) {
+            return new Promise<>(new IllegalArgumentException("Invalid node: " + node));
+        }
+        mConnectedNodes.remove(nodeId);
+        ClientPool<Client> clients = mClients.get(nodeId);
+        if (clients != null) {
+            for (Client client : clients.getClients()) {
+                client.shutdown(null);
+            }
+        }
+        return new Promise<>((Void) null);
     }
 
     public void onShutdown(AbstractClient client) {
-        mClients.remove(client.getNodeId());
+        final int nodeId = client.getNodeId();
+        ClientPool<Client> clients = mClients.get(nodeId);
+        if (clients != null && clients.remove((Client) client)) {
+            reconnect(nodeId);
+        }
     }
 
+    /**
+     * Removes a client that has been shut down before it has been added to the pool, e.g. because
+     * its connection failed or was closed while it was started. onShutdown cannot remove it.
+     */
+    private void removeIfShutdown(ClientPool<Client> clients, Client client) {
+        if (client.isShutdown() && clients.remove(client)) {
+            reconnect(client.getNodeId());
+        }
+    }
+
+    /**
+     * Schedules a reconnect if the node is connected and no reconnect is pending yet. Failed
+     * reconnects are retried until the node is disconnected.
+     */
+    private void reconnect(final int nodeId) {
+        if (mConnectedNodes.containsKey(nodeId) && mReconnectingNodes.add(nodeId)) {
+            sExecutor.schedule(() -> {
+                mReconnectingNodes.remove(nodeId);
+                URI node = mConnectedNodes.get(nodeId);
+                if (node != null) {
+                    connect(node, null);
+                }
+            }, RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A frame of the wire protocol. Both sides of a connection first send the protocol header, an
+     * int made of "MND" and the protocol version. Each frame is then prefixed with its size and
+     * consists of the type, the binder handle, the binder URI if the type has
+     * {@link #MESSAGE_FLAG_URI} set, the transaction id, 'what', the data size and the data.
+     * Exception frames append the exception class name. Version 1 of the protocol had no header,
+     * no size prefix and no binder handles. Nodes that use different versions refuse to talk to
+     * each other.
+     */
     private static class Message {
+        // Version 2 introduced the size prefix and the binder handles, see BinderHandleTable.
+        private static final int PROTOCOL_VERSION = 2;
+        private static final int PROTOCOL_HEADER = 0x4D4E4400 | PROTOCOL_VERSION;
         public static final int MESSAGE_TYPE_TRANSACTION = 1;
         public static final int MESSAGE_TYPE_EXCEPTION_TRANSACTION = 2;
-
-        private Message(int type, String uri, int transactionId, int what, byte[] data, int size) {
-            this(type, uri, transactionId, what, data, size, null);
+        public static final int MESSAGE_TYPE_BATCH_TRANSACTION = 3;
+        // Set in the type of messages that carry the binder URI, see BinderHandleTable.
+        private static final int MESSAGE_FLAG_URI = 0x100;
+        // Smaller heap payloads are copied into the socket's chunks, larger ones are queued as is.
+        private static final int ZERO_COPY_THRESHOLD = 1024;
+
+        private Message(int type, int handle, String uri, int transactionId, int what, Parcel data) {
+            this(type, handle, uri, transactionId, what, data, null);
         }
 
-        private Message(int type, String uri, int transactionId, int what, byte[] data, int size, Throwable cause) {
+        private Message(int type, int handle, String uri, int transactionId, int what, Parcel data, Throwable cause) {
             this.type = type;
+            this.handle = handle;
             this.uri = uri;
             this.transactionId = transactionId;
             this.what = what;
             this.data = data;
-            this.size = size;
             this.cause = cause;
         }
 
-        public static Message newMessage(String uri, int transactionId, int what, byte[] data) {
-            return newMessage(uri, transactionId, what, data, data.length);
+        /**
+         * A transaction to the binder {@code handle}. The binder URI is only sent if the handle is
+         * bound by this message or if it is {@link BinderHandleTable#NO_HANDLE}, otherwise it must
+         * be null. Replies carry neither handle nor URI. The message takes ownership of the data
+         * Parcel and recycles it once it has been written.
+         */
+        public static Message newMessage(int handle, String uri, int transactionId, int what, Parcel data) {
+            return new Message(MESSAGE_TYPE_TRANSACTION, handle, uri, transactionId, what, data);
         }
 
-        public static Message newMessage(String uri, int transactionId, int what, byte[] data, int size) {
-            return new Message(MESSAGE_TYPE_TRANSACTION, uri, transactionId, what, data, size);
+        /**
+         * A batch of one-way transactions. 'what' is the number of transactions, the data holds
+         * each transaction as its what code, data size and data.
+         */
+        public static Message newBatchMessage(int handle, String uri, int count, Parcel data) {
+            return new Message(MESSAGE_TYPE_BATCH_TRANSACTION, handle, uri, 0, count, data);
         }
 
-        public static Message newExceptionMessage(String uri, int transactionId, int what, byte[] data) {
-            return newExceptionMessage(uri, transactionId, what, data, data.length, null);
+        public static Message newExceptionMessage(int transactionId, int what, byte[] data, Throwable cause) {
+            return new Message(MESSAGE_TYPE_EXCEPTION_TRANSACTION, BinderHandleTable.NO_HANDLE, null, transactionId, what, Parcel.obtain(data), cause);
         }
 
-        public static Message newExceptionMessage(String uri, int transactionId, int what, byte[] data, Throwable cause) {
-            return newExceptionMessage(uri, transactionId, what, data, data.length, cause);
-        }
-
-        public static Message newExceptionMessage(String uri, int transactionId, int what, byte[] data, int size) {
-            return newExceptionMessage(uri, transactionId, what, data, data.length, null);
-        }
-
-        public static Message newExceptionMessage(String uri, int transactionId, int what, byte[] data, int size, Throwable cause) {
-            return new Message(MESSAGE_TYPE_EXCEPTION_TRANSACTION, uri, transactionId, what, data, size, cause);
-        }
-
-        public static Message newMessage(DataInputStream inputStream) throws IOException {
-            int type = inputStream.readInt();
-            String uri = inputStream.readUTF();
-            int transactionId = inputStream.readInt();
-            int what = inputStream.readInt();
-            int size = inputStream.readInt();
-            byte[] data = new byte[size];
-            inputStream.readFully(data, 0, size);
-            if (type == MESSAGE_TYPE_TRANSACTION) {
-                return new Message(type, uri, transactionId, what, data, size);
+        /**
+         * Reads a message whose frame has been received completely. The data of transactions is
+         * read straight from the socket's receive buffers into a pooled Parcel.
+         */
+        public static Message newMessage(InputStream inputStream, DataInputStream dataInputStream) throws IOException {
+            int type = dataInputStream.readInt();
+            int handle = dataInputStream.readInt();
+            String uri = null;
+            if ((type & MESSAGE_FLAG_URI) != 0) {
+                type &= ~MESSAGE_FLAG_URI;
+                uri = dataInputStream.readUTF();
+            }
+            int transactionId = dataInputStream.readInt();
+            int what = dataInputStream.readInt();
+            int size = dataInputStream.readInt();
+            if (type != MESSAGE_TYPE_EXCEPTION_TRANSACTION) {
+                return new Message(type, handle, uri, transactionId, what, readData(inputStream, dataInputStream, size));
             } else {
+                // The data of exception messages is not used.
+                dataInputStream.skipBytes(size);
                 Throwable exception = null;
-                int exceptionCount = inputStream.readInt();
+                int exceptionCount = dataInputStream.readInt();
                 if (exceptionCount > 0) {
-                    String exceptionClassName = inputStream.readUTF();
+                    String exceptionClassName = dataInputStream.readUTF();
                     try {
                         exception = (Throwable) Class.forName(exceptionClassName).newInstance();
                     } catch (InstantiationException | IllegalAccessException | ClassNotFoundException | ClassCastException e) {
                         exception = null;
                     }
                 }
-                return new Message(type, uri, transactionId, what, data, size, (exception != null) ? new RemoteException(exception) : new RemoteException());
+                return new Message(type, handle, uri, transactionId, what, null, (exception != null) ? new RemoteException(exception) : new RemoteException());
+            }
+        }
+
+        public static void writeProtocolHeader(DataOutputStream dataOutputStream) throws IOException {
+            synchronized (dataOutputStream) {
+                dataOutputStream.writeInt(PROTOCOL_HEADER);
+                dataOutputStream.flush();
             }
         }
 
-        public final void write(DataOutputStream outputStream) throws IOException {
-            synchronized (outputStream) {
-                outputStream.writeInt(this.type);
-                outputStream.writeUTF(this.uri);
-                outputStream.writeInt(this.transactionId);
-                outputStream.writeInt(this.what);
-                outputStream.writeInt(this.size);
-                outputStream.write(this.data, 0, this.size);
-                if (type != MESSAGE_TYPE_TRANSACTION) {
+        /**
+         * Reads the protocol header of the peer, which precedes all frames of a connection.
+         *
+         * @return true once the header has been read, false if more data is needed.
+         * @throws ProtocolException if the peer uses another protocol or protocol version.
+         */
+        public static boolean readProtocolHeader(Bundle context, DataInputStream dataInputStream) throws IOException {
+            if (context.containsKey("protocolVersion")) {
+                return true;
+            }
+            if (dataInputStream.available() < 4) {
+                return false;
+            }
+            final int header = dataInputStream.readInt();
+            if (header != PROTOCOL_HEADER) {
+                Log.e(LOG_TAG, "Unsupported protocol header: 0x" + Integer.toHexString(header));
+                throw new ProtocolException("Unsupported protocol header: 0x" + Integer.toHexString(header));
+            }
+            context.putInt("protocolVersion", PROTOCOL_VERSION);
+            return true;
+        }
+
+        private static Parcel readData(InputStream inputStream, DataInputStream dataInputStream, int size) throws IOException {
+            if (size < 0) {
+                throw new IOException("Invalid data size: " + size);
+            }
+            // Received Parcels are handed to the application, which does not necessarily recycle
+            // them, so they are heap Parcels to not churn direct memory.
+            Parcel data = Parcel.obtain(size);
+            try {
+                ByteBuffer buffer = data.reserveBytes(size);
+                if (inputStream instanceof SocketInputStream) {
+                    while (buffer.hasRemaining()) {
+                        if (((SocketInputStream) inputStream).read(buffer) == 0) {
+                            throw new EOFException();
+                        }
+                    }
+                } else {
+                    dataInputStream.readFully(buffer.array(), buffer.arrayOffset(), size);
+                }
+            } catch (IOException | RuntimeException e) {
+                data.recycle();
+                throw e;
+            } catch (RemoteException e) {
+                data.recycle();
+                throw new IOException(e);
+            }
+            return data.asInput();
+        }
+
+        /**
+         * Writes the message as a frame that is prefixed with the size of the message, so that the
+         * receiver can wait for the whole frame without blocking a thread. Direct and large data
+         * Parcels are queued on the socket without copying them and recycled once they have been
+         * written, all others are recycled right away.
+         *
+         * @param outputStream The socket output stream that {@code dataOutputStream} writes to.
+         */
+        public final void write(OutputStream outputStream, DataOutputStream dataOutputStream) throws IOException {
+            Parcel data = this.data;
+            this.data = null;
+            try {
+                final int size = data.size();
+                int frameSize = 4 + 4 + 4 + 4 + 4 + size;
+                if (this.uri != null) {
+                    frameSize += 2 + (int) ModifiedUtf8.countBytes(this.uri);
+                }
+                if (type == MESSAGE_TYPE_EXCEPTION_TRANSACTION) {
+                    frameSize += 4;
                     if (this.cause != null && !(this.cause instanceof RemoteException)) {
-                        outputStream.writeInt(1);
-                        outputStream.writeUTF(this.cause.getClass().getName());
+                        frameSize += 2 + (int) ModifiedUtf8.countBytes(this.cause.getClass().getName());
+                    }
+                }
+                synchronized (dataOutputStream) {
+                    dataOutputStream.writeInt(frameSize);
+                    if (this.uri != null) {
+                        dataOutputStream.writeInt(this.type | MESSAGE_FLAG_URI);
+                        dataOutputStream.writeInt(this.handle);
+                        dataOutputStream.writeUTF(this.uri);
+                    } else {
+                        dataOutputStream.writeInt(this.type);
+                        dataOutputStream.writeInt(this.handle);
+                    }
+                    dataOutputStream.writeInt(this.transactionId);
+                    dataOutputStream.writeInt(this.what);
+                    dataOutputStream.writeInt(size);
+                    if (outputStream instanceof SocketOutputStream && (data.isDirect() || size >= ZERO_COPY_THRESHOLD)) {
+                        final Parcel parcel = data;
+                        data = null;
+                        ((SocketOutputStream) outputStream).write(parcel.asByteBuffer(), parcel::recycle);
                     } else {
-                        outputStream.writeInt(0);
+                        dataOutputStream.write(data.getByteArray(), 0, size);
                     }
+                    if (type == MESSAGE_TYPE_EXCEPTION_TRANSACTION) {
+                        if (this.cause != null && !(this.cause instanceof RemoteException)) {
+                            dataOutputStream.writeInt(1);
+                            dataOutputStream.writeUTF(this.cause.getClass().getName());
+                        } else {
+                            dataOutputStream.writeInt(0);
+                        }
+                    }
+                    dataOutputStream.flush();
+                }
+            } finally {
+                if (data != null) {
+                    data.recycle();
                 }
-                outputStream.flush();
             }
         }
 
         int type;
+        int handle;
         String uri;
         int transactionId;
         int what;
-        byte[] data;
-        int size;
+        // The data of transactions and batches, null for received exception messages.
+        Parcel data;
         Throwable cause;
     }
 
@@ -318,21 +569,29 @@ public class Mindroid extends Plugin {
 
         @Override
         public void onConnected(Connection connection) {
-            Log.d(LOG_TAG, "Client connected from " + connection.getRemoteSocketAddress());
+            try {
+                Log.d(LOG_TAG, "Client connected from " + connection.getRemoteSocketAddress());
+            } catch (IOException ignore) {
+                Log.e(LOG_TAG, "Failed to get remote socket address");
+            }
         }
 
         @Override
         public void onDisconnected(Connection connection, Throwable cause) {
-            Log.d(LOG_TAG, "Client disconnected from " + connection.getRemoteSocketAddress());
+            try {
+                Log.d(LOG_TAG, "Client disconnected from " + connection.getRemoteSocketAddress());
+            } catch (IOException ignore) {
+                Log.e(LOG_TAG, "Failed to get remote socket address");
+            }
         }
 
         @Override
-        public void onTransact(Bundle context, InputStream inputStream, OutputStream outputStream) throws IOException {
+        public boolean onTransact(Bundle context, InputStream inputStream, OutputStream outputStream) throws IOException {
             if (!context.containsKey("dataInputStream")) {
                 DataInputStream dataInputStream = new DataInputStream(inputStream);
                 context.putObject("dataInputStream", dataInputStream);
             }
-            if (!context.containsKey("datOutputStream")) {
+            if (!context.containsKey("dataOutputStream")) {
                 DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
                 context.putObject("dataOutputStream", dataOutputStream);
             }
@@ -340,18 +599,34 @@ public class Mindroid extends Plugin {
             DataOutputStream dataOutputStream = (DataOutputStream) context.getObject("dataOutputStream");
 
             try {
-                Message message = Message.newMessage(dataInputStream);
+                if (!context.containsKey("protocolVersion")) {
+                    if (!Message.readProtocolHeader(context, dataInputStream)) {
+                        return false;
+                    }
+                    // Answered before any reply, which all depend on frames of the client.
+                    Message.writeProtocolHeader(dataOutputStream);
+                }
+                Message message = readMessage(context, inputStream, dataInputStream);
+                if (message == null) {
+                    return false;
+                }
 
                 if (message.type == Message.MESSAGE_TYPE_TRANSACTION) {
                     try {
-                        IBinder binder = mRuntime.getBinder(URI.create(message.uri));
+                        IBinder binder = BinderHandleTable.get(mRuntime, context).getBinder(message.handle, message.uri);
                         if (binder != null) {
-                            Promise<Parcel> result = binder.transact(message.what, Parcel.obtain(message.data), 0);
+                            final Promise<Parcel> result;
+                            Object origConnection = Binder.setCallingConnection(context.getObject("connection"));
+                            try {
+                                result = binder.transact(message.what, message.data, 0);
+                            } finally {
+                                Binder.setCallingConnection(origConnection);
+                            }
                             if (result != null) {
                                 result.then((value, exception) -> {
                                     try {
                                         if (exception == null) {
-                                            Message.newMessage(message.uri, message.transactionId, message.what, value.getByteArray(), value.size()).write(dataOutputStream);
+                                            Message.newMessage(BinderHandleTable.NO_HANDLE, null, message.transactionId, message.what, value).write(outputStream, dataOutputStream);
                                         } else {
                                             final Throwable cause;
                                             if (exception instanceof CompletionException && exception.getCause() != null) {
@@ -359,7 +634,7 @@ public class Mindroid extends Plugin {
                                             } else {
                                                 cause = exception;
                                             }
-                                            Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, cause).write(dataOutputStream);
+                                            Message.newExceptionMessage(message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, cause).write(outputStream, dataOutputStream);
                                         }
                                     } catch (IOException e) {
                                         try {
@@ -370,18 +645,23 @@ public class Mindroid extends Plugin {
                                 });
                             }
                         } else {
-                            Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, new RemoteException("Invalid service URI")).write(dataOutputStream);
+                            message.data.recycle();
+                            Message.newExceptionMessage(message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, new RemoteException("Invalid service URI")).write(outputStream, dataOutputStream);
                         }
                     } catch (IllegalArgumentException e) {
                         Log.e(LOG_TAG, e.getMessage(), e);
-                        Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(dataOutputStream);
+                        message.data.recycle();
+                        Message.newExceptionMessage(message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(outputStream, dataOutputStream);
                     } catch (RemoteException e) {
                         Log.e(LOG_TAG, e.getMessage(), e);
-                        Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(dataOutputStream);
+                        Message.newExceptionMessage(message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(outputStream, dataOutputStream);
                     }
+                } else if (message.type == Message.MESSAGE_TYPE_BATCH_TRANSACTION) {
+                    onBatchTransact(context, message);
                 } else {
                     Log.e(LOG_TAG, "Invalid message type: " + message.type);
                 }
+                return true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Log.e(LOG_TAG, e.getMessage(), e);
@@ -391,15 +671,118 @@ public class Mindroid extends Plugin {
         }
     }
 
+    /**
+     * Reads the next message once its frame has been received completely.
+     *
+     * @return the message, or null if more data is needed.
+     */
+    private static Message readMessage(Bundle context, InputStream inputStream, DataInputStream dataInputStream) throws IOException {
+        if (!context.containsKey("messageSize")) {
+            if (dataInputStream.available() >= 4) {
+                context.putInt("messageSize", dataInputStream.readInt());
+            } else {
+                return null;
+            }
+        }
+        if (dataInputStream.available() >= context.getInt("messageSize")) {
+            context.remove("messageSize");
+            return Message.newMessage(inputStream, dataInputStream);
+        } else {
+            return null;
+        }
+    }
+
+    private void onBatchTransact(Bundle context, Message message) {
+        IBinder binder = null;
+        try {
+            binder = BinderHandleTable.get(mRuntime, context).getBinder(message.handle, message.uri);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        }
+        if (binder == null) {
+            Log.w(LOG_TAG, "Dropping batch of " + message.what + " transactions for invalid binder handle " + message.handle);
+            message.data.recycle();
+            return;
+        }
+
+        TransactionBatch batch = TransactionBatch.obtain();
+        try {
+            ByteBuffer buffer = message.data.asByteBuffer();
+            final int limit = buffer.limit();
+            for (int i = 0; i < message.what; i++) {
+                int what = buffer.getInt();
+                int size = buffer.getInt();
+                Parcel data = Parcel.obtain(size);
+                batch.add(what, data);
+                buffer.limit(buffer.position() + size);
+                data.putBytes(buffer);
+                data.asInput();
+                buffer.limit(limit);
+            }
+        } catch (RuntimeException | RemoteException e) {
+            Log.e(LOG_TAG, "Invalid batch transaction", e);
+            batch.recycle();
+            return;
+        } finally {
+            message.data.recycle();
+        }
+
+        Object origConnection = Binder.setCallingConnection(context.getObject("connection"));
+        try {
+            binder.transact(batch);
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        } finally {
+            Binder.setCallingConnection(origConnection);
+        }
+    }
+
     private class Client extends AbstractClient {
         private final AtomicInteger mTransactionIdGenerator = new AtomicInteger(1);
         private Map<Integer, Promise<Parcel>> mTransactions = new ConcurrentHashMap<>();
+        // Guarded by the data output stream.
+        private final BinderHandleTable mBinderHandles = new BinderHandleTable(mRuntime);
+        private final Promise<Void> mConnected = new Promise<>(Executors.SYNCHRONOUS_EXECUTOR);
+        private volatile boolean mShutdown = false;
+
+        public Client(int nodeId, SocketExecutorGroup executorGroup) throws IOException {
+            super(nodeId, executorGroup);
+        }
+
+        @Override
+        public void start(String uri, SocketAddress localAddress) throws IOException {
+            super.start(uri, localAddress);
+            // The header is queued before the first frame and sent once the socket is connected.
+            DataOutputStream dataOutputStream = new DataOutputStream(getOutputStream());
+            getContext().putObject("dataOutputStream", dataOutputStream);
+            Message.writeProtocolHeader(dataOutputStream);
+        }
 
-        public Client(int nodeId) throws IOException {
-            super(nodeId);
+        /**
+         * Returns the number of pending two-way transactions.
+         */
+        public int getLoad() {
+            return mTransactions.size();
+        }
+
+        /**
+         * Returns a Promise that is completed once the connection has been established, or
+         * exceptionally if that fails.
+         */
+        public Promise<Void> connected() {
+            return mConnected;
+        }
+
+        /**
+         * Returns whether the client has been shut down.
+         */
+        public boolean isShutdown() {
+            return mShutdown;
         }
 
         public void shutdown(Throwable cause) {
+            mShutdown = true;
+            mConnected.completeWith((cause != null) ? cause : new RemoteException("Connection closed"));
             Mindroid.this.onShutdown(this);
 
             if (mTransactions != null) {
@@ -411,12 +794,17 @@ public class Mindroid extends Plugin {
             sExecutor.execute(() -> { super.shutdown(cause); });
         }
 
-        public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags) throws RemoteException {
+        /**
+         * Sends a transaction. If {@code stats} is not null, the outcome of the transaction is
+         * recorded in it.
+         */
+        public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags, BinderStats.Entry stats, long start) throws RemoteException {
             final int transactionId = mTransactionIdGenerator.getAndIncrement();
+            Promise<Parcel> promise = null;
             Promise<Parcel> result;
             try {
                 Bundle context = getContext();
-                if (!context.containsKey("datOutputStream")) {
+                if (!context.containsKey("dataOutputStream")) {
                     DataOutputStream dataOutputStream = new DataOutputStream(getOutputStream());
                     context.putObject("dataOutputStream", dataOutputStream);
                 }
@@ -425,7 +813,8 @@ public class Mindroid extends Plugin {
                 if (flags == Binder.FLAG_ONEWAY) {
                     result = null;
                 } else {
-                    final Promise<Parcel> promise = new Promise<>(Executors.SYNCHRONOUS_EXECUTOR);
+                    // A Reply records the statistics without another continuation.
+                    promise = (stats != null) ? new Binder.Reply(stats, start) : new Promise<>(Executors.SYNCHRONOUS_EXECUTOR);
                     result = promise.orTimeout(data.getLongExtra(TIMEOUT, DEFAULT_TRANSACTION_TIMEOUT))
                             .then((value, exception) -> {
                                 mTransactions.remove(transactionId);
@@ -433,27 +822,104 @@ public class Mindroid extends Plugin {
                     mTransactions.put(transactionId, promise);
                 }
 
-                Message.newMessage(binder.getUri().toString(), transactionId, what, data.getByteArray(), data.size()).write(dataOutputStream);
+                synchronized (dataOutputStream) {
+                    final String uri = binder.getUri().toString();
+                    int handle = mBinderHandles.getHandle(uri);
+                    final Message message;
+                    if (handle != BinderHandleTable.NO_HANDLE) {
+                        message = Message.newMessage(handle, null, transactionId, what, data);
+                    } else {
+                        message = Message.newMessage(mBinderHandles.bind(uri), uri, transactionId, what, data);
+                    }
+                    // The message owns the data from here on.
+                    data = null;
+                    message.write(getOutputStream(), dataOutputStream);
+                }
+                if (promise == null && stats != null) {
+                    stats.onTransactionFinished(0, null);
+                }
             } catch (IOException e) {
                 mTransactions.remove(transactionId);
                 shutdown(e);
-                throw new RemoteException("Binder transaction failure", e);
+                RemoteException exception = new RemoteException("Binder transaction failure", e);
+                if (promise != null) {
+                    promise.completeWith(exception);
+                } else if (stats != null) {
+                    stats.onTransactionFinished(0, exception);
+                }
+                throw exception;
+            } finally {
+                if (data != null) {
+                    data.recycle();
+                }
             }
             return result;
         }
 
+        public void transact(IBinder binder, TransactionBatch batch) throws RemoteException {
+            Parcel frame = Parcel.obtainDirect(0);
+            try {
+                Bundle context = getContext();
+                if (!context.containsKey("dataOutputStream")) {
+                    DataOutputStream dataOutputStream = new DataOutputStream(getOutputStream());
+                    context.putObject("dataOutputStream", dataOutputStream);
+                }
+                DataOutputStream dataOutputStream = (DataOutputStream) context.getObject("dataOutputStream");
+
+                for (int i = 0; i < batch.size(); i++) {
+                    Parcel data = batch.getData(i);
+                    frame.putInt(batch.getWhat(i));
+                    if (data != null) {
+                        frame.putInt(data.size());
+                        frame.putBytes(data.asByteBuffer());
+                    } else {
+                        frame.putInt(0);
+                    }
+                }
+                synchronized (dataOutputStream) {
+                    final String uri = binder.getUri().toString();
+                    int handle = mBinderHandles.getHandle(uri);
+                    final Message message;
+                    if (handle != BinderHandleTable.NO_HANDLE) {
+                        message = Message.newBatchMessage(handle, null, batch.size(), frame);
+                    } else {
+                        message = Message.newBatchMessage(mBinderHandles.bind(uri), uri, batch.size(), frame);
+                    }
+                    // The message owns the frame from here on.
+                    frame = null;
+                    message.write(getOutputStream(), dataOutputStream);
+                }
+            } catch (IOException e) {
+                shutdown(e);
+                throw new RemoteException("Binder transaction failure", e);
+            } finally {
+                if (frame != null) {
+                    frame.recycle();
+                }
+            }
+        }
+
         @Override
         public void onConnected() {
-            Log.d(LOG_TAG, "Connected to " + getRemoteSocketAddress());
+            try {
+                Log.d(LOG_TAG, "Connected to " + getRemoteSocketAddress());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to get remote socket address");
+            }
+            mConnected.complete(null);
         }
 
         @Override
         public void onDisconnected(Throwable cause) {
-            Log.d(LOG_TAG, "Disconnected from " + getRemoteSocketAddress());
+            try {
+                Log.d(LOG_TAG, "Disconnected from " + getRemoteSocketAddress());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to get remote socket address");
+            }
         }
 
         @Override
-        public void onTransact(Bundle context, InputStream inputStream, OutputStream outputStream) throws IOException {
+        public boolean onTransact(Bundle context, InputStream inputStream, OutputStream outputStream) throws IOException {
             if (!context.containsKey("dataInputStream")) {
                 DataInputStream dataInputStream = new DataInputStream(inputStream);
                 context.putObject("dataInputStream", dataInputStream);
@@ -461,19 +927,31 @@ public class Mindroid extends Plugin {
             DataInputStream dataInputStream = (DataInputStream) context.getObject("dataInputStream");
 
             try {
-                Message message = Message.newMessage(dataInputStream);
+                if (!Message.readProtocolHeader(context, dataInputStream)) {
+                    return false;
+                }
+                Message message = readMessage(context, inputStream, dataInputStream);
+                if (message == null) {
+                    return false;
+                }
 
                 final Promise<Parcel> promise = mTransactions.get(message.transactionId);
                 if (promise != null) {
                     mTransactions.remove(message.transactionId);
                     if (message.type == Message.MESSAGE_TYPE_TRANSACTION) {
-                        promise.complete(Parcel.obtain(message.data).asInput());
+                        if (!promise.complete(message.data)) {
+                            message.data.recycle();
+                        }
                     } else {
                         promise.completeWith(message.cause);
                     }
                 } else {
                     Log.e(LOG_TAG, "Invalid transaction id: " + message.transactionId);
+                    if (message.data != null) {
+                        message.data.recycle();
+                    }
                 }
+                return true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Log.e(LOG_TAG, e.getMessage(), e);
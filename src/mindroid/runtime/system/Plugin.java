@@ -18,11 +18,13 @@ package mindroid.runtime.system;
 
 import java.net.URI;
 import mindroid.os.Binder;
+import mindroid.os.BinderStats;
 import mindroid.os.Bundle;
 import mindroid.os.IBinder;
 import mindroid.os.IInterface;
 import mindroid.os.Parcel;
 import mindroid.os.RemoteException;
+import mindroid.os.TransactionBatch;
 import mindroid.util.concurrent.Promise;
 
 public abstract class Plugin {
@@ -51,6 +53,45 @@ public abstract class Plugin {
 
     public abstract Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags) throws RemoteException;
 
+    /**
+     * Like {@link #transact(IBinder, int, Parcel, int)}, but also records the outcome of the
+     * transaction in {@code stats}, including failures to send it. Plugins that create a Promise
+     * per two-way transaction anyway should create a {@link Binder.Reply} for {@code stats} and
+     * {@code start} instead, so that sampling does not chain another continuation to every call.
+     * The default implementation chains one.
+     *
+     * @hide
+     */
+    public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags, BinderStats.Entry stats, long start) throws RemoteException {
+        final Promise<Parcel> promise;
+        try {
+            promise = transact(binder, what, data, flags);
+        } catch (RemoteException | RuntimeException e) {
+            stats.onTransactionFinished(0, e);
+            throw e;
+        }
+        if (promise != null) {
+            promise.then((parcel, exception) -> {
+                stats.onTransactionFinished(start, exception);
+            });
+        } else {
+            stats.onTransactionFinished(0, null);
+        }
+        return promise;
+    }
+
+    /**
+     * Sends a batch of one-way transactions. Plugins take the Parcels they send out of the batch
+     * with {@link TransactionBatch#takeData(int)}, the batch itself is recycled by the runtime
+     * system. The default implementation sends the transactions one by one.
+     */
+    public void transact(IBinder binder, TransactionBatch batch) throws RemoteException {
+        for (int i = 0; i < batch.size(); i++) {
+            Parcel data = batch.takeData(i);
+            transact(binder, batch.getWhat(i), (data != null) ? data : Parcel.obtain(), Binder.FLAG_ONEWAY);
+        }
+    }
+
     public abstract void link(IBinder binder, IBinder.Supervisor supervisor, Bundle extras) throws RemoteException;
     public abstract boolean unlink(IBinder binder, IBinder.Supervisor supervisor, Bundle extras);
 
@@ -17,6 +17,8 @@
 package mindroid.runtime.system;
 
 import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -29,12 +31,15 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import mindroid.os.Binder;
+import mindroid.os.BinderStats;
 import mindroid.os.Bundle;
 import mindroid.os.IBinder;
 import mindroid.os.IInterface;
 import mindroid.os.Parcel;
 import mindroid.os.RemoteException;
+import mindroid.os.TransactionBatch;
 import mindroid.util.Log;
+import mindroid.util.Properties;
 import mindroid.util.concurrent.CancellationException;
 import mindroid.util.concurrent.ExecutionException;
 import mindroid.util.concurrent.Promise;
@@ -59,6 +64,9 @@ public class Runtime {
     private final AtomicInteger mProxyIdGenerator = new AtomicInteger(1);
     private final Set<Long> mIds = ConcurrentHashMap.newKeySet();
     private ServiceDiscovery.Configuration mConfiguration;
+    private final ReferenceQueue<Object> mReferenceQueue = new ReferenceQueue<>();
+    private final Set<Cleanable> mCleanables = ConcurrentHashMap.newKeySet();
+    private final Thread mCleaner;
 
     private Runtime(int nodeId, File configurationFile) {
         if (nodeId == 0) {
@@ -94,6 +102,15 @@ public class Runtime {
             }
             mIds.addAll(ids);
         }
+
+        mCleaner = new Thread("RuntimeCleaner") {
+            @Override
+            public void run() {
+                runCleaner();
+            }
+        };
+        mCleaner.setDaemon(true);
+        mCleaner.start();
     }
 
     public static Runtime getRuntime() {
@@ -117,6 +134,36 @@ public class Runtime {
                     Log.println('E', LOG_TAG, "Failed to start plugin", e);
                 }
             }
+            if (Boolean.getBoolean(Properties.RUNTIME_PRE_CONNECT)) {
+                sRuntime.connectAll();
+            }
+        }
+    }
+
+    /**
+     * Connects to all other nodes of the configuration by all plugins that both nodes have in
+     * common. The connections are established in parallel and kept open, so that the first
+     * transactions to other nodes do not wait for connection establishment.
+     */
+    private void connectAll() {
+        if (mConfiguration == null) {
+            return;
+        }
+        for (ServiceDiscovery.Configuration.Node node : mConfiguration.nodes.values()) {
+            if (node.id == mNodeId) {
+                continue;
+            }
+            for (ServiceDiscovery.Configuration.Plugin plugin : node.plugins.values()) {
+                if (plugin.server != null && mPlugins.containsKey(plugin.scheme)) {
+                    final URI uri = URI.create(plugin.scheme + "://" + node.id);
+                    Promise<Void> promise = connect(uri, null);
+                    if (promise != null) {
+                        promise.catchException(exception -> {
+                            Log.println('W', LOG_TAG, "Failed to connect to " + uri + ": " + exception.getMessage());
+                        });
+                    }
+                }
+            }
         }
     }
 
@@ -130,6 +177,7 @@ public class Runtime {
             }
         }
         if (shutdown) {
+            runtime.mCleaner.interrupt();
             for (Plugin plugin : runtime.mPlugins.values()) {
                 try {
                     plugin.stop(null, null).get();
@@ -149,6 +197,66 @@ public class Runtime {
         return mConfiguration;
     }
 
+    /**
+     * Registers an action that the runtime runs on its cleaner thread once {@code object} has
+     * become phantom reachable. Binders and proxies use this instead of finalizers to detach
+     * themselves from the runtime system. The action must not reference {@code object}, otherwise
+     * the object never becomes unreachable.
+     *
+     * @return a handle that runs the action right away, e.g. from a {@code dispose()} method.
+     * @hide
+     */
+    public final Cleanable register(Object object, Runnable action) {
+        if (object == null || action == null) {
+            throw new NullPointerException();
+        }
+        Cleanable cleanable = new Cleanable(object, mReferenceQueue, action, mCleanables);
+        mCleanables.add(cleanable);
+        return cleanable;
+    }
+
+    private void runCleaner() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Cleanable cleanable = (Cleanable) mReferenceQueue.remove();
+                try {
+                    cleanable.clean();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Cleanup action failed", e);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Handle of an action registered with {@link Runtime#register(Object, Runnable)}.
+     *
+     * @hide
+     */
+    public static final class Cleanable extends PhantomReference<Object> {
+        private final Runnable mAction;
+        private final Set<Cleanable> mCleanables;
+
+        Cleanable(Object object, ReferenceQueue<Object> queue, Runnable action, Set<Cleanable> cleanables) {
+            super(object, queue);
+            mAction = action;
+            mCleanables = cleanables;
+        }
+
+        /**
+         * Unregisters the action and runs it. The action runs at most once, no matter whether it
+         * is triggered explicitly or by the garbage collector.
+         */
+        public void clean() {
+            if (mCleanables.remove(this)) {
+                clear();
+                mAction.run();
+            }
+        }
+    }
+
     public final long attachBinder(Binder binder) {
         if (binder == null) {
             throw new NullPointerException();
@@ -383,15 +491,56 @@ public class Runtime {
 
     public final Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags) throws RemoteException {
         Plugin plugin = mPlugins.get(binder.getUri().getScheme());
-        if (plugin != null) {
-            Promise<Parcel> promise = plugin.transact(binder, what, data, flags);
-            if (flags != Binder.FLAG_ONEWAY && promise == null) {
-                throw new RemoteException("Binder transaction failure");
+        final BinderStats.Entry stats = BinderStats.getEntry(binder.getInterfaceDescriptor(), what);
+        if (plugin == null) {
+            RemoteException exception = new RemoteException("Binder transaction failure");
+            if (stats != null) {
+                stats.onTransactionStarted(data);
+                stats.onTransactionFinished(0, exception);
             }
-            return promise;
+            throw exception;
+        }
+        final Promise<Parcel> promise;
+        if (stats != null) {
+            // The plugin records the outcome of the transaction.
+            final long start = stats.onTransactionStarted(data);
+            promise = plugin.transact(binder, what, data, flags, stats, start);
         } else {
+            promise = plugin.transact(binder, what, data, flags);
+        }
+        if (flags != Binder.FLAG_ONEWAY && promise == null) {
             throw new RemoteException("Binder transaction failure");
         }
+        return promise;
+    }
+
+    public final void transact(IBinder binder, TransactionBatch batch) throws RemoteException {
+        try {
+            Plugin plugin = mPlugins.get(binder.getUri().getScheme());
+            for (int i = 0; i < batch.size(); i++) {
+                final BinderStats.Entry stats = BinderStats.getEntry(binder.getInterfaceDescriptor(), batch.getWhat(i));
+                if (stats != null) {
+                    stats.onTransactionStarted(batch.getData(i));
+                }
+            }
+            try {
+                if (plugin != null) {
+                    plugin.transact(binder, batch);
+                } else {
+                    throw new RemoteException("Binder transaction failure");
+                }
+            } catch (RemoteException | RuntimeException e) {
+                for (int i = 0; i < batch.size(); i++) {
+                    final BinderStats.Entry stats = BinderStats.getEntry(binder.getInterfaceDescriptor(), batch.getWhat(i));
+                    if (stats != null) {
+                        stats.onTransactionFinished(0, e);
+                    }
+                }
+                throw e;
+            }
+        } finally {
+            batch.recycle();
+        }
     }
 
     public final void link(IBinder binder, IBinder.Supervisor supervisor, Bundle extras) throws RemoteException {
@@ -458,7 +607,9 @@ public class Runtime {
     }
 
     /**
-     * Establishes a connection to node.
+     * Establishes a connection to node, e.g. {@code mindroid://42}. With the system property
+     * {@link Properties#RUNTIME_PRE_CONNECT}, the runtime system connects to all configured nodes
+     * on startup.
      *
      * Erlang Documentation: http://erlang.org/doc/reference_manual/distributed.html#node-connections, http://erlang.org/doc/man/net_kernel.html#connect_node-1.
      * Elixir Documentation: https://hexdocs.pm/elixir/Node.html.
@@ -38,6 +38,10 @@ public class ServiceDiscovery {
     private static final String PLUGIN_CLASS_ATTR = "class";
     private static final String SERVER_TAG = "server";
     private static final String SERVER_URI_ATTR = "uri";
+    private static final String CONNECTION_POOL_TAG = "connectionPool";
+    private static final String CONNECTION_POOL_SIZE_ATTR = "size";
+    private static final String CONNECTION_POOL_SELECTION_ATTR = "selection";
+    private static final String CONNECTION_POOL_LARGE_PAYLOAD_SIZE_ATTR = "largePayloadSize";
     private static final String SERVICE_DISCOVERY_TAG = "serviceDiscovery";
     private static final String SERVICE_TAG = "service";
     private static final String SERVICE_ID_ATTR = "id";
@@ -57,12 +61,32 @@ public class ServiceDiscovery {
             public String scheme;
             public String clazz;
             public Server server;
+            public ConnectionPool connectionPool = new ConnectionPool();
         }
 
         public static class Server {
             public String uri;
         }
 
+        /**
+         * The connections that other nodes open to the server of a plugin. Two-way transactions
+         * are spread over the connections, one-way transactions to a binder always use the same
+         * connection to keep their order. Transactions on different connections are not ordered
+         * with respect to each other.
+         */
+        public static class ConnectionPool {
+            public static final String SELECTION_LEAST_LOADED = "leastLoaded";
+            public static final String SELECTION_ROUND_ROBIN = "roundRobin";
+
+            public int size = 1;
+            public String selection = SELECTION_LEAST_LOADED;
+            /**
+             * Transactions with at least this many bytes of data use a separate connection. 0
+             * disables the large payload connection.
+             */
+            public int largePayloadSize = 0;
+        }
+
         public static class Service {
             public Node node;
             public int id;
@@ -192,6 +216,8 @@ public class ServiceDiscovery {
         for (int eventType = parser.nextTag(); !parser.getName().equals(PLUGIN_TAG) && eventType != XmlPullParser.END_TAG; eventType = parser.nextTag()) {
             if (parser.getName().equals(SERVER_TAG)) {
                 plugin.server = parseServer(parser);
+            } else if (parser.getName().equals(CONNECTION_POOL_TAG)) {
+                plugin.connectionPool = parseConnectionPool(parser);
             } else {
                 String tag = parser.getName();
                 skipSubTree(parser);
@@ -228,6 +254,41 @@ public class ServiceDiscovery {
         return server;
     }
 
+    private static Configuration.ConnectionPool parseConnectionPool(XmlPullParser parser) throws XmlPullParserException, IOException {
+        parser.require(XmlPullParser.START_TAG, null, CONNECTION_POOL_TAG);
+
+        Configuration.ConnectionPool connectionPool = new Configuration.ConnectionPool();
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            String attributeName = parser.getAttributeName(i);
+            String attributeValue = parser.getAttributeValue(i);
+            try {
+                if (attributeName.equals(CONNECTION_POOL_SIZE_ATTR)) {
+                    connectionPool.size = Integer.parseInt(attributeValue);
+                } else if (attributeName.equals(CONNECTION_POOL_SELECTION_ATTR)) {
+                    connectionPool.selection = attributeValue;
+                } else if (attributeName.equals(CONNECTION_POOL_LARGE_PAYLOAD_SIZE_ATTR)) {
+                    connectionPool.largePayloadSize = Integer.parseInt(attributeValue);
+                }
+            } catch (NumberFormatException e) {
+                throw new XmlPullParserException("Invalid connection pool " + attributeName + ": " + attributeValue);
+            }
+        }
+        if (connectionPool.size < 1 || connectionPool.largePayloadSize < 0
+                || !(Configuration.ConnectionPool.SELECTION_LEAST_LOADED.equals(connectionPool.selection)
+                        || Configuration.ConnectionPool.SELECTION_ROUND_ROBIN.equals(connectionPool.selection))) {
+            throw new XmlPullParserException("Invalid connection pool");
+        }
+
+        for (int eventType = parser.nextTag(); !parser.getName().equals(CONNECTION_POOL_TAG) && eventType != XmlPullParser.END_TAG; eventType = parser.nextTag()) {
+            String tag = parser.getName();
+            skipSubTree(parser);
+            parser.require(XmlPullParser.END_TAG, null, tag);
+        }
+
+        parser.require(XmlPullParser.END_TAG, null, CONNECTION_POOL_TAG);
+        return connectionPool;
+    }
+
     private static void parseServiceDiscovery(XmlPullParser parser, Configuration configuration) throws XmlPullParserException, IOException {
         parser.require(XmlPullParser.START_TAG, null, SERVICE_DISCOVERY_TAG);
 
@@ -34,14 +34,29 @@ public abstract class AbstractClient {
     private static final boolean DEBUG = false;
 
     private final int mNodeId;
-    private final SocketExecutorGroup mExecutorGroup = new SocketExecutorGroup();
+    private final SocketExecutorGroup mExecutorGroup;
+    private final boolean mOwnsExecutorGroup;
     private final Socket mSocket;
     private final Connection mConnection;
     private String mHost;
     private int mPort;
 
     public AbstractClient(int nodeId) throws IOException {
+        this(nodeId, new SocketExecutorGroup(), true);
+    }
+
+    /**
+     * Creates a client whose socket is served by the given executor group, which can be shared by
+     * many clients. The group is not shut down together with the client.
+     */
+    public AbstractClient(int nodeId, SocketExecutorGroup executorGroup) throws IOException {
+        this(nodeId, executorGroup, false);
+    }
+
+    private AbstractClient(int nodeId, SocketExecutorGroup executorGroup, boolean ownsExecutorGroup) throws IOException {
         mNodeId = nodeId;
+        mExecutorGroup = executorGroup;
+        mOwnsExecutorGroup = ownsExecutorGroup;
         mSocket = new Socket();
         mConnection = new Connection(mSocket);
     }
@@ -99,7 +114,9 @@ public abstract class AbstractClient {
             }
         }
 
-        mExecutorGroup.shutdown();
+        if (mOwnsExecutorGroup) {
+            mExecutorGroup.shutdown();
+        }
         onDisconnected(cause);
     }
 
@@ -27,6 +27,7 @@ import java.nio.channels.SocketChannel;
 import java.util.concurrent.CompletableFuture;
 
 import mindroid.util.Log;
+import mindroid.util.concurrent.Executors;
 import mindroid.util.concurrent.Promise;
 
 public class Socket {
@@ -99,7 +100,10 @@ public class Socket {
                 mOutputStream.sync();
             }
         });
-        new Promise<Void>(future).orTimeout(CONNECTION_ESTABLISHMENT_TIMEOUT)
+        // Connections may be established from threads without a Looper.
+        Promise<Void> promise = new Promise<>(Executors.SYNCHRONOUS_EXECUTOR);
+        promise.completeWith(future);
+        promise.orTimeout(CONNECTION_ESTABLISHMENT_TIMEOUT)
                 .catchException(ex -> {
                     try {
                         close();
@@ -141,7 +145,7 @@ public class Socket {
 
         int num = mSocketChannel.write(buffer);
         if (!buffer.hasRemaining()) {
-            if ((mOps & SelectionKey.OP_WRITE) == 1) {
+            if ((mOps & SelectionKey.OP_WRITE) != 0) {
                 mOps &= ~SelectionKey.OP_WRITE;
                 mSelector.wakeup();
             }
@@ -155,13 +159,17 @@ public class Socket {
     }
 
     long write(ByteBuffer[] buffers) throws IOException {
+        return write(buffers, 0, buffers.length);
+    }
+
+    long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
         if (!mSocketChannel.isConnected()) {
             return 0;
         }
 
-        long num = mSocketChannel.write(buffers);
-        if (!buffers[buffers.length - 1].hasRemaining()) {
-            if ((mOps & SelectionKey.OP_WRITE) == 1) {
+        long num = mSocketChannel.write(buffers, offset, length);
+        if (!buffers[offset + length - 1].hasRemaining()) {
+            if ((mOps & SelectionKey.OP_WRITE) != 0) {
                 mOps &= ~SelectionKey.OP_WRITE;
                 mSelector.wakeup();
             }
@@ -160,6 +160,42 @@ public class SocketInputStream extends InputStream {
         return count;
     }
 
+    /**
+     * Transfers up to {@code buffer.remaining()} of the available bytes into {@code buffer}. The
+     * bytes are copied straight from the receive buffers, so a direct {@code buffer} like the one
+     * of a direct {@link mindroid.os.Parcel} does not need an intermediate byte array.
+     *
+     * @return the number of bytes transferred, which may be less than requested.
+     */
+    public int read(ByteBuffer buffer) throws IOException {
+        if (buffer == null) {
+            throw new NullPointerException();
+        }
+
+        int c = Math.min(buffer.remaining(), mCount.get());
+        final int count = c;
+        Iterator<ByteBuffer> itr = mBuffer.iterator();
+        while (itr.hasNext() && c > 0) {
+            ByteBuffer b = itr.next();
+            final int remaining = b.remaining();
+            if (remaining > 0) {
+                final int size = c <= remaining ? c : remaining;
+                final int limit = b.limit();
+                b.limit(b.position() + size);
+                buffer.put(b);
+                b.limit(limit);
+                c -= size;
+                mCount.addAndGet(-size);
+                if (c == 0 && b.hasRemaining()) {
+                    break;
+                }
+            }
+            itr.remove();
+        }
+
+        return count;
+    }
+
     /**
      * Resets this stream to the last marked location. This implementation
      * resets the position to either the marked position, the start position
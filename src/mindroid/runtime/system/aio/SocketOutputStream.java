@@ -19,31 +19,115 @@ package mindroid.runtime.system.aio;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.Deque;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import mindroid.util.Properties;
 
+/**
+ * Output stream of a {@link Socket}. Small writes are encoded into pooled chunks, and all buffers
+ * that are queued while the socket is written are coalesced into the next gathering write, so
+ * that the frames of concurrent senders on one connection share system calls.
+ *
+ * <p>
+ * Queued bytes are written on {@link #flush()} or as soon as the flush threshold is reached. With
+ * a flush delay, {@link #flush()} defers the write by that many milliseconds to collect more
+ * frames, trading latency for fewer and larger writes. The defaults can be configured by the
+ * system properties {@link Properties#SOCKET_FLUSH_THRESHOLD} and
+ * {@link Properties#SOCKET_FLUSH_DELAY}.
+ */
 public class SocketOutputStream extends OutputStream {
     protected static final int MAX_BUFFER_SIZE = 8192;
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_POOL_SIZE = 8;
+    private static final int DEFAULT_FLUSH_THRESHOLD = Math.max(Integer.getInteger(Properties.SOCKET_FLUSH_THRESHOLD, MAX_BUFFER_SIZE), 1);
+    private static final long DEFAULT_FLUSH_DELAY = Math.max(Long.getLong(Properties.SOCKET_FLUSH_DELAY, 0), 0);
+    private static final ScheduledThreadPoolExecutor sExecutor;
 
     protected final Socket mSocket;
 
     /**
-     * The {@code ByteBuffer} list containing the bytes to stream over.
+     * The {@code ByteBuffer} list containing the bytes to stream over. Guarded by this.
      */
-    protected final Deque<ByteBuffer> mBuffer = new ConcurrentLinkedDeque<>();
+    protected final ArrayDeque<ByteBuffer> mBuffer = new ArrayDeque<>();
 
     /**
-     * The total number of bytes initially available in the byte array
-     * {@code mBuffer}.
+     * The total number of bytes available in {@code mBuffer}. Guarded by this.
      */
-    protected final AtomicInteger mCount = new AtomicInteger(0);
+    protected int mCount = 0;
+
+    // The chunks of mBuffer that are owned by the stream, in queue order. Guarded by this.
+    private final ArrayDeque<ByteBuffer> mChunks = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> mChunkPool = new ArrayDeque<>();
+    // The buffers of mBuffer that have a completion callback and their callbacks, in queue order.
+    // Guarded by this.
+    private final ArrayDeque<ByteBuffer> mCallbackBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> mCallbacks = new ArrayDeque<>();
+    // Callbacks of written buffers, only used by the writing thread.
+    private final ArrayDeque<Runnable> mCompletedCallbacks = new ArrayDeque<>();
+    // The last chunk of mBuffer while bytes may still be appended to it. Guarded by this.
+    private ByteBuffer mTail;
+    private ByteBuffer[] mWriteBuffers = new ByteBuffer[16];
+    private boolean mWriting = false;
+    private boolean mPending = false;
+    private boolean mFlushScheduled = false;
+    private volatile int mFlushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    private volatile long mFlushDelay = DEFAULT_FLUSH_DELAY;
+    private final Runnable mFlusher = () -> {
+        synchronized (this) {
+            mFlushScheduled = false;
+        }
+        sync();
+    };
+
+    static {
+        sExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName("SocketOutputStreamDaemon");
+                return t;
+            }
+        });
+        sExecutor.setKeepAliveTime(10, TimeUnit.SECONDS);
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
 
     SocketOutputStream(Socket socket) {
         mSocket = socket;
     }
 
+    /**
+     * Sets the number of queued bytes at which they are written without waiting for a flush.
+     */
+    public void setFlushThreshold(int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold <= 0");
+        }
+        mFlushThreshold = threshold;
+    }
+
+    public int getFlushThreshold() {
+        return mFlushThreshold;
+    }
+
+    /**
+     * Sets the time in milliseconds by which {@link #flush()} defers writing the queued bytes. 0
+     * writes them immediately.
+     */
+    public void setFlushDelay(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay < 0");
+        }
+        mFlushDelay = delay;
+    }
+
+    public long getFlushDelay() {
+        return mFlushDelay;
+    }
+
     /**
      * Closes this stream. This releases system resources used for this stream.
      *
@@ -52,23 +136,39 @@ public class SocketOutputStream extends OutputStream {
      */
     @Override
     public void close() throws IOException {
-        IOException exception = null;
-        try {
-            flush();
-        } catch (IOException e) {
-            exception = e;
-        }
-
-        mBuffer.clear();
+        sync();
 
-        if (exception != null) {
-            throw exception;
+        Runnable[] callbacks;
+        synchronized (this) {
+            mBuffer.clear();
+            mChunks.clear();
+            mChunkPool.clear();
+            mTail = null;
+            mCount = 0;
+            mCallbackBuffers.clear();
+            callbacks = mCallbacks.toArray(new Runnable[mCallbacks.size()]);
+            mCallbacks.clear();
+        }
+        // Buffers that will never be written are released as well.
+        for (Runnable callback : callbacks) {
+            callback.run();
         }
     }
 
     @Override
     public void flush() throws IOException {
-        sync();
+        final long delay = mFlushDelay;
+        if (delay > 0) {
+            synchronized (this) {
+                if (mFlushScheduled) {
+                    return;
+                }
+                mFlushScheduled = true;
+            }
+            sExecutor.schedule(mFlusher, delay, TimeUnit.MILLISECONDS);
+        } else {
+            sync();
+        }
     }
 
     @Override
@@ -102,9 +202,85 @@ public class SocketOutputStream extends OutputStream {
             return;
         }
 
-        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, count);
-        mBuffer.add(byteBuffer);
-        if (mCount.addAndGet(count) >= MAX_BUFFER_SIZE) {
+        // The caller may reuse the buffer once write returns, so the bytes must be copied.
+        boolean sync;
+        synchronized (this) {
+            if (count >= CHUNK_SIZE) {
+                mTail = null;
+                mBuffer.add((ByteBuffer) ByteBuffer.allocate(count).put(buffer, offset, count).flip());
+                mCount += count;
+            } else {
+                while (count > 0) {
+                    ByteBuffer tail = mTail;
+                    if (tail == null || tail.limit() == tail.capacity()) {
+                        tail = obtainChunk();
+                    }
+                    int num = Math.min(count, tail.capacity() - tail.limit());
+                    System.arraycopy(buffer, offset, tail.array(), tail.arrayOffset() + tail.limit(), num);
+                    tail.limit(tail.limit() + num);
+                    offset += num;
+                    count -= num;
+                    mCount += num;
+                }
+            }
+            sync = mCount >= mFlushThreshold;
+        }
+        if (sync) {
+            sync();
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of {@code buffer} to this stream without copying them. The buffer
+     * is queued as is and written together with all other queued buffers by a single gathering
+     * write. The stream owns the buffer until all of its bytes have been written, i.e. until
+     * {@code buffer.hasRemaining()} returns false. Direct buffers avoid an intermediate copy in the
+     * channel implementation.
+     *
+     * @param buffer
+     *            the buffer to be written.
+     * @throws NullPointerException
+     *             if {@code buffer} is {@code null}.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        write(buffer, null);
+    }
+
+    /**
+     * Writes the remaining bytes of {@code buffer} to this stream without copying them, like
+     * {@link #write(ByteBuffer)}, and runs {@code onWritten} once all of its bytes have been
+     * written or the stream has been closed. The callback may be used to release the memory that
+     * backs the buffer, e.g. to recycle a {@link mindroid.os.Parcel}. It is run by the writing
+     * thread and must not block.
+     *
+     * @param buffer
+     *            the buffer to be written.
+     * @param onWritten
+     *            the callback, or null.
+     * @throws NullPointerException
+     *             if {@code buffer} is {@code null}.
+     */
+    public void write(ByteBuffer buffer, Runnable onWritten) throws IOException {
+        final int count = buffer.remaining();
+        if (count == 0) {
+            if (onWritten != null) {
+                onWritten.run();
+            }
+            return;
+        }
+
+        boolean sync;
+        synchronized (this) {
+            mTail = null;
+            mBuffer.add(buffer);
+            mCount += count;
+            if (onWritten != null) {
+                mCallbackBuffers.add(buffer);
+                mCallbacks.add(onWritten);
+            }
+            sync = mCount >= mFlushThreshold;
+        }
+        if (sync) {
             sync();
         }
     }
@@ -118,37 +294,101 @@ public class SocketOutputStream extends OutputStream {
      */
     @Override
     public void write(int b) throws IOException {
-        ByteBuffer byteBuffer = (ByteBuffer) ByteBuffer.allocate(1).put((byte) b).flip();
-        mBuffer.add(byteBuffer);
-        if (mCount.incrementAndGet() >= MAX_BUFFER_SIZE) {
+        boolean sync;
+        synchronized (this) {
+            ByteBuffer tail = mTail;
+            if (tail == null || tail.limit() == tail.capacity()) {
+                tail = obtainChunk();
+            }
+            tail.array()[tail.arrayOffset() + tail.limit()] = (byte) b;
+            tail.limit(tail.limit() + 1);
+            mCount++;
+            sync = mCount >= mFlushThreshold;
+        }
+        if (sync) {
             sync();
         }
     }
 
+    /**
+     * Writes the queued buffers with as few gathering writes as possible. Only one thread writes
+     * at a time. Callers that find the socket being written leave their buffers to that thread,
+     * which writes again as long as new buffers have been queued in the meantime. Bytes that the
+     * socket does not take right away are written when it becomes writable again.
+     */
     void sync() {
         int operation = 0;
         Object arg = null;
         synchronized (this) {
-            if (!mBuffer.isEmpty()) {
-                ByteBuffer[] buffers = mBuffer.toArray(new ByteBuffer[0]);
-                try {
-                    long num = mSocket.write(buffers);
-                    if (num > 0) {
-                        mCount.addAndGet((int) -num);
-                        Iterator<ByteBuffer> itr = mBuffer.iterator();
-                        while (itr.hasNext()) {
-                            ByteBuffer buffer = itr.next();
-                            if (!buffer.hasRemaining()) {
-                                itr.remove();
-                            } else {
-                                break;
-                            }
-                        }
-                        operation = Socket.OP_WRITE;
+            if (mWriting) {
+                mPending = true;
+                return;
+            }
+            if (mBuffer.isEmpty()) {
+                return;
+            }
+            mWriting = true;
+        }
+
+        while (true) {
+            ByteBuffer[] buffers;
+            int size;
+            synchronized (this) {
+                mPending = false;
+                size = mBuffer.size();
+                if (size == 0) {
+                    mWriting = false;
+                    break;
+                }
+                // Later bytes go into a new chunk while the socket reads this one.
+                mTail = null;
+                if (mWriteBuffers.length < size) {
+                    mWriteBuffers = new ByteBuffer[Math.max(size, mWriteBuffers.length * 2)];
+                }
+                buffers = mBuffer.toArray(mWriteBuffers);
+            }
+
+            long num;
+            try {
+                num = mSocket.write(buffers, 0, size);
+            } catch (IOException e) {
+                synchronized (this) {
+                    mWriting = false;
+                }
+                operation = Socket.OP_CLOSE;
+                arg = e;
+                break;
+            }
+
+            final boolean partial = buffers[size - 1].hasRemaining();
+            synchronized (this) {
+                mCount -= (int) num;
+                while (!mBuffer.isEmpty() && !mBuffer.peekFirst().hasRemaining()) {
+                    ByteBuffer buffer = mBuffer.pollFirst();
+                    if (mChunks.peekFirst() == buffer) {
+                        mChunks.pollFirst();
+                        recycleChunk(buffer);
+                    } else if (mCallbackBuffers.peekFirst() == buffer) {
+                        mCallbackBuffers.pollFirst();
+                        mCompletedCallbacks.add(mCallbacks.pollFirst());
                     }
-                } catch (IOException e) {
-                    operation = Socket.OP_CLOSE;
-                    arg = e;
+                }
+                for (int i = 0; i < size; i++) {
+                    buffers[i] = null;
+                }
+                if (num > 0) {
+                    operation = Socket.OP_WRITE;
+                }
+            }
+            Runnable callback;
+            while ((callback = mCompletedCallbacks.pollFirst()) != null) {
+                callback.run();
+            }
+            synchronized (this) {
+                // Stop on a partial write, the rest is written once the socket becomes writable.
+                if (partial || !mPending) {
+                    mWriting = false;
+                    break;
                 }
             }
         }
@@ -156,4 +396,26 @@ public class SocketOutputStream extends OutputStream {
             mSocket.notifyListener(operation, arg);
         }
     }
+
+    private ByteBuffer obtainChunk() {
+        ByteBuffer chunk = mChunkPool.pollFirst();
+        if (chunk == null) {
+            chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        }
+        chunk.limit(0);
+        mBuffer.add(chunk);
+        mChunks.add(chunk);
+        mTail = chunk;
+        return chunk;
+    }
+
+    private void recycleChunk(ByteBuffer chunk) {
+        if (chunk == mTail) {
+            mTail = null;
+        }
+        if (mChunkPool.size() < MAX_POOL_SIZE) {
+            chunk.clear();
+            mChunkPool.add(chunk);
+        }
+    }
 }
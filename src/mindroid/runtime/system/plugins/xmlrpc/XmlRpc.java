@@ -24,21 +24,28 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import mindroid.os.Binder;
+import mindroid.os.BinderStats;
 import mindroid.os.Bundle;
 import mindroid.os.IBinder;
 import mindroid.os.IInterface;
 import mindroid.os.Parcel;
 import mindroid.os.RemoteException;
+import mindroid.runtime.system.BinderHandleTable;
+import mindroid.runtime.system.ClientPool;
 import mindroid.runtime.system.ServiceDiscovery;
 import mindroid.runtime.system.Plugin;
 import mindroid.runtime.system.aio.AbstractClient;
@@ -52,12 +59,17 @@ public class XmlRpc extends Plugin {
     private static String LOG_TAG = "XmlRpc";
     private static final String TIMEOUT = "timeout";
     private static final long DEFAULT_TRANSACTION_TIMEOUT = 10000;
+    private static final long RECONNECT_DELAY = 1000;
     private static final boolean DEBUG = false;
     private static final ScheduledThreadPoolExecutor sExecutor;
 
     private ServiceDiscovery.Configuration mConfiguration;
     private Server mServer;
-    private Map<Integer, Client> mClients = new ConcurrentHashMap<>();
+    private Map<Integer, ClientPool<Client>> mClients = new ConcurrentHashMap<>();
+    // The nodes whose connections are kept open, see connect().
+    private final Map<Integer, URI> mConnectedNodes = new ConcurrentHashMap<>();
+    // The connected nodes with a pending reconnect.
+    private final Set<Integer> mReconnectingNodes = ConcurrentHashMap.newKeySet();
     private final Map<Integer, Map<Long, WeakReference<IBinder>>> mProxies = new HashMap<>();
 
     static {
@@ -106,6 +118,12 @@ public class XmlRpc extends Plugin {
         if (mServer != null) {
             mServer.shutdown(null);
         }
+        mConnectedNodes.clear();
+        for (ClientPool<Client> clients : mClients.values()) {
+            for (Client client : clients.getClients()) {
+                client.shutdown(null);
+            }
+        }
         return new Promise<>((Void) null);
     }
 
@@ -196,24 +214,52 @@ public class XmlRpc extends Plugin {
 
     @Override
     public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags) throws RemoteException {
+        return getClient(binder, flags, data.size()).transact(binder, what, data, flags, null, 0);
+    }
+
+    @Override
+    public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags, BinderStats.Entry stats, long start) throws RemoteException {
+        final Client client;
+        try {
+            client = getClient(binder, flags, data.size());
+        } catch (RemoteException | RuntimeException e) {
+            stats.onTransactionFinished(0, e);
+            throw e;
+        }
+        return client.transact(binder, what, data, flags, stats, start);
+    }
+
+    /**
+     * Returns the client for a transaction. One-way transactions to a binder always use the same
+     * connection of the node's pool to keep their order.
+     */
+    private Client getClient(IBinder binder, int flags, int payloadSize) throws RemoteException {
         int nodeId = (int) ((binder.getId() >> 32) & 0xFFFFFFFFL);
-        Client client = mClients.get(nodeId);
-        if (client == null) {
+        ClientPool<Client> clients = getClients(nodeId, binder.getUri().getScheme());
+        try {
+            Client client = (flags == Binder.FLAG_ONEWAY) ? clients.getOrdered(binder.getId()) : clients.get(payloadSize);
+            removeIfShutdown(clients, client);
+            return client;
+        } catch (IOException e) {
+            throw new RemoteException("Binder transaction failure");
+        }
+    }
+
+    private ClientPool<Client> getClients(int nodeId, String scheme) throws RemoteException {
+        ClientPool<Client> clients = mClients.get(nodeId);
+        if (clients == null) {
             if (mConfiguration != null) {
                 ServiceDiscovery.Configuration.Node node = mConfiguration.nodes.get(nodeId);
                 if (node != null) {
-                    ServiceDiscovery.Configuration.Plugin plugin = node.plugins.get(binder.getUri().getScheme());
+                    ServiceDiscovery.Configuration.Plugin plugin = node.plugins.get(scheme);
                     if (plugin != null) {
                         ServiceDiscovery.Configuration.Server server = plugin.server;
                         if (server != null) {
-                            try {
-                                client = new Client(node.id);
-                                mClients.put(nodeId, client);
+                            clients = mClients.computeIfAbsent(nodeId, (id) -> new ClientPool<>(plugin.connectionPool, () -> {
+                                Client client = new Client(node.id);
                                 client.start(server.uri);
-                            } catch (IOException e) {
-                                mClients.remove(nodeId);
-                                throw new RemoteException("Binder transaction failure");
-                            }
+                                return client;
+                            }, Client::getLoad, (client) -> client.shutdown(null)));
                         } else {
                             throw new RemoteException("Binder transaction failure");
                         }
@@ -227,7 +273,7 @@ public class XmlRpc extends Plugin {
                 throw new RemoteException("Binder transaction failure");
             }
         }
-        return client.transact(binder, what, data, flags);
+        return clients;
     }
 
     @Override
@@ -239,31 +285,113 @@ public class XmlRpc extends Plugin {
         return true;
     }
 
+    /**
+     * Opens all connections of the node's connection pool, e.g. {@code xmlrpc://42}. The
+     * connections of the node are kept open, i.e. they are reestablished after they have been
+     * closed, until the node is disconnected. Without connect, connections are established on
+     * first use.
+     */
     @Override
     public Promise<Void> connect(URI node, Bundle extras) {
-        // Automatic connection establishment when referencing other nodes.
-        return null;
+        final int nodeId;
+        try {
+            nodeId = Integer.parseInt(node.getAuthority());
+        } catch (NumberFormatException e) {
+            return new Promise<>(new IllegalArgumentException("Invalid node: " + node));
+        }
+        try {
+            ClientPool<Client> clients = getClients(nodeId, node.getScheme());
+            mConnectedNodes.put(nodeId, node);
+            List<Client> connections = clients.open();
+            Promise<?>[] promises = new Promise<?>[connections.size()];
+            for (int i = 0; i < promises.length; i++) {
+                Client client = connections.get(i);
+                removeIfShutdown(clients, client);
+                promises[i] = client.connected();
+            }
+            return Promise.allOf(Executors.SYNCHRONOUS_EXECUTOR, promises);
+        } catch (RemoteException | IOException e) {
+            reconnect(nodeId);
+            return new Promise<>(new RemoteException("Node connection failure", e));
+        }
     }
 
     @Override
     public Promise<Void> disconnect(URI node, Bundle extras) {
-        return null;
+        final int nodeId;
+        try {
+            nodeId = Integer.parseInt(node.getAuthority());
+        } catch (NumberFormatException e) {
+            return new Promise<>(new IllegalArgumentException("Invalid node: " + node));
+        }
+        mConnectedNodes.remove(nodeId);
+        ClientPool<Client> clients = mClients.get(nodeId);
+        if (clients != null) {
+            for (Client client : clients.getClients()) {
+                client.shutdown(null);
+            }
+        }
+        return new Promise<>((Void) null);
     }
 
     public void onShutdown(AbstractClient client) {
-        mClients.remove(client.getNodeId());
+        final int nodeId = client.getNodeId();
+        ClientPool<Client> clients = mClients.get(nodeId);
+        if (clients != null && clients.remove((Client) client)) {
+            reconnect(nodeId);
+        }
+    }
+
+    /**
+     * Removes a client that has been shut down before it has been added to the pool, e.g. because
+     * its connection failed or was closed while it was started. onShutdown cannot remove it.
+     */
+    private void removeIfShutdown(ClientPool<Client> clients, Client client) {
+        if (client.isShutdown() && clients.remove(client)) {
+            reconnect(client.getNodeId());
+        }
     }
 
+    /**
+     * Schedules a reconnect if the node is connected and no reconnect is pending yet. Failed
+     * reconnects are retried until the node is disconnected.
+     */
+    private void reconnect(final int nodeId) {
+        if (mConnectedNodes.containsKey(nodeId) && mReconnectingNodes.add(nodeId)) {
+            sExecutor.schedule(() -> {
+                mReconnectingNodes.remove(nodeId);
+                URI node = mConnectedNodes.get(nodeId);
+                if (node != null) {
+                    connect(node, null);
+                }
+            }, RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A frame of the wire protocol. Both sides of a connection first send the protocol header, an
+     * int made of "XRP" and the protocol version. Each frame is then prefixed with its size and
+     * consists of the type, the binder handle, the binder URI if the type has
+     * {@link #MESSAGE_FLAG_URI} set, the transaction id, 'what', the data size and the data.
+     * Exception frames append the exception class name. Version 1 of the protocol had no header
+     * and no binder handles. Nodes that use different versions refuse to talk to each other.
+     */
     private static class Message {
+        // Version 2 introduced the binder handles, see BinderHandleTable.
+        private static final int PROTOCOL_VERSION = 2;
+        private static final int PROTOCOL_HEADER = 0x58525000 | PROTOCOL_VERSION;
         public static final int MESSAGE_TYPE_TRANSACTION = 1;
         public static final int MESSAGE_TYPE_EXCEPTION_TRANSACTION = 2;
+        // Set in the type of messages that carry the binder URI, see BinderHandleTable.
+        private static final int MESSAGE_FLAG_URI = 0x100;
 
-        private Message(int type, String uri, int transactionId, int what, byte[] data, int size) {
-            this(type, uri, transactionId, what, data, size, null);
+        private Message(int type, int handle, String uri, int transactionId, int what, byte[] data, int size) {
+            this(type, handle, uri, transactionId, what, data, size, null);
         }
 
-        private Message(int type, String uri, int transactionId, int what, byte[] data, int size, Throwable cause) {
+        private Message(int type, int handle, String uri, int transactionId, int what, byte[] data, int size, Throwable cause) {
             this.type = type;
+            this.handle = handle;
             this.uri = uri;
             this.transactionId = transactionId;
             this.what = what;
@@ -272,43 +400,66 @@ public class XmlRpc extends Plugin {
             this.cause = cause;
         }
 
-        public static Message newMessage(String uri, int transactionId, int what, byte[] data) {
-            return newMessage(uri, transactionId, what, data, data.length);
-        }
-
-        public static Message newMessage(String uri, int transactionId, int what, byte[] data, int size) {
-            return new Message(MESSAGE_TYPE_TRANSACTION, uri, transactionId, what, data, size);
+        /**
+         * A transaction to the binder {@code handle}. The binder URI is only sent if the handle is
+         * bound by this message or if it is {@link BinderHandleTable#NO_HANDLE}, otherwise it must
+         * be null. Replies carry neither handle nor URI.
+         */
+        public static Message newMessage(int handle, String uri, int transactionId, int what, byte[] data, int size) {
+            return new Message(MESSAGE_TYPE_TRANSACTION, handle, uri, transactionId, what, data, size);
         }
 
-        public static Message newExceptionMessage(String uri, int transactionId, int what, byte[] data) {
-            return newExceptionMessage(uri, transactionId, what, data, data.length, null);
+        public static Message newExceptionMessage(int transactionId, int what, byte[] data, Throwable cause) {
+            return new Message(MESSAGE_TYPE_EXCEPTION_TRANSACTION, BinderHandleTable.NO_HANDLE, null, transactionId, what, data, data.length, cause);
         }
 
-        public static Message newExceptionMessage(String uri, int transactionId, int what, byte[] data, Throwable cause) {
-            return newExceptionMessage(uri, transactionId, what, data, data.length, cause);
-        }
-
-        public static Message newExceptionMessage(String uri, int transactionId, int what, byte[] data, int size) {
-            return newExceptionMessage(uri, transactionId, what, data, data.length, null);
+        public static void writeProtocolHeader(DataOutputStream outputStream) throws IOException {
+            synchronized (outputStream) {
+                outputStream.writeInt(PROTOCOL_HEADER);
+                outputStream.flush();
+            }
         }
 
-        public static Message newExceptionMessage(String uri, int transactionId, int what, byte[] data, int size, Throwable cause) {
-            return new Message(MESSAGE_TYPE_EXCEPTION_TRANSACTION, uri, transactionId, what, data, size, cause);
+        /**
+         * Reads the protocol header of the peer, which precedes all frames of a connection.
+         *
+         * @return true once the header has been read, false if more data is needed.
+         * @throws ProtocolException if the peer uses another protocol or protocol version.
+         */
+        public static boolean readProtocolHeader(Bundle context, DataInputStream inputStream) throws IOException {
+            if (context.containsKey("protocolVersion")) {
+                return true;
+            }
+            if (inputStream.available() < 4) {
+                return false;
+            }
+            final int header = inputStream.readInt();
+            if (header != PROTOCOL_HEADER) {
+                Log.e(LOG_TAG, "Unsupported protocol header: 0x" + Integer.toHexString(header));
+                throw new ProtocolException("Unsupported protocol header: 0x" + Integer.toHexString(header));
+            }
+            context.putInt("protocolVersion", PROTOCOL_VERSION);
+            return true;
         }
 
         public static Message newMessage(DataInputStream inputStream) throws IOException {
             int type = inputStream.readInt();
-            int length = inputStream.readUnsignedShort();
-            byte[] byteArray = new byte[length];
-            inputStream.readFully(byteArray);
-            String uri = new String(byteArray, StandardCharsets.US_ASCII);
+            int handle = inputStream.readInt();
+            String uri = null;
+            if ((type & MESSAGE_FLAG_URI) != 0) {
+                type &= ~MESSAGE_FLAG_URI;
+                int length = inputStream.readUnsignedShort();
+                byte[] byteArray = new byte[length];
+                inputStream.readFully(byteArray);
+                uri = new String(byteArray, StandardCharsets.US_ASCII);
+            }
             int transactionId = inputStream.readInt();
             int what = inputStream.readInt();
             int size = inputStream.readInt();
             byte[] data = new byte[size];
             inputStream.readFully(data, 0, size);
             if (type == MESSAGE_TYPE_TRANSACTION) {
-                return new Message(type, uri, transactionId, what, data, size);
+                return new Message(type, handle, uri, transactionId, what, data, size);
             } else {
                 Throwable exception = null;
                 int exceptionCount = inputStream.readInt();
@@ -323,24 +474,33 @@ public class XmlRpc extends Plugin {
                         exception = null;
                     }
                 }
-                return new Message(type, uri, transactionId, what, data, size, (exception != null) ? new RemoteException(exception) : new RemoteException());
+                return new Message(type, handle, uri, transactionId, what, data, size, (exception != null) ? new RemoteException(exception) : new RemoteException());
             }
         }
 
         public final void write(DataOutputStream outputStream) throws IOException {
             synchronized (outputStream) {
-                byte[] uri = this.uri.getBytes(StandardCharsets.US_ASCII);
-                int size = 4 + 2 + uri.length + 4 + 4 + 4 + this.size;
+                byte[] uri = (this.uri != null) ? this.uri.getBytes(StandardCharsets.US_ASCII) : null;
+                int size = 4 + 4 + 4 + 4 + 4 + this.size;
+                if (uri != null) {
+                    size += 2 + uri.length;
+                }
                 if (type != MESSAGE_TYPE_TRANSACTION) {
                     size += 4;
                     if ((this.cause != null) && !(this.cause instanceof RemoteException)) {
-                        size += this.cause.getClass().getName().getBytes(StandardCharsets.US_ASCII).length;
+                        size += 2 + this.cause.getClass().getName().getBytes(StandardCharsets.US_ASCII).length;
                     }
                 }
                 outputStream.writeInt(size);
-                outputStream.writeInt(this.type);
-                outputStream.writeShort(uri.length);
-                outputStream.write(uri);
+                if (uri != null) {
+                    outputStream.writeInt(this.type | MESSAGE_FLAG_URI);
+                    outputStream.writeInt(this.handle);
+                    outputStream.writeShort(uri.length);
+                    outputStream.write(uri);
+                } else {
+                    outputStream.writeInt(this.type);
+                    outputStream.writeInt(this.handle);
+                }
                 outputStream.writeInt(this.transactionId);
                 outputStream.writeInt(this.what);
                 outputStream.writeInt(this.size);
@@ -360,6 +520,7 @@ public class XmlRpc extends Plugin {
         }
 
         int type;
+        int handle;
         String uri;
         int transactionId;
         int what;
@@ -395,7 +556,7 @@ public class XmlRpc extends Plugin {
                 DataInputStream dataInputStream = new DataInputStream(inputStream);
                 context.putObject("dataInputStream", dataInputStream);
             }
-            if (!context.containsKey("datOutputStream")) {
+            if (!context.containsKey("dataOutputStream")) {
                 DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
                 context.putObject("dataOutputStream", dataOutputStream);
             }
@@ -403,6 +564,13 @@ public class XmlRpc extends Plugin {
             DataOutputStream dataOutputStream = (DataOutputStream) context.getObject("dataOutputStream");
 
             try {
+                if (!context.containsKey("protocolVersion")) {
+                    if (!Message.readProtocolHeader(context, dataInputStream)) {
+                        return false;
+                    }
+                    // Answered before any reply, which all depend on frames of the client.
+                    Message.writeProtocolHeader(dataOutputStream);
+                }
                 if (!context.containsKey("messageSize")) {
                     if (dataInputStream.available() >= 4) {
                         context.putInt("messageSize", dataInputStream.readInt());
@@ -421,14 +589,24 @@ public class XmlRpc extends Plugin {
 
                 if (message.type == Message.MESSAGE_TYPE_TRANSACTION) {
                     try {
-                        IBinder binder = mRuntime.getBinder(URI.create(message.uri));
+                        IBinder binder = BinderHandleTable.get(mRuntime, context).getBinder(message.handle, message.uri);
                         if (binder != null) {
-                            Promise<Parcel> result = binder.transact(message.what, Parcel.obtain(message.data), 0);
+                            final Promise<Parcel> result;
+                            Object origConnection = Binder.setCallingConnection(context.getObject("connection"));
+                            try {
+                                result = binder.transact(message.what, Parcel.obtain(message.data), 0);
+                            } finally {
+                                Binder.setCallingConnection(origConnection);
+                            }
                             if (result != null) {
                                 result.then((value, exception) -> {
                                     try {
                                         if (exception == null) {
-                                            Message.newMessage(message.uri, message.transactionId, message.what, value.getByteArray(), value.size()).write(dataOutputStream);
+                                            try {
+                                                Message.newMessage(BinderHandleTable.NO_HANDLE, null, message.transactionId, message.what, value.getByteArray(), value.size()).write(dataOutputStream);
+                                            } finally {
+                                                value.recycle();
+                                            }
                                         } else {
                                             final Throwable cause;
                                             if (exception instanceof CompletionException && exception.getCause() != null) {
@@ -436,7 +614,7 @@ public class XmlRpc extends Plugin {
                                             } else {
                                                 cause = exception;
                                             }
-                                            Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, cause).write(dataOutputStream);
+                                            Message.newExceptionMessage(message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, cause).write(dataOutputStream);
                                         }
                                     } catch (IOException e) {
                                         try {
@@ -447,14 +625,14 @@ public class XmlRpc extends Plugin {
                                 });
                             }
                         } else {
-                            Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, new RemoteException("Invalid service URI")).write(dataOutputStream);
+                            Message.newExceptionMessage(message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, new RemoteException("Invalid service URI")).write(dataOutputStream);
                         }
                     } catch (IllegalArgumentException e) {
                         Log.e(LOG_TAG, e.getMessage(), e);
-                        Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(dataOutputStream);
+                        Message.newExceptionMessage(message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(dataOutputStream);
                     } catch (RemoteException e) {
                         Log.e(LOG_TAG, e.getMessage(), e);
-                        Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(dataOutputStream);
+                        Message.newExceptionMessage(message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(dataOutputStream);
                     }
                 } else {
                     Log.e(LOG_TAG, "Invalid message type: " + message.type);
@@ -472,12 +650,49 @@ public class XmlRpc extends Plugin {
     private class Client extends AbstractClient {
         private final AtomicInteger mTransactionIdGenerator = new AtomicInteger(1);
         private Map<Integer, Promise<Parcel>> mTransactions = new ConcurrentHashMap<>();
+        // Guarded by the data output stream.
+        private final BinderHandleTable mBinderHandles = new BinderHandleTable(mRuntime);
+        private final Promise<Void> mConnected = new Promise<>(Executors.SYNCHRONOUS_EXECUTOR);
+        private volatile boolean mShutdown = false;
 
         public Client(int nodeId) throws IOException {
             super(nodeId);
         }
 
+        @Override
+        public void start(String uri, SocketAddress localAddress) throws IOException {
+            super.start(uri, localAddress);
+            // The header is queued before the first frame and sent once the socket is connected.
+            DataOutputStream dataOutputStream = new DataOutputStream(getOutputStream());
+            getContext().putObject("dataOutputStream", dataOutputStream);
+            Message.writeProtocolHeader(dataOutputStream);
+        }
+
+        /**
+         * Returns the number of pending two-way transactions.
+         */
+        public int getLoad() {
+            return mTransactions.size();
+        }
+
+        /**
+         * Returns a Promise that is completed once the connection has been established, or
+         * exceptionally if that fails.
+         */
+        public Promise<Void> connected() {
+            return mConnected;
+        }
+
+        /**
+         * Returns whether the client has been shut down.
+         */
+        public boolean isShutdown() {
+            return mShutdown;
+        }
+
         public void shutdown(Throwable cause) {
+            mShutdown = true;
+            mConnected.completeWith((cause != null) ? cause : new RemoteException("Connection closed"));
             XmlRpc.this.onShutdown(this);
 
             if (mTransactions != null) {
@@ -489,12 +704,17 @@ public class XmlRpc extends Plugin {
             sExecutor.execute(() -> { super.shutdown(cause); });
         }
 
-        public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags) throws RemoteException {
+        /**
+         * Sends a transaction. If {@code stats} is not null, the outcome of the transaction is
+         * recorded in it.
+         */
+        public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags, BinderStats.Entry stats, long start) throws RemoteException {
             final int transactionId = mTransactionIdGenerator.getAndIncrement();
+            Promise<Parcel> promise = null;
             Promise<Parcel> result;
             try {
                 Bundle context = getContext();
-                if (!context.containsKey("datOutputStream")) {
+                if (!context.containsKey("dataOutputStream")) {
                     DataOutputStream dataOutputStream = new DataOutputStream(getOutputStream());
                     context.putObject("dataOutputStream", dataOutputStream);
                 }
@@ -503,7 +723,8 @@ public class XmlRpc extends Plugin {
                 if (flags == Binder.FLAG_ONEWAY) {
                     result = null;
                 } else {
-                    final Promise<Parcel> promise = new Promise<>(Executors.SYNCHRONOUS_EXECUTOR);
+                    // A Reply records the statistics without another continuation.
+                    promise = (stats != null) ? new Binder.Reply(stats, start) : new Promise<>(Executors.SYNCHRONOUS_EXECUTOR);
                     result = promise.orTimeout(data.getLongExtra(TIMEOUT, DEFAULT_TRANSACTION_TIMEOUT))
                             .then((value, exception) -> {
                                 mTransactions.remove(transactionId);
@@ -511,11 +732,30 @@ public class XmlRpc extends Plugin {
                     mTransactions.put(transactionId, promise);
                 }
 
-                Message.newMessage(binder.getUri().toString(), transactionId, what, data.getByteArray(), data.size()).write(dataOutputStream);
+                synchronized (dataOutputStream) {
+                    final String uri = binder.getUri().toString();
+                    int handle = mBinderHandles.getHandle(uri);
+                    if (handle != BinderHandleTable.NO_HANDLE) {
+                        Message.newMessage(handle, null, transactionId, what, data.getByteArray(), data.size()).write(dataOutputStream);
+                    } else {
+                        Message.newMessage(mBinderHandles.bind(uri), uri, transactionId, what, data.getByteArray(), data.size()).write(dataOutputStream);
+                    }
+                }
+                if (promise == null && stats != null) {
+                    stats.onTransactionFinished(0, null);
+                }
             } catch (IOException e) {
                 mTransactions.remove(transactionId);
                 shutdown(e);
-                throw new RemoteException("Binder transaction failure", e);
+                RemoteException exception = new RemoteException("Binder transaction failure", e);
+                if (promise != null) {
+                    promise.completeWith(exception);
+                } else if (stats != null) {
+                    stats.onTransactionFinished(0, exception);
+                }
+                throw exception;
+            } finally {
+                data.recycle();
             }
             return result;
         }
@@ -527,6 +767,7 @@ public class XmlRpc extends Plugin {
             } catch (IOException e) {
                 Log.e(LOG_TAG, "Failed to get remote socket address");
             }
+            mConnected.complete(null);
         }
 
         @Override
@@ -547,6 +788,9 @@ public class XmlRpc extends Plugin {
             DataInputStream dataInputStream = (DataInputStream) context.getObject("dataInputStream");
 
             try {
+                if (!Message.readProtocolHeader(context, dataInputStream)) {
+                    return false;
+                }
                 if (!context.containsKey("messageSize")) {
                     if (dataInputStream.available() >= 4) {
                         context.putInt("messageSize", dataInputStream.readInt());
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values (e.g. durations in microseconds) with
+ * logarithmic buckets. Bucket 0 counts the value 0 and bucket i counts the values in
+ * [2^(i-1), 2^i). Recording a value costs a few atomic operations and never allocates, so
+ * histograms can stay enabled permanently. Percentiles are reported as the upper bound of the
+ * bucket they fall into.
+ */
+public final class Histogram {
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getAverage() {
+        long count = mCount.get();
+        return (count > 0) ? mSum.get() / count : 0;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile (0 to 100) of all recorded values.
+     */
+    public long getPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += mBuckets.get(i);
+            if (sum >= Math.max(threshold, 1)) {
+                return Math.min((i == 0) ? 0 : (1L << i) - 1, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Returns a summary using the format "count=..., avg=..., p50=..., p90=..., p99=..., max=...".
+     */
+    public String toString() {
+        return "count=" + getCount() + ", avg=" + getAverage() + ", p50=" + getPercentile(50) + ", p90=" + getPercentile(90)
+                + ", p99=" + getPercentile(99) + ", max=" + getMax();
+    }
+}
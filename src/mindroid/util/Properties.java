@@ -22,6 +22,13 @@ package mindroid.util;
 public final class Properties {
     public static final String DEVELOPER_MODE = "DEVELOPER_MODE";
     public static final String INTEGRATION_TESTING = "INTEGRATION_TESTING";
+    public static final String MESSAGE_POOL_SIZE = "MESSAGE_POOL_SIZE";
+    public static final String PARCEL_LEAK_DETECTION = "PARCEL_LEAK_DETECTION";
+    public static final String BINDER_STATS_SAMPLING_INTERVAL = "BINDER_STATS_SAMPLING_INTERVAL";
+    public static final String SOCKET_FLUSH_THRESHOLD = "SOCKET_FLUSH_THRESHOLD";
+    public static final String SOCKET_FLUSH_DELAY = "SOCKET_FLUSH_DELAY";
+    public static final String RUNTIME_PRE_CONNECT = "RUNTIME_PRE_CONNECT";
+    public static final String LOOPER_GROUP_SIZE = "LOOPER_GROUP_SIZE";
     
     private Properties() {
     }
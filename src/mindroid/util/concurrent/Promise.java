@@ -36,7 +36,6 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
@@ -122,11 +121,12 @@ import sun.misc.Unsafe;
 public class Promise<T> implements Future<T> {
     private static final sun.misc.Unsafe UNSAFE;
     private static final long RESULT;
+    private static final long ACTIONS;
     private static final Object NULL = new Object();
 
     private Executor mExecutor;
     private volatile Object mResult = null;
-    private AtomicReference<Queue<Action<?, ?>>> mActions = new AtomicReference<>();
+    private volatile Queue<Action<?, ?>> mActions = null;
 
     static {
         try {
@@ -134,6 +134,7 @@ public class Promise<T> implements Future<T> {
             field.setAccessible(true);
             UNSAFE = (Unsafe) field.get(null);
             RESULT = UNSAFE.objectFieldOffset(Promise.class.getDeclaredField("mResult"));
+            ACTIONS = UNSAFE.objectFieldOffset(Promise.class.getDeclaredField("mActions"));
         } catch (Exception e) {
             throw new java.lang.Error(e);
         }
@@ -364,6 +365,15 @@ public class Promise<T> implements Future<T> {
         return true;
     }
 
+    /**
+     * Returns a completed Promise to the incomplete state, so that it can be reused instead of
+     * allocating a new one. Subclasses must only do this once nobody waits for the Promise or
+     * holds continuations of it anymore.
+     */
+    protected void reset() {
+        mResult = null;
+    }
+
     @Override
     public boolean cancel() {
         boolean cancelled = completeWith(new CancellationException());
@@ -1424,26 +1434,29 @@ public class Promise<T> implements Future<T> {
     }
 
     private void addAction(Action<?, ?> action) {
-        if (mActions.get() == null) {
-            mActions.compareAndSet(null, new ConcurrentLinkedQueue<>());
+        if (mActions == null) {
+            UNSAFE.compareAndSwapObject(this, ACTIONS, null, new ConcurrentLinkedQueue<>());
         }
-        mActions.get().add(action);
+        final Queue<Action<?, ?>> actions = mActions;
+        actions.add(action);
         if (mResult != null) {
-            mActions.get().remove(action);
+            actions.remove(action);
             action.tryRun();
         }
     }
 
     private void removeAction(Action<?, ?> action) {
-        if (mActions.get() != null) {
-            mActions.get().remove(action);
+        final Queue<Action<?, ?>> actions = mActions;
+        if (actions != null) {
+            actions.remove(action);
         }
     }
 
     private void runActions() {
-        if (mActions.get() != null) {
+        final Queue<Action<?, ?>> actions = mActions;
+        if (actions != null) {
             Action<?, ?> action;
-            while ((action = mActions.get().poll()) != null) {
+            while ((action = actions.poll()) != null) {
                 action.tryRun();
             }
         }
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.lang.management.ManagementFactory;
+import org.junit.jupiter.api.Test;
+import mindroid.os.Binder;
+import mindroid.os.Handler;
+import mindroid.os.HandlerThread;
+import mindroid.os.Parcel;
+import mindroid.os.RemoteException;
+import mindroid.runtime.system.Runtime;
+import mindroid.util.concurrent.Promise;
+
+public class Benchmarks {
+    private static final int PENDING_MESSAGES = 10000;
+    private static final int MESSAGE_CODES = 100;
+    private static final int ITERATIONS = 20;
+    private static final int PARCEL_ROUND_TRIPS = 100000;
+    private static final int BINDER_TRANSACTIONS = 100000;
+    private static final int MSG_ECHO = 1;
+    private static final int MSG_NOTIFY = 2;
+
+    @Test
+    void messageQueueRemoval() {
+        HandlerThread thread = new HandlerThread("Benchmarks");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        LinearMessageList messages = new LinearMessageList();
+
+        try {
+            long indexedDuration = 0;
+            long linearDuration = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                for (int j = 0; j < PENDING_MESSAGES; j++) {
+                    handler.sendEmptyMessageDelayed(j % MESSAGE_CODES, 60000);
+                    messages.add(j % MESSAGE_CODES);
+                }
+
+                long start = System.nanoTime();
+                for (int what = 0; what < MESSAGE_CODES; what++) {
+                    assertTrue(handler.hasMessages(what));
+                    assertTrue(handler.removeMessages(what));
+                    assertFalse(handler.hasMessages(what));
+                }
+                indexedDuration += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int what = 0; what < MESSAGE_CODES; what++) {
+                    assertTrue(messages.has(what));
+                    assertTrue(messages.remove(what));
+                    assertFalse(messages.has(what));
+                }
+                linearDuration += System.nanoTime() - start;
+            }
+
+            System.out.println("MessageQueue: hasMessages/removeMessages with " + PENDING_MESSAGES + " pending messages: indexed "
+                    + (indexedDuration / (ITERATIONS * MESSAGE_CODES)) + "ns, linear scan "
+                    + (linearDuration / (ITERATIONS * MESSAGE_CODES)) + "ns per message code");
+        } finally {
+            thread.quit();
+        }
+    }
+
+    @Test
+    void parcelMarshalling() throws RemoteException {
+        final long recycledBytes = measureParcelAllocations(true);
+        final long unrecycledBytes = measureParcelAllocations(false);
+        System.out.println("Parcel: request/reply marshalling allocates " + recycledBytes + " bytes with recycle(), "
+                + unrecycledBytes + " bytes without recycle() per round trip");
+        assertTrue(recycledBytes < unrecycledBytes);
+    }
+
+    private static long measureParcelAllocations(boolean recycle) throws RemoteException {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < PARCEL_ROUND_TRIPS; i++) {
+            marshalRequestAndReply(recycle);
+        }
+        final long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < PARCEL_ROUND_TRIPS; i++) {
+            marshalRequestAndReply(recycle);
+        }
+        return (threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes) / PARCEL_ROUND_TRIPS;
+    }
+
+    private static void marshalRequestAndReply(boolean recycle) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        data.putInt(42);
+        data.putLong(System.nanoTime());
+        data.putDouble(3.14);
+        data.asInput();
+        final int arg1 = data.getInt();
+        final long arg2 = data.getLong();
+        final double arg3 = data.getDouble();
+
+        Parcel reply = Parcel.obtain();
+        reply.putDouble(arg1 + arg2 + arg3);
+        reply.asInput();
+        assertTrue(reply.getDouble() > 0);
+
+        if (recycle) {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    @Test
+    void localBinderTransactions() throws Exception {
+        if (Runtime.getRuntime() == null) {
+            Runtime.start(1, null);
+        }
+        HandlerThread thread = new HandlerThread("Benchmarks");
+        thread.start();
+        EchoBinder binder = new EchoBinder(thread);
+
+        try {
+            Binder.Reply reply = new Binder.Reply();
+            long oneWayBytes = 0;
+            long twoWayBytes = 0;
+            long promiseBytes = 0;
+            for (int i = 0; i < 2; i++) {
+                // The first round warms up the pools and the JIT.
+                oneWayBytes = binder.measureAllocations(BINDER_TRANSACTIONS, () -> {
+                    Parcel data = Parcel.obtain();
+                    data.putInt(42);
+                    binder.transact(MSG_NOTIFY, data, null, Binder.FLAG_ONEWAY);
+                    binder.awaitBacklog();
+                });
+                twoWayBytes = binder.measureAllocations(0, () -> {
+                    Parcel data = Parcel.obtain();
+                    data.putInt(42);
+                    binder.transact(MSG_ECHO, data, reply, 0);
+                    Parcel result = Binder.get(reply);
+                    assertEquals(43, result.getInt());
+                    result.recycle();
+                    reply.reset();
+                });
+                promiseBytes = binder.measureAllocations(0, () -> {
+                    Parcel data = Parcel.obtain();
+                    data.putInt(42);
+                    Parcel result = Binder.get(binder.transact(MSG_ECHO, data, 0));
+                    assertEquals(43, result.getInt());
+                    result.recycle();
+                });
+            }
+
+            System.out.println("Binder: local transactions allocate " + oneWayBytes + " bytes one-way, "
+                    + twoWayBytes + " bytes two-way with a reused Reply, "
+                    + promiseBytes + " bytes two-way with a new Reply per call, as used by the generated proxies");
+            assertTrue(oneWayBytes < 8);
+            assertTrue(twoWayBytes < 8);
+        } finally {
+            thread.quit();
+        }
+    }
+
+    private interface Transaction {
+        void run() throws RemoteException;
+    }
+
+    private static final class EchoBinder extends Binder {
+        private static final int MAX_BACKLOG = 16;
+        private final Thread mThread;
+        private volatile int mNotifications;
+        private int mSentNotifications;
+
+        EchoBinder(HandlerThread thread) {
+            super(thread.getLooper());
+            mThread = thread;
+        }
+
+        @Override
+        protected void onTransact(int what, Parcel data, Promise<Parcel> result) throws RemoteException {
+            switch (what) {
+            case MSG_ECHO:
+                Parcel reply = Parcel.obtain();
+                reply.putInt(data.getInt() + 1);
+                result.complete(reply);
+                break;
+            case MSG_NOTIFY:
+                mNotifications++;
+                break;
+            default:
+                super.onTransact(what, data, result);
+            }
+        }
+
+        /**
+         * Throttles one-way transactions, so that the measurement covers the steady state rather
+         * than a backlog of queued messages and Parcels that outgrows their pools.
+         */
+        void awaitBacklog() {
+            mSentNotifications++;
+            while (mSentNotifications - mNotifications > MAX_BACKLOG) {
+                Thread.yield();
+            }
+        }
+
+        /**
+         * Returns the average number of bytes allocated per transaction by the calling thread and
+         * the Binder thread together, after the Binder thread has handled the given number of
+         * one-way notifications.
+         */
+        long measureAllocations(int notifications, Transaction transaction) throws RemoteException, InterruptedException {
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            final long callerId = Thread.currentThread().getId();
+            final long binderId = mThread.getId();
+            notifications += mNotifications;
+            final long allocatedBytes = threadMXBean.getThreadAllocatedBytes(callerId) + threadMXBean.getThreadAllocatedBytes(binderId);
+            for (int i = 0; i < BINDER_TRANSACTIONS; i++) {
+                transaction.run();
+            }
+            while (mNotifications < notifications) {
+                Thread.sleep(1);
+            }
+            final long totalBytes = threadMXBean.getThreadAllocatedBytes(callerId) + threadMXBean.getThreadAllocatedBytes(binderId) - allocatedBytes;
+            return totalBytes / BINDER_TRANSACTIONS;
+        }
+    }
+
+    /**
+     * Reference implementation of the linear scan over all pending messages that the MessageQueue
+     * used before its messages got indexed.
+     */
+    private static final class LinearMessageList {
+        private Node mHead;
+
+        private static final class Node {
+            final int what;
+            Node next;
+
+            Node(int what, Node next) {
+                this.what = what;
+                this.next = next;
+            }
+        }
+
+        synchronized void add(int what) {
+            mHead = new Node(what, mHead);
+        }
+
+        synchronized boolean has(int what) {
+            for (Node node = mHead; node != null; node = node.next) {
+                if (node.what == what) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized boolean remove(int what) {
+            boolean found = false;
+            Node prev = null;
+            for (Node node = mHead; node != null; node = node.next) {
+                if (node.what == what) {
+                    found = true;
+                    if (prev != null) {
+                        prev.next = node.next;
+                    } else {
+                        mHead = node.next;
+                    }
+                } else {
+                    prev = node;
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import mindroid.os.Binder;
+import mindroid.os.Bundle;
+import mindroid.os.HandlerThread;
+import mindroid.runtime.system.BinderHandleTable;
+import mindroid.runtime.system.Runtime;
+
+public class BinderHandleTableTest {
+    private static final String DESCRIPTOR = "mindroid://interfaces/mindroid/tests/BinderHandleTableTest";
+    private static final int MAX_HANDLES = 4096;
+
+    private HandlerThread mThread;
+    private Binder mBinder;
+    private String mUri;
+
+    @BeforeEach
+    public void setUp() {
+        if (Runtime.getRuntime() == null) {
+            Runtime.start(1, null);
+        }
+        mThread = new HandlerThread("BinderHandleTableTest");
+        mThread.start();
+        mBinder = new Binder(mThread.getLooper());
+        mBinder.attachInterface(null, DESCRIPTOR);
+        mUri = mBinder.getUri().toString() + "/if=mindroid/tests/BinderHandleTableTest";
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mBinder.dispose();
+        mThread.quit();
+    }
+
+    @Test
+    void bindAndResolve() {
+        BinderHandleTable sender = new BinderHandleTable(Runtime.getRuntime());
+        assertEquals(BinderHandleTable.NO_HANDLE, sender.getHandle(mUri));
+        final int handle = sender.bind(mUri);
+        assertNotEquals(BinderHandleTable.NO_HANDLE, handle);
+        assertEquals(handle, sender.getHandle(mUri));
+
+        BinderHandleTable receiver = new BinderHandleTable(Runtime.getRuntime());
+        // The first transaction carries the URI, later ones only the handle.
+        assertSame(mBinder, receiver.getBinder(handle, mUri));
+        assertSame(mBinder, receiver.getBinder(handle, null));
+        assertSame(mBinder, receiver.getBinder(handle));
+
+        mBinder.dispose();
+        assertNull(receiver.getBinder(handle, null));
+    }
+
+    @Test
+    void handleTablesArePerConnection() {
+        Bundle context = new Bundle();
+        BinderHandleTable binderHandles = BinderHandleTable.get(Runtime.getRuntime(), context);
+        assertSame(binderHandles, BinderHandleTable.get(Runtime.getRuntime(), context));
+        assertNotSame(binderHandles, BinderHandleTable.get(Runtime.getRuntime(), new Bundle()));
+    }
+
+    @Test
+    void fullTableFallsBackToUris() {
+        BinderHandleTable sender = new BinderHandleTable(Runtime.getRuntime());
+        for (int i = 1; i <= MAX_HANDLES; i++) {
+            assertEquals(i, sender.bind("mindroid://1." + (1000000 + i) + "/if=mindroid/tests/BinderHandleTableTest"));
+        }
+        assertEquals(BinderHandleTable.NO_HANDLE, sender.bind(mUri));
+        assertEquals(BinderHandleTable.NO_HANDLE, sender.getHandle(mUri));
+
+        // Transactions without handle carry their URI every time.
+        BinderHandleTable receiver = new BinderHandleTable(Runtime.getRuntime());
+        assertSame(mBinder, receiver.getBinder(BinderHandleTable.NO_HANDLE, mUri));
+        assertSame(mBinder, receiver.getBinder(BinderHandleTable.NO_HANDLE, mUri));
+        assertThrows(IllegalArgumentException.class, () -> receiver.getBinder(BinderHandleTable.NO_HANDLE, null));
+    }
+
+    @Test
+    void invalidHandles() {
+        BinderHandleTable receiver = new BinderHandleTable(Runtime.getRuntime());
+        assertThrows(IllegalArgumentException.class, () -> receiver.getBinder(1, null));
+        assertThrows(IllegalArgumentException.class, () -> receiver.getBinder(-1, mUri));
+        assertThrows(IllegalArgumentException.class, () -> receiver.getBinder(MAX_HANDLES + 1, mUri));
+        assertThrows(IllegalArgumentException.class, () -> receiver.getBinder(1, "mindroid:///if=mindroid/tests/BinderHandleTableTest"));
+        assertThrows(IllegalArgumentException.class, () -> receiver.getBinder(1, "mindroid://1.x/if=mindroid/tests/BinderHandleTableTest"));
+        assertThrows(IllegalArgumentException.class, () -> receiver.getBinder(1, null));
+
+        // A valid binding after the failed ones still works.
+        assertSame(mBinder, receiver.getBinder(MAX_HANDLES, mUri));
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import mindroid.os.Binder;
+import mindroid.os.BinderStats;
+import mindroid.os.HandlerThread;
+import mindroid.os.IBinder;
+import mindroid.os.Parcel;
+import mindroid.os.RemoteException;
+import mindroid.os.SystemClock;
+import mindroid.os.TransactionBatch;
+import mindroid.runtime.system.Runtime;
+import mindroid.util.concurrent.ExecutionException;
+import mindroid.util.concurrent.Promise;
+
+public class BinderTest {
+    private static final int TIMEOUT = 10000;
+    private static final String DESCRIPTOR = "mindroid://interfaces/mindroid/tests/BinderTest";
+    private static final int MSG_RECORD = 1;
+    private static final int MSG_THROW = 2;
+
+    private HandlerThread mThread;
+
+    @BeforeEach
+    public void setUp() {
+        if (Runtime.getRuntime() == null) {
+            Runtime.start(1, null);
+        }
+        mThread = new HandlerThread("BinderTest");
+        mThread.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    @Test
+    void cleanerRunsActionOnceObjectIsUnreachable() throws InterruptedException {
+        final CountDownLatch cleaned = new CountDownLatch(1);
+        registerGarbage(cleaned);
+
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (!cleaned.await(10, TimeUnit.MILLISECONDS)) {
+            assertTrue(SystemClock.uptimeMillis() < deadline, "Cleanup action did not run");
+            System.gc();
+        }
+    }
+
+    private static void registerGarbage(CountDownLatch cleaned) {
+        Runtime.getRuntime().register(new Object(), () -> cleaned.countDown());
+    }
+
+    @Test
+    void cleanupActionRunsAtMostOnce() {
+        final AtomicInteger count = new AtomicInteger(0);
+        final Object object = new Object();
+        Runtime.Cleanable cleanable = Runtime.getRuntime().register(object, () -> count.incrementAndGet());
+        cleanable.clean();
+        cleanable.clean();
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    void disposeDetachesBinder() {
+        RecordingBinder binder = new RecordingBinder(mThread);
+        final URI uri = URI.create(binder.getUri().toString() + "/if=mindroid/tests/BinderTest");
+        assertSame(binder, Runtime.getRuntime().getBinder(uri));
+        assertSame(binder, Runtime.getRuntime().getBinder(binder.getId()));
+
+        binder.dispose();
+        assertNull(Runtime.getRuntime().getBinder(uri));
+        assertNull(Runtime.getRuntime().getBinder(binder.getId()));
+    }
+
+    @Test
+    void disposedProxyFailsTransactions() {
+        IBinder proxy = new Binder.Proxy(URI.create("mindroid://2.1/if=mindroid/tests/BinderTest"));
+        proxy.dispose();
+        assertThrows(RemoteException.class, () -> proxy.transact(MSG_RECORD, Parcel.obtain(), Binder.FLAG_ONEWAY));
+    }
+
+    @Test
+    void batchesKeepTheOrderOfOneWayTransactions() throws RemoteException, InterruptedException {
+        RecordingBinder binder = new RecordingBinder(mThread);
+        int value = 0;
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                binder.transact(MSG_RECORD, binder.newData(value++), Binder.FLAG_ONEWAY);
+            } else {
+                TransactionBatch batch = TransactionBatch.obtain();
+                for (int j = 0; j < i % 5; j++) {
+                    batch.add(MSG_RECORD, binder.newData(value++));
+                }
+                binder.transact(batch);
+            }
+        }
+
+        List<Integer> values = binder.await(value);
+        for (int i = 0; i < value; i++) {
+            assertEquals(i, values.get(i).intValue());
+        }
+    }
+
+    @Test
+    void failingBatchEntryDoesNotStopTheBatch() throws RemoteException, InterruptedException {
+        RecordingBinder binder = new RecordingBinder(mThread);
+        TransactionBatch batch = TransactionBatch.obtain();
+        batch.add(MSG_RECORD, binder.newData(0));
+        batch.add(MSG_THROW, null);
+        batch.add(MSG_RECORD, binder.newData(1));
+        binder.transact(batch);
+
+        List<Integer> values = binder.await(2);
+        assertEquals(0, values.get(0).intValue());
+        assertEquals(1, values.get(1).intValue());
+    }
+
+    @Test
+    void statsKeepOutgoingAndIncomingTransactionsApart() throws RemoteException, InterruptedException {
+        BinderStats.reset();
+        RecordingBinder binder = new RecordingBinder(mThread);
+        binder.transact(MSG_RECORD, binder.newData(42), Binder.FLAG_ONEWAY);
+        binder.await(1);
+        BinderStats.Entry entry = BinderStats.getEntry(DESCRIPTOR, MSG_RECORD);
+        assertEquals(1, entry.getOutgoingCount());
+        assertEquals(1, entry.getIncomingCount());
+        assertEquals(1, entry.getIncomingPayloadSize().getCount());
+        assertEquals(4, entry.getIncomingPayloadSize().getMax());
+
+        // The runtime system passes the request Parcels of proxies.
+        Parcel data = Parcel.obtain();
+        data.putLong(42);
+        final long start = entry.onTransactionStarted(data);
+        data.recycle();
+        assertEquals(1, entry.getOutgoingPayloadSize().getCount());
+        assertEquals(8, entry.getOutgoingPayloadSize().getMax());
+        assertEquals(1, entry.getIncomingPayloadSize().getCount());
+
+        // Plugins complete a Reply that records the outcome of the transaction.
+        Binder.Reply reply = new Binder.Reply(entry, start);
+        reply.completeWith(new RemoteException("Expected failure"));
+        assertEquals(1, entry.getOutgoingErrorCount());
+        assertEquals(1, entry.getLatency().getCount());
+        reply.completeWith(new RemoteException("Expected failure"));
+        assertEquals(1, entry.getOutgoingErrorCount());
+    }
+
+    @Test
+    void orderedExecutorKeepsOrderPerCaller() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            OrderedBinder binder = new OrderedBinder(executor, 4, 10000);
+            Thread[] callers = new Thread[4];
+            for (int i = 0; i < callers.length; i++) {
+                final int caller = i;
+                callers[i] = new Thread(() -> {
+                    Binder.setCallingConnection(new Object());
+                    try {
+                        for (int j = 0; j < 200; j++) {
+                            binder.transact(MSG_RECORD, binder.newData(caller * 1000 + j), Binder.FLAG_ONEWAY);
+                        }
+                    } catch (RemoteException e) {
+                        fail(e.getMessage());
+                    }
+                });
+                callers[i].start();
+            }
+            for (Thread caller : callers) {
+                caller.join();
+            }
+
+            List<Integer> values = binder.await(callers.length * 200);
+            int[] next = new int[callers.length];
+            for (int value : values) {
+                assertEquals(next[value / 1000]++, value % 1000);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void orderedExecutorLimitsConcurrency() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            OrderedBinder binder = new OrderedBinder(executor, 2, 10000);
+            binder.mGate = new CountDownLatch(1);
+            for (int i = 0; i < 6; i++) {
+                Object origConnection = Binder.setCallingConnection(new Object());
+                try {
+                    binder.transact(MSG_RECORD, binder.newData(i), Binder.FLAG_ONEWAY);
+                } finally {
+                    Binder.setCallingConnection(origConnection);
+                }
+            }
+            binder.awaitRunning(2);
+            Thread.sleep(100);
+            assertEquals(2, binder.mRunning.get());
+            binder.mGate.countDown();
+
+            assertEquals(6, binder.await(6).size());
+            assertEquals(2, binder.mMaxRunning.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void orderedExecutorLimitsQueueLength() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            OrderedBinder binder = new OrderedBinder(executor, 1, 2);
+            binder.mGate = new CountDownLatch(1);
+            binder.transact(MSG_RECORD, binder.newData(0), Binder.FLAG_ONEWAY);
+            // The running transaction does not count towards the queue length.
+            binder.awaitRunning(1);
+            binder.transact(MSG_RECORD, binder.newData(1), Binder.FLAG_ONEWAY);
+            binder.transact(MSG_RECORD, binder.newData(2), Binder.FLAG_ONEWAY);
+            assertThrows(RemoteException.class, () -> binder.transact(MSG_RECORD, binder.newData(3), Binder.FLAG_ONEWAY));
+            binder.mGate.countDown();
+
+            List<Integer> values = binder.await(3);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i, values.get(i).intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void rejectedWorkerFailsAllPendingTransactions() throws Exception {
+        final AtomicReference<OrderedBinder> binder = new AtomicReference<>();
+        final AtomicReference<Promise<Parcel>> pendingResult = new AtomicReference<>();
+        binder.set(new OrderedBinder((runnable) -> {
+            // Another transaction arrives while the worker is being started. It does not start
+            // a worker of its own since the concurrency limit has been reached.
+            try {
+                pendingResult.set(binder.get().transact(MSG_RECORD, binder.get().newData(1), 0));
+            } catch (RemoteException e) {
+                fail(e.getMessage());
+            }
+            throw new RejectedExecutionException();
+        }, 1, 10));
+
+        assertThrows(RemoteException.class, () -> binder.get().transact(MSG_RECORD, binder.get().newData(0), 0));
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> pendingResult.get().get(TIMEOUT));
+        assertTrue(exception.getCause() instanceof RemoteException);
+    }
+
+    static class OrderedBinder extends Binder {
+        private final List<Integer> mValues = new ArrayList<>();
+        final AtomicInteger mRunning = new AtomicInteger(0);
+        final AtomicInteger mMaxRunning = new AtomicInteger(0);
+        volatile CountDownLatch mGate;
+
+        OrderedBinder(java.util.concurrent.Executor executor, int concurrency, int maxQueueLength) {
+            super(executor, concurrency, maxQueueLength);
+            attachInterface(null, DESCRIPTOR);
+        }
+
+        Parcel newData(int value) throws RemoteException {
+            Parcel data = Parcel.obtain();
+            data.putInt(value);
+            return data;
+        }
+
+        @Override
+        protected void onTransact(int what, Parcel data, Promise<Parcel> result) throws RemoteException {
+            final int running = mRunning.incrementAndGet();
+            mMaxRunning.accumulateAndGet(running, Math::max);
+            try {
+                CountDownLatch gate = mGate;
+                if (gate != null) {
+                    gate.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mRunning.decrementAndGet();
+            }
+            synchronized (mValues) {
+                mValues.add(data.getInt());
+                mValues.notifyAll();
+            }
+        }
+
+        void awaitRunning(int count) throws InterruptedException {
+            final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+            while (mRunning.get() < count) {
+                assertTrue(SystemClock.uptimeMillis() < deadline, "Timeout waiting for " + count + " running transactions");
+                Thread.sleep(1);
+            }
+        }
+
+        List<Integer> await(int count) throws InterruptedException {
+            final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+            synchronized (mValues) {
+                while (mValues.size() < count) {
+                    final long timeout = deadline - SystemClock.uptimeMillis();
+                    if (timeout <= 0) {
+                        fail("Timeout waiting for " + count + " transactions, got " + mValues.size());
+                    }
+                    mValues.wait(timeout);
+                }
+                return new ArrayList<>(mValues);
+            }
+        }
+    }
+
+    static class RecordingBinder extends Binder {
+        private final List<Integer> mValues = new ArrayList<>();
+
+        RecordingBinder(HandlerThread thread) {
+            super(thread.getLooper());
+            attachInterface(null, DESCRIPTOR);
+        }
+
+        Parcel newData(int value) throws RemoteException {
+            Parcel data = Parcel.obtain();
+            data.putInt(value);
+            return data;
+        }
+
+        @Override
+        protected void onTransact(int what, Parcel data, Promise<Parcel> result) throws RemoteException {
+            switch (what) {
+            case MSG_RECORD:
+                synchronized (mValues) {
+                    mValues.add(data.getInt());
+                    mValues.notifyAll();
+                }
+                break;
+            case MSG_THROW:
+                throw new RemoteException("Expected failure");
+            default:
+                super.onTransact(what, data, result);
+            }
+        }
+
+        List<Integer> await(int count) throws InterruptedException {
+            final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+            synchronized (mValues) {
+                while (mValues.size() < count) {
+                    final long timeout = deadline - SystemClock.uptimeMillis();
+                    if (timeout <= 0) {
+                        fail("Timeout waiting for " + count + " transactions, got " + mValues.size());
+                    }
+                    mValues.wait(timeout);
+                }
+                return new ArrayList<>(mValues);
+            }
+        }
+    }
+}
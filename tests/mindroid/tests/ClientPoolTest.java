@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import mindroid.runtime.system.ClientPool;
+import mindroid.runtime.system.ServiceDiscovery;
+
+public class ClientPoolTest {
+    private static final int TIMEOUT = 10000;
+
+    private final List<FakeClient> mOpened = new ArrayList<>();
+
+    @Test
+    void leastLoadedSelection() throws IOException {
+        ClientPool<FakeClient> pool = newPool(3, ServiceDiscovery.Configuration.ConnectionPool.SELECTION_LEAST_LOADED, 0);
+        // Unopened connections have no load, so they are opened first.
+        Set<FakeClient> clients = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            FakeClient client = pool.get(0);
+            client.mLoad = 1;
+            clients.add(client);
+        }
+        assertEquals(3, clients.size());
+        assertEquals(3, mOpened.size());
+
+        List<FakeClient> open = pool.getClients();
+        open.get(0).mLoad = 5;
+        open.get(1).mLoad = 2;
+        open.get(2).mLoad = 7;
+        for (int i = 0; i < 10; i++) {
+            assertSame(open.get(1), pool.get(0));
+        }
+        open.get(2).mLoad = 0;
+        assertSame(open.get(2), pool.get(0));
+        assertEquals(3, mOpened.size());
+    }
+
+    @Test
+    void roundRobinSelection() throws IOException {
+        ClientPool<FakeClient> pool = newPool(3, ServiceDiscovery.Configuration.ConnectionPool.SELECTION_ROUND_ROBIN, 0);
+        FakeClient first = pool.get(0);
+        FakeClient second = pool.get(0);
+        FakeClient third = pool.get(0);
+        assertNotSame(first, second);
+        assertNotSame(second, third);
+        assertNotSame(first, third);
+        // The load does not matter.
+        first.mLoad = 100;
+        assertSame(first, pool.get(0));
+        assertSame(second, pool.get(0));
+        assertSame(third, pool.get(0));
+        assertEquals(3, mOpened.size());
+    }
+
+    @Test
+    void largePayloadsUseTheirOwnConnection() throws IOException {
+        ClientPool<FakeClient> pool = newPool(2, ServiceDiscovery.Configuration.ConnectionPool.SELECTION_ROUND_ROBIN, 1024);
+        FakeClient large = pool.get(1024);
+        assertSame(large, pool.get(100000));
+        for (int i = 0; i < 4; i++) {
+            assertNotSame(large, pool.get(1023));
+        }
+        // Ordered transactions keep their order on a pooled connection, whatever their size.
+        assertSame(pool.getOrdered(42), pool.getOrdered(42));
+        assertNotSame(large, pool.getOrdered(42));
+        assertEquals(3, mOpened.size());
+        assertEquals(3, pool.open().size());
+        assertEquals(3, mOpened.size());
+
+        ClientPool<FakeClient> withoutLargePayloads = newPool(1, ServiceDiscovery.Configuration.ConnectionPool.SELECTION_LEAST_LOADED, 0);
+        assertSame(withoutLargePayloads.get(0), withoutLargePayloads.get(1000000));
+        assertEquals(1, withoutLargePayloads.open().size());
+    }
+
+    @Test
+    void removedClientsAreReopened() throws IOException {
+        ClientPool<FakeClient> pool = newPool(2, ServiceDiscovery.Configuration.ConnectionPool.SELECTION_ROUND_ROBIN, 0);
+        List<FakeClient> clients = pool.open();
+        assertEquals(2, clients.size());
+
+        FakeClient removed = clients.get(0);
+        assertTrue(pool.remove(removed));
+        assertFalse(pool.remove(removed));
+        assertEquals(1, pool.getClients().size());
+        assertFalse(pool.getClients().contains(removed));
+
+        List<FakeClient> reopened = pool.open();
+        assertEquals(3, mOpened.size());
+        assertFalse(reopened.contains(removed));
+        assertSame(clients.get(1), reopened.get(1));
+    }
+
+    @Test
+    void concurrentlyOpenedClientsAreClosed() throws Exception {
+        final CountDownLatch connecting = new CountDownLatch(2);
+        final AtomicInteger closed = new AtomicInteger(0);
+        final ServiceDiscovery.Configuration.ConnectionPool configuration = new ServiceDiscovery.Configuration.ConnectionPool();
+        final ClientPool<FakeClient> pool = new ClientPool<>(configuration, () -> {
+            // Both threads connect before either one adds its client to the pool.
+            connecting.countDown();
+            try {
+                assertTrue(connecting.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new FakeClient();
+        }, (client) -> client.mLoad, (client) -> {
+            client.mClosed = true;
+            closed.incrementAndGet();
+        });
+
+        final FakeClient[] clients = new FakeClient[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    clients[index] = pool.get(0);
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertSame(clients[0], clients[1]);
+        assertFalse(clients[0].mClosed);
+        assertEquals(1, closed.get());
+        assertEquals(1, pool.getClients().size());
+    }
+
+    @Test
+    void connectionFailures() {
+        ServiceDiscovery.Configuration.ConnectionPool configuration = new ServiceDiscovery.Configuration.ConnectionPool();
+        ClientPool<FakeClient> pool = new ClientPool<>(configuration, () -> {
+            throw new IOException("Connection refused");
+        }, (client) -> client.mLoad, (client) -> client.mClosed = true);
+        assertThrows(IOException.class, () -> pool.get(0));
+        assertTrue(pool.getClients().isEmpty());
+    }
+
+    private ClientPool<FakeClient> newPool(int size, String selection, int largePayloadSize) {
+        ServiceDiscovery.Configuration.ConnectionPool configuration = new ServiceDiscovery.Configuration.ConnectionPool();
+        configuration.size = size;
+        configuration.selection = selection;
+        configuration.largePayloadSize = largePayloadSize;
+        return new ClientPool<>(configuration, () -> {
+            FakeClient client = new FakeClient();
+            mOpened.add(client);
+            return client;
+        }, (client) -> client.mLoad, (client) -> client.mClosed = true);
+    }
+
+    private static class FakeClient {
+        volatile int mLoad = 0;
+        volatile boolean mClosed = false;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import main.Main;
+import mindroid.os.Handler;
+import mindroid.os.HandlerThread;
+import mindroid.os.Looper;
+import mindroid.os.LooperGroup;
+import mindroid.os.Process;
+import mindroid.os.ServiceManager;
+import mindroid.runtime.system.Runtime;
+import mindroid.util.Properties;
+
+public class LooperGroupTest {
+    private static final int TIMEOUT = 10000;
+
+    @Test
+    void handlerThreadOnLooperGroup() throws InterruptedException {
+        final LooperGroup group = new LooperGroup("LooperGroupTest", 2);
+        final AtomicReference<Looper> preparedLooper = new AtomicReference<>();
+        final CountDownLatch prepared = new CountDownLatch(1);
+        HandlerThread thread = new HandlerThread(null, "LooperGroupTest", group) {
+            @Override
+            protected void onLooperPrepared() {
+                preparedLooper.set(Looper.myLooper());
+                prepared.countDown();
+            }
+        };
+        assertFalse(thread.isRunning());
+        thread.start();
+        assertFalse(thread.isAlive());
+        assertTrue(thread.isRunning());
+        final Looper looper = thread.getLooper();
+        assertNotNull(looper);
+        assertTrue(prepared.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertSame(looper, preparedLooper.get());
+
+        final AtomicReference<Thread> carrierThread = new AtomicReference<>();
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        new Handler(looper).post(() -> {
+            assertTrue(looper.isCurrentThread());
+            carrierThread.set(Thread.currentThread());
+            dispatched.countDown();
+        });
+        assertTrue(dispatched.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(carrierThread.get().getName().startsWith("LooperGroupTest #"));
+
+        assertTrue(thread.quit());
+        thread.awaitTermination();
+        assertFalse(thread.isRunning());
+        assertNull(thread.getLooper());
+        assertFalse(thread.quit());
+        group.quit();
+        assertTrue(group.awaitTermination(TIMEOUT));
+    }
+
+    @Test
+    void loopersOfThreadGroupsShareCarrierThreads() throws InterruptedException {
+        final LooperGroup group = new LooperGroup("LooperGroupTest", 1);
+        final ThreadGroup[] threadGroups = { new ThreadGroup("Process {1}"), new ThreadGroup("Process {2}") };
+        final HandlerThread[] threads = new HandlerThread[threadGroups.length];
+        final int[] pids = new int[threadGroups.length];
+        final CountDownLatch dispatched = new CountDownLatch(threadGroups.length);
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new HandlerThread(threadGroups[i], "LooperGroupTest", group);
+            threads[i].start();
+            new Handler(threads[i].getLooper()).post(() -> {
+                pids[index] = Process.myPid();
+                dispatched.countDown();
+            });
+        }
+        assertTrue(dispatched.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < threads.length; i++) {
+            // Each dispatch runs in the context of the thread group of its Looper.
+            assertEquals(threadGroups[i].hashCode(), pids[i]);
+        }
+
+        final AtomicReference<Integer> pid = new AtomicReference<>();
+        final AtomicReference<Integer> carrierPid = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(group.newLooper("LooperGroupTest")).post(() -> {
+            pid.set(Process.myPid());
+            carrierPid.set(Thread.currentThread().getThreadGroup().hashCode());
+            done.countDown();
+        });
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(carrierPid.get(), pid.get());
+
+        group.quit();
+        assertTrue(group.awaitTermination(TIMEOUT));
+    }
+
+    @Test
+    void uncaughtExceptionsArePassedToTheThreadGroup() throws InterruptedException {
+        final LooperGroup group = new LooperGroup("LooperGroupTest", 1);
+        final AtomicReference<Throwable> exception = new AtomicReference<>();
+        final CountDownLatch caught = new CountDownLatch(1);
+        final ThreadGroup threadGroup = new ThreadGroup("Process {1}") {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                exception.set(e);
+                caught.countDown();
+            }
+        };
+        final HandlerThread thread = new HandlerThread(threadGroup, "LooperGroupTest", group);
+        thread.start();
+        final Looper looper = thread.getLooper();
+        new Handler(looper).post(() -> {
+            throw new IllegalStateException("LooperGroupTest");
+        });
+        assertTrue(caught.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("LooperGroupTest", exception.get().getMessage());
+        thread.awaitTermination();
+        assertFalse(thread.isRunning());
+
+        group.quit();
+        assertTrue(group.awaitTermination(TIMEOUT));
+    }
+
+    @Test
+    void createRequiresLooperGroupSize() {
+        System.clearProperty(Properties.LOOPER_GROUP_SIZE);
+        assertNull(LooperGroup.create("LooperGroupTest"));
+        System.setProperty(Properties.LOOPER_GROUP_SIZE, "2");
+        try {
+            LooperGroup group = LooperGroup.create("LooperGroupTest");
+            assertNotNull(group);
+            group.quit();
+        } finally {
+            System.clearProperty(Properties.LOOPER_GROUP_SIZE);
+        }
+    }
+
+    @Test
+    void systemServicesRunOnLooperGroup() throws Exception {
+        if (Runtime.getRuntime() == null) {
+            Runtime.start(1, null);
+        }
+        System.setProperty(Properties.LOOPER_GROUP_SIZE, "2");
+        ServiceManager serviceManager = new ServiceManager();
+        try {
+            serviceManager.start();
+            Main.startSystemServices();
+            assertNotNull(ServiceManager.getSystemService(mindroid.content.Context.PACKAGE_MANAGER));
+            int carrierThreads = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertNotEquals("ServiceManager", thread.getName());
+                // Processes have neither threads nor LooperGroups of their own.
+                assertFalse(thread.getName().startsWith("Process {"));
+                if (thread.getName().startsWith("ServiceManager #")) {
+                    carrierThreads++;
+                }
+            }
+            assertEquals(2, carrierThreads);
+            Main.shutdownSystemServices();
+        } finally {
+            serviceManager.shutdown();
+            System.clearProperty(Properties.LOOPER_GROUP_SIZE);
+        }
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import mindroid.os.Handler;
+import mindroid.os.HandlerThread;
+import mindroid.os.Looper;
+import mindroid.os.LooperGroup;
+import mindroid.os.LooperStats;
+import mindroid.os.Message;
+import mindroid.os.MessageQueue;
+import mindroid.os.RemoteException;
+import mindroid.os.SystemClock;
+import mindroid.util.concurrent.ExecutionException;
+import mindroid.util.concurrent.Promise;
+
+public class MessageQueueTest {
+    private static final int TIMEOUT = 10000;
+
+    private HandlerThread mThread;
+    private RecordingHandler mHandler;
+
+    @BeforeEach
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueueTest");
+        mThread.start();
+        mHandler = new RecordingHandler(mThread);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    @Test
+    void concurrentProducers() throws InterruptedException {
+        final int producers = 8;
+        final int messages = 10000;
+        final int[] lastSequence = new int[producers];
+        final AtomicInteger outOfOrder = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(producers * messages);
+        Arrays.fill(lastSequence, -1);
+        Handler handler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message message) {
+                if (message.arg2 != lastSequence[message.arg1] + 1) {
+                    outOfOrder.incrementAndGet();
+                }
+                lastSequence[message.arg1] = message.arg2;
+                done.countDown();
+            }
+        };
+
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < messages; j++) {
+                    assertTrue(handler.sendMessage(handler.obtainMessage(0, producer, j)));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, outOfOrder.get());
+        for (int i = 0; i < producers; i++) {
+            assertEquals(messages - 1, lastSequence[i]);
+        }
+    }
+
+    @Test
+    void delayedMessagesAreDispatchedByTimeAndThenInSendOrder() throws InterruptedException {
+        final long when = SystemClock.uptimeMillis() + 100;
+        for (int i = 0; i < 100; i++) {
+            // Interleave three delivery times, messages with the same time must keep their order.
+            Message message = mHandler.obtainMessage(i % 3, i, 0);
+            assertTrue(mHandler.sendMessageAtTime(message, when + (2 - i % 3) * 10));
+        }
+
+        List<int[]> dispatched = mHandler.await(100);
+        for (int i = 1; i < dispatched.size(); i++) {
+            int[] prev = dispatched.get(i - 1);
+            int[] cur = dispatched.get(i);
+            assertTrue(prev[0] > cur[0] || (prev[0] == cur[0] && prev[1] < cur[1]), "Messages out of order at " + i);
+        }
+    }
+
+    @Test
+    void removeMessagesByWhatCallbackAndObject() {
+        final Object token1 = new Object();
+        final Object token2 = new Object();
+        final Runnable runnable1 = () -> { };
+        final Runnable runnable2 = () -> { };
+        for (int i = 0; i < 10; i++) {
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(1, token1), 60000);
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(1, token2), 60000);
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(2, token1), 60000);
+            mHandler.postAtTime(runnable1, token1, SystemClock.uptimeMillis() + 60000);
+            mHandler.postAtTime(runnable2, token2, SystemClock.uptimeMillis() + 60000);
+        }
+
+        assertTrue(mHandler.hasMessages(1, token1));
+        assertTrue(mHandler.removeMessages(1, token1));
+        assertFalse(mHandler.hasMessages(1, token1));
+        assertTrue(mHandler.hasMessages(1, token2));
+        assertTrue(mHandler.hasMessages(2));
+
+        assertTrue(mHandler.hasCallbacks(runnable1));
+        assertFalse(mHandler.removeCallbacks(runnable1, token2));
+        assertTrue(mHandler.removeCallbacks(runnable1));
+        assertFalse(mHandler.hasCallbacks(runnable1));
+        assertTrue(mHandler.hasCallbacks(runnable2));
+
+        assertTrue(mHandler.removeCallbacksAndMessages(token1));
+        assertFalse(mHandler.hasMessages(2));
+        assertTrue(mHandler.hasMessages(1, token2));
+        assertTrue(mHandler.hasCallbacks(runnable2));
+
+        assertTrue(mHandler.removeCallbacksAndMessages(null));
+        assertFalse(mHandler.hasMessages(1));
+        assertFalse(mHandler.hasCallbacks(runnable2));
+        assertFalse(mHandler.removeMessages(1));
+    }
+
+    @Test
+    void removeMessagesOfTheCurrentBatch() throws InterruptedException {
+        final CountDownLatch blocker = mHandler.block();
+        for (int i = 0; i < 10; i++) {
+            mHandler.sendEmptyMessage(i);
+        }
+        mHandler.mOnMessage = message -> {
+            if (message.what == 1) {
+                // All messages have been taken into the dispatch batch by now.
+                assertTrue(mHandler.hasMessages(5));
+                assertTrue(mHandler.removeMessages(5));
+                assertFalse(mHandler.hasMessages(5));
+            }
+        };
+        blocker.countDown();
+
+        List<int[]> dispatched = mHandler.await(9);
+        for (int[] message : dispatched) {
+            assertNotEquals(5, message[0]);
+        }
+        assertFalse(mHandler.awaitMore(100));
+    }
+
+    @Test
+    void idleHandlers() throws InterruptedException {
+        final MessageQueue queue = mThread.getLooper().getQueue();
+        final AtomicInteger onceCount = new AtomicInteger(0);
+        final AtomicInteger keepCount = new AtomicInteger(0);
+        final CountDownLatch idle = new CountDownLatch(1);
+        final CountDownLatch idleAgain = new CountDownLatch(2);
+        queue.addIdleHandler(() -> {
+            onceCount.incrementAndGet();
+            return false;
+        });
+        MessageQueue.IdleHandler keepHandler = () -> {
+            keepCount.incrementAndGet();
+            idle.countDown();
+            idleAgain.countDown();
+            return true;
+        };
+        queue.addIdleHandler(keepHandler);
+
+        mHandler.sendEmptyMessage(0);
+        assertTrue(idle.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        mHandler.sendEmptyMessage(1);
+        assertTrue(idleAgain.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, onceCount.get());
+
+        queue.removeIdleHandler(keepHandler);
+        final int count = keepCount.get();
+        mHandler.sendEmptyMessage(2);
+        mHandler.await(3);
+        Thread.sleep(100);
+        assertEquals(count, keepCount.get());
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    void asynchronousMessagesBypassSynchronousMessages() throws InterruptedException {
+        final Handler asyncHandler = mHandler.createAsync();
+        final CountDownLatch blocker = mHandler.block();
+        for (int i = 0; i < 5; i++) {
+            mHandler.sendEmptyMessage(i);
+        }
+        asyncHandler.sendEmptyMessage(100);
+        blocker.countDown();
+
+        List<int[]> dispatched = mHandler.await(6);
+        assertEquals(100, dispatched.get(0)[0]);
+        for (int i = 1; i < 6; i++) {
+            assertEquals(i - 1, dispatched.get(i)[0]);
+        }
+    }
+
+    @Test
+    void syncBarriersStallSynchronousMessages() throws InterruptedException {
+        final MessageQueue queue = mThread.getLooper().getQueue();
+        final Handler asyncHandler = mHandler.createAsync();
+        final int token = queue.postSyncBarrier();
+        mHandler.sendEmptyMessage(1);
+        asyncHandler.sendEmptyMessage(2);
+
+        List<int[]> dispatched = mHandler.await(1);
+        assertEquals(2, dispatched.get(0)[0]);
+        assertFalse(mHandler.awaitMore(100));
+        assertTrue(mHandler.hasMessages(1));
+
+        queue.removeSyncBarrier(token);
+        dispatched = mHandler.await(2);
+        assertEquals(1, dispatched.get(1)[0]);
+        assertThrows(IllegalStateException.class, () -> queue.removeSyncBarrier(token));
+    }
+
+    @Test
+    void overflowPolicyReject() throws InterruptedException {
+        final MessageQueue queue = mThread.getLooper().getQueue();
+        queue.setCapacity(3, MessageQueue.POLICY_REJECT);
+        final CountDownLatch blocker = mHandler.block();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mHandler.sendEmptyMessage(i));
+        }
+        assertFalse(mHandler.sendEmptyMessage(3));
+        blocker.countDown();
+
+        List<int[]> dispatched = mHandler.await(3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, dispatched.get(i)[0]);
+        }
+        assertFalse(mHandler.awaitMore(100));
+    }
+
+    @Test
+    void overflowPolicyBlock() throws InterruptedException {
+        final MessageQueue queue = mThread.getLooper().getQueue();
+        queue.setCapacity(2, MessageQueue.POLICY_BLOCK);
+        final CountDownLatch blocker = mHandler.block();
+        assertTrue(mHandler.sendEmptyMessage(0));
+        assertTrue(mHandler.sendEmptyMessage(1));
+        final CountDownLatch sent = new CountDownLatch(1);
+        Thread sender = new Thread(() -> {
+            assertTrue(mHandler.sendEmptyMessage(2));
+            sent.countDown();
+        });
+        sender.start();
+        assertFalse(sent.await(100, TimeUnit.MILLISECONDS));
+        blocker.countDown();
+
+        assertTrue(sent.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        List<int[]> dispatched = mHandler.await(3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, dispatched.get(i)[0]);
+        }
+        sender.join();
+    }
+
+    @Test
+    void overflowPolicyBlockRejectsLooperGroupSenders() throws InterruptedException {
+        final LooperGroup group = new LooperGroup("MessageQueueTest", 1);
+        final Looper receiver = group.newLooper("Receiver");
+        receiver.getQueue().setCapacity(1, MessageQueue.POLICY_BLOCK);
+        final AtomicInteger received = new AtomicInteger(0);
+        final Handler receiverHandler = new Handler(receiver) {
+            @Override
+            public void handleMessage(Message message) {
+                received.incrementAndGet();
+            }
+        };
+
+        // The sender occupies the only carrier thread, so the receiver cannot drain its queue.
+        final boolean[] results = new boolean[2];
+        final CountDownLatch sent = new CountDownLatch(1);
+        new Handler(group.newLooper("Sender")).post(() -> {
+            results[0] = receiverHandler.sendEmptyMessage(0);
+            results[1] = receiverHandler.sendEmptyMessage(1);
+            sent.countDown();
+        });
+        assertTrue(sent.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+
+        final CountDownLatch drained = new CountDownLatch(1);
+        receiverHandler.post(() -> drained.countDown());
+        assertTrue(drained.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, received.get());
+        group.quit();
+        assertTrue(group.awaitTermination(TIMEOUT));
+    }
+
+    @Test
+    void overflowPolicyDropOldest() throws InterruptedException {
+        final MessageQueue queue = mThread.getLooper().getQueue();
+        queue.setCapacity(3, MessageQueue.POLICY_DROP_OLDEST);
+        final CountDownLatch blocker = mHandler.block();
+        final Promise<Void> result = new Promise<>();
+        Message message = mHandler.obtainMessage(0);
+        message.result = result;
+        assertTrue(mHandler.sendMessage(message));
+        assertTrue(mHandler.sendMessageDelayed(mHandler.obtainMessage(1), 60000));
+        assertTrue(mHandler.sendEmptyMessage(2));
+        // Drops message 0 and completes its result.
+        assertTrue(mHandler.sendEmptyMessage(3));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(TIMEOUT));
+        assertTrue(e.getCause() instanceof RemoteException);
+        // Drops message 2 since the delayed message 1 is only dropped if there are no due messages.
+        assertTrue(mHandler.sendEmptyMessage(4));
+        assertFalse(mHandler.hasMessages(2));
+        assertTrue(mHandler.hasMessages(1));
+        blocker.countDown();
+
+        List<int[]> dispatched = mHandler.await(2);
+        assertEquals(3, dispatched.get(0)[0]);
+        assertEquals(4, dispatched.get(1)[0]);
+        assertTrue(mHandler.hasMessages(1));
+        assertFalse(mHandler.awaitMore(100));
+    }
+
+    @Test
+    void overflowPolicyCoalesce() throws InterruptedException {
+        final MessageQueue queue = mThread.getLooper().getQueue();
+        queue.setCapacity(2, MessageQueue.POLICY_COALESCE);
+        final CountDownLatch blocker = mHandler.block();
+        assertTrue(mHandler.sendMessage(mHandler.obtainMessage(1, 1, 0)));
+        assertTrue(mHandler.sendMessage(mHandler.obtainMessage(2, 1, 0)));
+        // Merged into the pending message with the same what code.
+        assertTrue(mHandler.sendMessage(mHandler.obtainMessage(1, 2, 0)));
+        // Rejected since there is no pending message with the same what code.
+        assertFalse(mHandler.sendMessage(mHandler.obtainMessage(3, 1, 0)));
+        blocker.countDown();
+
+        List<int[]> dispatched = mHandler.await(2);
+        assertArrayEquals(new int[] { 1, 2 }, dispatched.get(0));
+        assertArrayEquals(new int[] { 2, 1 }, dispatched.get(1));
+        assertFalse(mHandler.awaitMore(100));
+    }
+
+    @Test
+    void coalescedMessagesAreMerged() throws InterruptedException {
+        final CountDownLatch blocker = mHandler.block();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mHandler.sendMessageCoalesced(mHandler.obtainMessage(1, i, 0)));
+            assertTrue(mHandler.sendMessageCoalesced(mHandler.obtainMessage(2, i, 0)));
+        }
+        blocker.countDown();
+
+        List<int[]> dispatched = mHandler.await(2);
+        assertArrayEquals(new int[] { 1, 9 }, dispatched.get(0));
+        assertArrayEquals(new int[] { 2, 9 }, dispatched.get(1));
+        assertFalse(mHandler.awaitMore(100));
+    }
+
+    @Test
+    void coalescingDoesNotPostponeMessages() throws InterruptedException {
+        assertTrue(mHandler.sendMessageDelayed(mHandler.obtainMessage(1, 0, 0), 60000));
+        assertTrue(mHandler.sendMessageCoalesced(mHandler.obtainMessage(1, 1, 0)));
+
+        List<int[]> dispatched = mHandler.await(1);
+        assertArrayEquals(new int[] { 1, 1 }, dispatched.get(0));
+        // The delayed message is still pending with its own contents.
+        assertTrue(mHandler.hasMessages(1));
+        assertFalse(mHandler.awaitMore(100));
+    }
+
+    @Test
+    void coalescingWithBarriersAndAsynchronousMessages() throws InterruptedException {
+        final MessageQueue queue = mThread.getLooper().getQueue();
+        final Handler asyncHandler = mHandler.createAsync();
+        final CountDownLatch blocker = mHandler.block();
+        final int token = queue.postSyncBarrier();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(mHandler.sendMessageCoalesced(mHandler.obtainMessage(1, i, 0)));
+            assertTrue(asyncHandler.sendMessageCoalesced(asyncHandler.obtainMessage(2, i, 0)));
+        }
+        blocker.countDown();
+
+        List<int[]> dispatched = mHandler.await(1);
+        assertArrayEquals(new int[] { 2, 4 }, dispatched.get(0));
+        assertFalse(mHandler.awaitMore(100));
+
+        // Messages stalled by a barrier can still be merged into.
+        assertTrue(mHandler.sendMessageCoalesced(mHandler.obtainMessage(1, 5, 0)));
+        queue.removeSyncBarrier(token);
+        dispatched = mHandler.await(2);
+        assertArrayEquals(new int[] { 1, 5 }, dispatched.get(1));
+        assertFalse(mHandler.awaitMore(100));
+    }
+
+    @Test
+    void looperStatsCountMessagesByWhat() throws InterruptedException {
+        final LooperStats stats = mThread.getLooper().getStats();
+        final int[] whats = { 0, 1, 255, 256, 100000, -1 };
+        for (int what : whats) {
+            for (int i = 0; i <= what % 3 + 1; i++) {
+                mHandler.sendEmptyMessage(what);
+            }
+        }
+        int count = 0;
+        for (int what : whats) {
+            count += what % 3 + 2;
+        }
+        mHandler.await(count);
+        final CountDownLatch recorded = new CountDownLatch(1);
+        mHandler.post(() -> recorded.countDown());
+        assertTrue(recorded.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        for (int what : whats) {
+            LooperStats.Entry entry = null;
+            for (LooperStats.Entry e : stats.getEntries()) {
+                if (e.getHandlerName().equals(RecordingHandler.class.getName())
+                        && e.getMessageName().equals("0x" + Integer.toHexString(what))) {
+                    assertNull(entry);
+                    entry = e;
+                }
+            }
+            assertNotNull(entry);
+            assertEquals(what % 3 + 2, entry.getExecutionTime().getCount());
+        }
+    }
+
+    /**
+     * Records the what and arg1 values of the dispatched messages.
+     */
+    static class RecordingHandler extends Handler {
+        private final List<int[]> mMessages = new ArrayList<>();
+        volatile Consumer<Message> mOnMessage;
+
+        RecordingHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void handleMessage(Message message) {
+            Consumer<Message> onMessage = mOnMessage;
+            if (onMessage != null) {
+                onMessage.accept(message);
+            }
+            synchronized (mMessages) {
+                mMessages.add(new int[] { message.what, message.arg1 });
+                mMessages.notifyAll();
+            }
+        }
+
+        /**
+         * Returns an asynchronous Handler on the same Looper whose messages are recorded as well.
+         */
+        Handler createAsync() {
+            return Handler.createAsync(getLooper(), message -> {
+                handleMessage(message);
+                return true;
+            });
+        }
+
+        /**
+         * Blocks the Looper thread until the returned latch is released, so that messages can be
+         * queued up before they are dispatched.
+         */
+        CountDownLatch block() throws InterruptedException {
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch blocker = new CountDownLatch(1);
+            post(() -> {
+                blocked.countDown();
+                try {
+                    blocker.await();
+                } catch (InterruptedException ignore) {
+                }
+            });
+            assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            return blocker;
+        }
+
+        List<int[]> await(int count) throws InterruptedException {
+            final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+            synchronized (mMessages) {
+                while (mMessages.size() < count) {
+                    final long timeout = deadline - SystemClock.uptimeMillis();
+                    if (timeout <= 0) {
+                        fail("Timeout waiting for " + count + " messages, got " + mMessages.size());
+                    }
+                    mMessages.wait(timeout);
+                }
+                return new ArrayList<>(mMessages);
+            }
+        }
+
+        boolean awaitMore(long timeout) throws InterruptedException {
+            synchronized (mMessages) {
+                final int count = mMessages.size();
+                mMessages.wait(timeout);
+                return mMessages.size() > count;
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import mindroid.runtime.system.Runtime;
+import mindroid.util.concurrent.ExecutionException;
+
+/**
+ * Connects the runtime system to node 2, whose mindroid server is played by a plain server socket,
+ * and checks that the connection is kept open.
+ */
+public class NodeConnectionTest {
+    private static final int TIMEOUT = 10000;
+    // Longer than the reconnect delay of the plugin.
+    private static final int RECONNECT_TIMEOUT = 3000;
+    private static final URI NODE = URI.create("mindroid://2");
+
+    private File mConfiguration;
+    private int mPort;
+    private ServerSocket mServerSocket;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mPort = getFreePort();
+        mConfiguration = File.createTempFile("NodeConnectionTest", ".xml");
+        try (Writer writer = new FileWriter(mConfiguration)) {
+            writer.write("<?xml version='1.0' encoding='UTF-8' ?>\n"
+                    + "<runtime>\n"
+                    + "    <nodes>\n"
+                    + "        <node id=\"1\">\n"
+                    + "            <plugin scheme=\"mindroid\" class=\"mindroid.runtime.system.Mindroid\">\n"
+                    + "                <server uri=\"tcp://127.0.0.1:" + getFreePort() + "\" />\n"
+                    + "            </plugin>\n"
+                    + "        </node>\n"
+                    + "        <node id=\"2\">\n"
+                    + "            <plugin scheme=\"mindroid\" class=\"mindroid.runtime.system.Mindroid\">\n"
+                    + "                <server uri=\"tcp://127.0.0.1:" + mPort + "\" />\n"
+                    + "            </plugin>\n"
+                    + "        </node>\n"
+                    + "    </nodes>\n"
+                    + "</runtime>\n");
+        }
+        // The runtime system of the other tests has no configuration.
+        Runtime.shutdown();
+        Runtime.start(1, mConfiguration);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Runtime.getRuntime().disconnect(NODE, null);
+        Runtime.shutdown();
+        if (mServerSocket != null) {
+            mServerSocket.close();
+        }
+        mConfiguration.delete();
+    }
+
+    @Test
+    void closedConnectionIsReopened() throws Exception {
+        mServerSocket = newServerSocket();
+        Runtime.getRuntime().connect(NODE, null).get(TIMEOUT);
+        // Reopened connections are closed right away as well, possibly before their client has
+        // been added to the pool.
+        for (int i = 0; i < 4; i++) {
+            Socket connection = mServerSocket.accept();
+            connection.close();
+        }
+        mServerSocket.accept().close();
+    }
+
+    @Test
+    void failedConnectIsRetried() throws Exception {
+        // Nothing listens on the port yet.
+        assertThrows(ExecutionException.class, () -> Runtime.getRuntime().connect(NODE, null).get(TIMEOUT));
+
+        mServerSocket = newServerSocket();
+        mServerSocket.accept().close();
+    }
+
+    @Test
+    void disconnectedNodeIsNotReopened() throws Exception {
+        mServerSocket = newServerSocket();
+        Runtime.getRuntime().connect(NODE, null).get(TIMEOUT);
+        Socket connection = mServerSocket.accept();
+        Runtime.getRuntime().disconnect(NODE, null).get(TIMEOUT);
+        connection.close();
+
+        mServerSocket.setSoTimeout(RECONNECT_TIMEOUT);
+        assertThrows(SocketTimeoutException.class, () -> mServerSocket.accept());
+    }
+
+    private ServerSocket newServerSocket() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(mPort, 50, InetAddress.getByName("127.0.0.1"));
+        serverSocket.setSoTimeout(TIMEOUT);
+        return serverSocket;
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+}
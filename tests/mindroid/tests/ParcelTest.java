@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+import mindroid.io.ByteArrayInputStream;
+import mindroid.io.ByteArrayOutputStream;
+import mindroid.io.DataInputStream;
+import mindroid.io.DataOutputStream;
+import mindroid.os.Parcel;
+import mindroid.os.RemoteException;
+
+public class ParcelTest {
+    private static final String[] STRINGS = {
+        "",
+        "mindroid://interfaces/mindroid/os/IServiceManager",
+        "Grüße à tous",
+        "中文字符",
+        "😀 surrogate pair",
+        "nul \u0000 character",
+    };
+
+    @Test
+    void recycleReturnsParcelToPool() throws RemoteException {
+        Parcel parcel = Parcel.obtain();
+        parcel.putInt(42);
+        parcel.recycle();
+
+        Parcel pooledParcel = Parcel.obtain();
+        assertSame(parcel, pooledParcel);
+        assertEquals(0, pooledParcel.size());
+        pooledParcel.putInt(43);
+        pooledParcel.asInput();
+        assertEquals(43, pooledParcel.getInt());
+        pooledParcel.recycle();
+    }
+
+    @Test
+    void recycledParcelCannotBeUsed() throws RemoteException {
+        Parcel parcel = Parcel.obtain();
+        parcel.recycle();
+        assertThrows(IllegalStateException.class, () -> parcel.recycle());
+        assertThrows(IllegalStateException.class, () -> parcel.putInt(1));
+        assertThrows(IllegalStateException.class, () -> parcel.asInput().getInt());
+        // The double recycle must not have put the Parcel into the pool twice.
+        Parcel parcel1 = Parcel.obtain();
+        Parcel parcel2 = Parcel.obtain();
+        assertNotSame(parcel1, parcel2);
+        parcel1.recycle();
+        parcel2.recycle();
+    }
+
+    @Test
+    void wrappedBuffersAreNotPooled() throws RemoteException {
+        byte[] buffer = { 0, 0, 0, 42 };
+        Parcel parcel = Parcel.obtain(buffer);
+        assertEquals(42, parcel.getInt());
+        parcel.recycle();
+        Parcel otherParcel = Parcel.obtain();
+        assertNotSame(parcel, otherParcel);
+        otherParcel.recycle();
+    }
+
+    @Test
+    void directParcels() throws RemoteException {
+        Parcel heapParcel = Parcel.obtain();
+        Parcel directParcel = Parcel.obtainDirect(16);
+        assertFalse(heapParcel.isDirect());
+        assertTrue(directParcel.isDirect());
+        for (Parcel parcel : new Parcel[] { heapParcel, directParcel }) {
+            parcel.putBoolean(true);
+            parcel.putLong(Long.MIN_VALUE);
+            // More data than the direct buffer can initially hold.
+            for (int i = 0; i < 1000; i++) {
+                parcel.putInt(i);
+            }
+            parcel.putDouble(Math.PI);
+            parcel.putInt(1 + 8, -1);
+            assertEquals(-1, parcel.getInt(1 + 8));
+            assertThrows(IndexOutOfBoundsException.class, () -> parcel.getInt(parcel.size() - 3));
+        }
+        // Both kinds of Parcels have the same wire format.
+        assertEquals(heapParcel.asByteBuffer(), directParcel.asByteBuffer());
+
+        directParcel.asInput();
+        assertTrue(directParcel.getBoolean());
+        assertEquals(Long.MIN_VALUE, directParcel.getLong());
+        assertEquals(-1, directParcel.getInt());
+        for (int i = 1; i < 1000; i++) {
+            assertEquals(i, directParcel.getInt());
+        }
+        assertEquals(Math.PI, directParcel.getDouble());
+        heapParcel.recycle();
+        directParcel.recycle();
+    }
+
+    @Test
+    void bulkArrays() throws RemoteException {
+        for (boolean direct : new boolean[] { false, true }) {
+            Parcel parcel = direct ? Parcel.obtainDirect(0) : Parcel.obtain();
+            int[] ints = new int[1000];
+            long[] longs = new long[1000];
+            float[] floats = new float[1000];
+            double[] doubles = new double[1000];
+            boolean[] booleans = new boolean[1000];
+            for (int i = 0; i < 1000; i++) {
+                ints[i] = i * 31 - 500;
+                longs[i] = (long) i << 40 | i;
+                floats[i] = i / 3.0f;
+                doubles[i] = -i / 7.0;
+                booleans[i] = (i % 3) == 0;
+            }
+            parcel.putByte((byte) 1);
+            parcel.putIntArray(ints);
+            parcel.putLongArray(longs);
+            parcel.putIntArray(null);
+            parcel.putFloatArray(floats);
+            parcel.putDoubleArray(doubles);
+            parcel.putBooleanArray(booleans);
+            parcel.putLongArray(new long[0]);
+            parcel.putInt(7);
+
+            parcel.asInput();
+            assertEquals(1, parcel.getByte());
+            assertArrayEquals(ints, parcel.getIntArray());
+            assertArrayEquals(longs, parcel.getLongArray());
+            assertNull(parcel.getIntArray());
+            assertArrayEquals(floats, parcel.getFloatArray());
+            assertArrayEquals(doubles, parcel.getDoubleArray());
+            assertArrayEquals(booleans, parcel.getBooleanArray());
+            assertEquals(0, parcel.getLongArray().length);
+            assertEquals(7, parcel.getInt());
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    void byteBuffers() throws RemoteException {
+        for (boolean direct : new boolean[] { false, true }) {
+            Parcel parcel = direct ? Parcel.obtainDirect(0) : Parcel.obtain();
+            byte[] bytes = new byte[10000];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) i;
+            }
+            parcel.putInt(42);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            parcel.putBytes(buffer);
+            assertFalse(buffer.hasRemaining());
+            ByteBuffer region = parcel.reserveBytes(4);
+            assertEquals(4, region.remaining());
+            region.putInt(43);
+            parcel.putInt(44);
+
+            // The array may be larger than the parcel, only its first size() bytes are valid.
+            byte[] data = parcel.getByteArray();
+            assertEquals(4 + bytes.length + 4 + 4, parcel.size());
+            assertTrue(data.length >= parcel.size());
+            parcel.asInput();
+            assertEquals(42, parcel.getInt());
+            assertArrayEquals(bytes, parcel.getBytes(bytes.length));
+            assertEquals(43, parcel.getInt());
+            assertEquals(44, parcel.getInt());
+            Parcel copy = Parcel.obtain(data);
+            assertEquals(42, copy.getInt());
+            assertArrayEquals(bytes, copy.getBytes(bytes.length));
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    void bulkArraysAreEncodedLikeSingleValues() throws RemoteException {
+        Parcel arrayParcel = Parcel.obtain();
+        arrayParcel.putIntArray(new int[] { 1, -2, 3 });
+        Parcel valueParcel = Parcel.obtain();
+        valueParcel.putInt(3);
+        valueParcel.putInt(1);
+        valueParcel.putInt(-2);
+        valueParcel.putInt(3);
+        assertEquals(valueParcel.size(), arrayParcel.size());
+        for (int i = 0; i < arrayParcel.size(); i++) {
+            assertEquals(valueParcel.getByte(i), arrayParcel.getByte(i));
+        }
+        arrayParcel.recycle();
+        valueParcel.recycle();
+    }
+
+    @Test
+    void truncatedArrayIsRejected() throws RemoteException {
+        Parcel parcel = Parcel.obtain();
+        parcel.putInt(1000000);
+        parcel.putInt(1);
+        parcel.asInput();
+        assertThrows(RemoteException.class, () -> parcel.getIntArray());
+        parcel.recycle();
+    }
+
+    @Test
+    void strings() throws RemoteException {
+        for (boolean direct : new boolean[] { false, true }) {
+            Parcel parcel = direct ? Parcel.obtainDirect(0) : Parcel.obtain();
+            for (String string : STRINGS) {
+                parcel.putString(string);
+                parcel.putCompactString(string);
+            }
+            parcel.putCompactString(null);
+            parcel.asInput();
+            for (String string : STRINGS) {
+                assertEquals(string, parcel.getString());
+                assertEquals(string, parcel.getCompactString());
+            }
+            assertNull(parcel.getCompactString());
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    void compactStringsAreNotLimitedTo64KB() throws RemoteException {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 100000) {
+            builder.append("0123456789ä");
+        }
+        final String string = builder.toString();
+        Parcel parcel = Parcel.obtain();
+        assertThrows(RemoteException.class, () -> parcel.putString(string));
+        parcel.putCompactString(string);
+        parcel.asInput();
+        assertEquals(string, parcel.getCompactString());
+        parcel.recycle();
+    }
+
+    @Test
+    void stringTable() throws RemoteException {
+        final String descriptor = STRINGS[1];
+        Parcel plainParcel = Parcel.obtain();
+        Parcel tableParcel = Parcel.obtain();
+        tableParcel.setStringTableEnabled(true);
+        for (int i = 0; i < 10; i++) {
+            plainParcel.putCompactString(descriptor);
+            tableParcel.putCompactString(descriptor);
+            tableParcel.putCompactString(STRINGS[i % STRINGS.length]);
+        }
+        assertTrue(tableParcel.size() < plainParcel.size());
+
+        tableParcel.asInput();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(descriptor, tableParcel.getCompactString());
+            assertEquals(STRINGS[i % STRINGS.length], tableParcel.getCompactString());
+        }
+        plainParcel.recycle();
+        tableParcel.recycle();
+
+        // A back-reference without the string it refers to is invalid.
+        Parcel parcel = Parcel.obtain();
+        parcel.putByte((byte) 0x05);
+        parcel.asInput();
+        assertThrows(RemoteException.class, () -> parcel.getCompactString());
+        parcel.recycle();
+    }
+
+    @Test
+    void dataStreamStrings() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        for (String string : STRINGS) {
+            dataOutputStream.writeUTF(string);
+        }
+
+        java.io.DataInputStream referenceInputStream = new java.io.DataInputStream(
+                new java.io.ByteArrayInputStream(outputStream.getByteArray(), 0, outputStream.size()));
+        DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(outputStream.getByteArray(), 0, outputStream.size()));
+        for (String string : STRINGS) {
+            assertEquals(string, referenceInputStream.readUTF());
+            assertEquals(string, dataInputStream.readUTF());
+        }
+    }
+}
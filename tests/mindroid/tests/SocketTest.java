@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import mindroid.io.DataInputStream;
+import mindroid.io.DataOutputStream;
+import mindroid.os.Bundle;
+import mindroid.os.SystemClock;
+import mindroid.runtime.system.aio.AbstractClient;
+import mindroid.runtime.system.aio.AbstractServer;
+import mindroid.runtime.system.aio.SocketOutputStream;
+
+/**
+ * Exchanges length-prefixed frames over the aio socket stack the way the runtime plugins do.
+ */
+public class SocketTest {
+    private static final int TIMEOUT = 10000;
+
+    private EchoServer mServer;
+    private FrameClient mClient;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        final String uri = "tcp://127.0.0.1:" + getFreePort();
+        mServer = new EchoServer();
+        mServer.start(uri);
+        mClient = new FrameClient();
+        mClient.start(uri);
+        assertTrue(mClient.mConnected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mClient.shutdown(null);
+        mServer.shutdown(null);
+    }
+
+    @Test
+    void framesOfConcurrentSendersArriveIntact() throws Exception {
+        final int senders = 4;
+        final int frames = 500;
+        Thread[] threads = new Thread[senders];
+        for (int i = 0; i < senders; i++) {
+            final int sender = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < frames; j++) {
+                        // Mix frames that fit into a chunk with frames that span several chunks.
+                        mClient.send(sender, j, (j % 50 == 0) ? 100000 : j % 300);
+                    }
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<int[]> received = mClient.await(senders * frames);
+        int[] nextSequence = new int[senders];
+        for (int[] frame : received) {
+            assertEquals(nextSequence[frame[0]]++, frame[1]);
+        }
+    }
+
+    @Test
+    void largeFramesCompleteAfterPartialWrites() throws Exception {
+        // Larger than the socket buffers, so that the rest is written once the socket becomes
+        // writable again.
+        mClient.send(0, 0, 8 * 1024 * 1024);
+        mClient.send(0, 1, 16);
+        List<int[]> received = mClient.await(2);
+        assertEquals(0, received.get(0)[1]);
+        assertEquals(1, received.get(1)[1]);
+    }
+
+    @Test
+    void flushDelayCoalescesFrames() throws Exception {
+        SocketOutputStream outputStream = (SocketOutputStream) mClient.getOutputStream();
+        outputStream.setFlushDelay(20);
+        try {
+            final long start = SystemClock.uptimeMillis();
+            for (int i = 0; i < 10; i++) {
+                mClient.send(0, i, 64);
+            }
+            List<int[]> received = mClient.await(10);
+            assertTrue(SystemClock.uptimeMillis() - start >= 20);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, received.get(i)[1]);
+            }
+        } finally {
+            outputStream.setFlushDelay(0);
+        }
+    }
+
+    @Test
+    void flushThresholdWritesWithoutFlush() throws Exception {
+        SocketOutputStream outputStream = (SocketOutputStream) mClient.getOutputStream();
+        assertThrows(IllegalArgumentException.class, () -> outputStream.setFlushThreshold(0));
+        outputStream.setFlushThreshold(1);
+        outputStream.setFlushDelay(60000);
+        try {
+            mClient.send(0, 0, 64);
+            assertEquals(0, mClient.await(1).get(0)[1]);
+        } finally {
+            outputStream.setFlushDelay(0);
+            outputStream.setFlushThreshold(8192);
+        }
+    }
+
+    @Test
+    void byteBuffersAreReleasedOnceWritten() throws Exception {
+        final AtomicInteger released = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 10; i++) {
+            // Interleave copied frames with frames whose payloads are queued without copying.
+            mClient.send(0, 2 * i, 100);
+            mClient.send(0, 2 * i + 1, 20000, () -> {
+                if (released.incrementAndGet() == 10) {
+                    done.countDown();
+                }
+            });
+        }
+        List<int[]> received = mClient.await(20);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, received.get(i)[1]);
+        }
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void closeReleasesByteBuffers() throws Exception {
+        SocketOutputStream outputStream = (SocketOutputStream) mClient.getOutputStream();
+        final CountDownLatch released = new CountDownLatch(1);
+        outputStream.setFlushDelay(60000);
+        mClient.send(0, 0, 64, () -> released.countDown());
+        outputStream.close();
+        assertTrue(released.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private static int getFreePort() throws IOException {
+        try (java.net.ServerSocket serverSocket = new java.net.ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * Reads the next frame once it has been received completely. A frame is its size, followed by
+     * the sender, the sequence number and the payload.
+     *
+     * @return the frame, or null if more data is needed.
+     */
+    private static byte[] readFrame(Bundle context, InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        if (!context.containsKey("frameSize")) {
+            if (inputStream.available() < 4) {
+                return null;
+            }
+            context.putInt("frameSize", dataInputStream.readInt());
+        }
+        final int size = context.getInt("frameSize");
+        if (inputStream.available() < size) {
+            return null;
+        }
+        context.remove("frameSize");
+        byte[] frame = new byte[size];
+        dataInputStream.readFully(frame);
+        return frame;
+    }
+
+    private static class EchoServer extends AbstractServer {
+        @Override
+        public void onConnected(Connection connection) {
+        }
+
+        @Override
+        public void onDisconnected(Connection connection, Throwable cause) {
+        }
+
+        @Override
+        public boolean onTransact(Bundle context, InputStream inputStream, OutputStream outputStream) throws IOException {
+            byte[] frame = readFrame(context, inputStream);
+            if (frame == null) {
+                return false;
+            }
+            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            synchronized (outputStream) {
+                dataOutputStream.writeInt(frame.length);
+                dataOutputStream.write(frame);
+                dataOutputStream.flush();
+            }
+            return true;
+        }
+    }
+
+    private static class FrameClient extends AbstractClient {
+        final CountDownLatch mConnected = new CountDownLatch(1);
+        private final List<int[]> mFrames = new ArrayList<>();
+
+        FrameClient() throws IOException {
+            super(1);
+        }
+
+        void send(int sender, int sequence, int size) throws IOException {
+            send(sender, sequence, size, null);
+        }
+
+        /**
+         * Sends a frame. If {@code onWritten} is not null, the payload is queued without copying
+         * and {@code onWritten} is run once it has been written.
+         */
+        void send(int sender, int sequence, int size, Runnable onWritten) throws IOException {
+            OutputStream outputStream = getOutputStream();
+            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            byte[] payload = new byte[size];
+            for (int i = 0; i < size; i++) {
+                payload[i] = (byte) (sender + sequence + i);
+            }
+            synchronized (outputStream) {
+                dataOutputStream.writeInt(8 + size);
+                dataOutputStream.writeInt(sender);
+                dataOutputStream.writeInt(sequence);
+                if (onWritten != null) {
+                    ((SocketOutputStream) outputStream).write(java.nio.ByteBuffer.wrap(payload), onWritten);
+                } else {
+                    dataOutputStream.write(payload);
+                }
+                dataOutputStream.flush();
+            }
+        }
+
+        List<int[]> await(int count) throws InterruptedException {
+            final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+            synchronized (mFrames) {
+                while (mFrames.size() < count) {
+                    final long timeout = deadline - SystemClock.uptimeMillis();
+                    if (timeout <= 0) {
+                        fail("Timeout waiting for " + count + " frames, got " + mFrames.size());
+                    }
+                    mFrames.wait(timeout);
+                }
+                return new ArrayList<>(mFrames);
+            }
+        }
+
+        @Override
+        public void onConnected() {
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onDisconnected(Throwable cause) {
+        }
+
+        @Override
+        public boolean onTransact(Bundle context, InputStream inputStream, OutputStream outputStream) throws IOException {
+            byte[] frame = readFrame(context, inputStream);
+            if (frame == null) {
+                return false;
+            }
+            java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(frame);
+            final int sender = buffer.getInt();
+            final int sequence = buffer.getInt();
+            for (int i = 0; buffer.hasRemaining(); i++) {
+                if (buffer.get() != (byte) (sender + sequence + i)) {
+                    throw new IOException("Corrupted frame " + sender + "/" + sequence + " at " + i);
+                }
+            }
+            synchronized (mFrames) {
+                mFrames.add(new int[] { sender, sequence });
+                mFrames.notifyAll();
+            }
+            return true;
+        }
+    }
+}